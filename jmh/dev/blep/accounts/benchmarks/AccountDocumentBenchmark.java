@@ -0,0 +1,92 @@
+package dev.blep.accounts.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.blep.accounts.repositories.Repository;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Cost of reading fields and sessions from an account document once it has been fetched.
+ * The legacy benchmarks reproduce Repository.getFieldValue round tripping the document through JSON, and
+ * AccountRepository.getSsoSuiteJwtJson parsing and rewriting the JSON string encoded session map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AccountDocumentBenchmark {
+
+    private static final String SSO_FIELD = "ssoSuiteJwt";
+
+    private static final String JWT = "eyJ0eXBlIjoiSldUIiwiYWxnIjoiSFM1MTIifQ.eyJzc29TdWl0ZUlkIjoiNjA0MTg2MzQyZTk5ZDcx" +
+            "NzAxOGI2OWM0IiwidXNlcklkIjoidGVzMjM0dCIsImV4cCI6MTYxNDkxNzcwMH0.ciaBuU2ImJlLS571oroif8CIeP5pOeDz-6746rHvkHZh1" +
+            "oTsbaLYn620AFsawOBGFFrIeS1JC28ksSzfAZ8lmw";
+
+    /** Number of SSO suites the account is signed in to */
+    @Param({"1", "10"})
+    private int sessionCount;
+
+    private String ssoSuiteId;
+
+    private Document legacyAccountDoc;
+
+    private Document accountDoc;
+
+    @Setup
+    public void setUp() {
+        Document sessions = new Document();
+        for (int i = 0; i < sessionCount; i++) {
+            ssoSuiteId = String.format("604186342e99d717018b69%02x", i);
+            sessions.append(ssoSuiteId, JWT);
+        }
+        accountDoc = new Document("email", "user1@email.com")
+                .append("username", "user1")
+                .append("password", "$2a$13$abcdefghijklmnopqrstuu0123456789abcdefghijklmnopqrstu")
+                .append("type", "user")
+                .append(SSO_FIELD, sessions);
+        legacyAccountDoc = new Document(accountDoc).append(SSO_FIELD, sessions.toJson());
+    }
+
+    @Benchmark
+    public String legacyGetFieldValue() {
+        JSONObject jsonObject = new JSONObject(legacyAccountDoc.toJson());
+        try {
+            return (String) jsonObject.get("password");
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public String getFieldValue() {
+        return Repository.getFieldValue(accountDoc, "password");
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public String legacySessionUpdate() throws Exception {
+        Map<String, String> result = new ObjectMapper().readValue(legacyAccountDoc.get(SSO_FIELD).toString(), HashMap.class);
+        JSONObject ssoSuiteJwtJson = new JSONObject(result);
+        ssoSuiteJwtJson.get(ssoSuiteId);
+        ssoSuiteJwtJson.put(ssoSuiteId, JWT);
+        return ssoSuiteJwtJson.toString();
+    }
+
+    @Benchmark
+    public Bson sessionUpdate() {
+        Document sessions = (Document) accountDoc.get(SSO_FIELD);
+        Repository.getFieldValue(sessions, ssoSuiteId);
+        return set(SSO_FIELD + "." + ssoSuiteId, JWT);
+    }
+}
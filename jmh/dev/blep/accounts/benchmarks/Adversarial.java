@@ -0,0 +1,43 @@
+package dev.blep.accounts.benchmarks;
+
+/**
+ * Inputs built to maximise the work a backtracking validator does before rejecting them.
+ */
+class Adversarial {
+
+    /** A long run of local part characters that fails on its final character */
+    static String repeatedAtoms(int length) {
+        return repeat('a', length - 1) + "!";
+    }
+
+    /** Many single character atoms, ending without a domain */
+    static String dottedAtoms(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length - 1) {
+            builder.append(builder.length() % 2 == 0 ? 'a' : '.');
+        }
+        return builder.append('@').toString();
+    }
+
+    /** A valid local part followed by a domain whose top level label is invalid */
+    static String longDomain(int length) {
+        StringBuilder builder = new StringBuilder("a@");
+        while (builder.length() < length - 2) {
+            builder.append(builder.length() % 3 == 0 ? '.' : 'a');
+        }
+        return builder.append(".1").toString();
+    }
+
+    /** A long password with every required class except a symbol, so it is scanned in full */
+    static String passwordWithoutSymbol(int length) {
+        return "A1" + repeat('a', Math.max(6, length - 2));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package dev.blep.accounts.benchmarks;
+
+import dev.blep.accounts.util.AccountValidator;
+import dev.blep.accounts.util.JwtKey;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.apache.tomcat.util.codec.binary.Base64;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.AuthenticationException;
+import java.security.Key;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-token cost of signing and verifying JWTs.
+ * The perCall benchmarks reproduce deriving the key and building the parser on every call, as the service did
+ * before {@link JwtKey}; the shared benchmarks use the precomputed key. The es256 benchmarks show the cost of
+ * asymmetric signing against HS512.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class JwtBenchmark {
+
+    private static final String SECRET = "aLongRandomBenchmarkSecretThatIsAtLeastSixtyFourBytesLongForHs512Signing";
+    private static final String USER_ID = "user1";
+    private static final String SSO_SUITE_ID = "604186342e99d717018b69c4";
+
+    private JwtKey jwtKey;
+
+    private String jwt;
+
+    private JwtKey ecKey;
+
+    private String ecJwt;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws GeneralSecurityException {
+        jwtKey = JwtKey.hmac(SECRET);
+        ecKey = JwtKey.ecdsaEphemeral();
+        // JWTs only live for a minute, so issue a fresh one for each iteration
+        jwt = AccountValidator.generateJwt(jwtKey, USER_ID, SSO_SUITE_ID);
+        ecJwt = AccountValidator.generateJwt(ecKey, USER_ID, SSO_SUITE_ID);
+    }
+
+    @Benchmark
+    public String generateJwtPerCallKey() {
+        Key signingKey = new SecretKeySpec(Base64.encodeBase64(SECRET.getBytes()),
+                SignatureAlgorithm.HS512.getJcaName());
+        Map<String, Object> claimsMap = new HashMap<>();
+        claimsMap.put("userId", USER_ID);
+        claimsMap.put("ssoSuiteId", SSO_SUITE_ID);
+        return Jwts.builder()
+                .setHeaderParam("type", "JWT")
+                .addClaims(claimsMap)
+                .setExpiration(new Date(System.currentTimeMillis() + AccountValidator.getJwtDuration()))
+                .signWith(SignatureAlgorithm.HS512, signingKey)
+                .compact();
+    }
+
+    @Benchmark
+    public String generateJwtSharedKey() {
+        return AccountValidator.generateJwt(jwtKey, USER_ID, SSO_SUITE_ID);
+    }
+
+    @Benchmark
+    public Claims jwtIsValidPerCallParser() {
+        return Jwts.parser()
+                .setSigningKey(Base64.encodeBase64(SECRET.getBytes()))
+                .parseClaimsJws(jwt).getBody();
+    }
+
+    @Benchmark
+    public Claims jwtIsValidSharedParser() throws AuthenticationException {
+        return AccountValidator.getValidClaims(jwt, jwtKey);
+    }
+
+    @Benchmark
+    public String generateJwtEs256() {
+        return AccountValidator.generateJwt(ecKey, USER_ID, SSO_SUITE_ID);
+    }
+
+    @Benchmark
+    public Claims jwtIsValidEs256() throws AuthenticationException {
+        return AccountValidator.getValidClaims(ecJwt, ecKey);
+    }
+
+    @Benchmark
+    public String getJwtPayload() {
+        return AccountValidator.getJwtPayload(jwt);
+    }
+}
@@ -0,0 +1,37 @@
+package dev.blep.accounts.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Baseline: the email regex AccountValidator compiled per call before it was replaced by a single pass scan.
+ * Its nested quantifiers around an unescaped '.' backtrack exponentially, so lengths are kept small.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class LegacyEmailRegexBenchmark {
+
+    @Param({"12", "16", "20"})
+    private int length;
+
+    private String repeatedAtoms;
+
+    @Setup
+    public void setUp() {
+        repeatedAtoms = Adversarial.repeatedAtoms(length);
+    }
+
+    @Benchmark
+    public boolean emailRepeatedAtoms() {
+        return Pattern.compile("^[_A-Za-z0-9-+]+(.[_A-Za-z0-9-]+)*" +
+                "(@[_A-Za-z0-9-]+@*)[A-Za-z0-9-]+(.[A-Za-z0-9]+)*(.[A-Za-z]{2,})")
+                .matcher(repeatedAtoms).matches()
+                && repeatedAtoms.length() < 254;
+    }
+}
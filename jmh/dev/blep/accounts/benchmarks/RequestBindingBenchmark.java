@@ -0,0 +1,75 @@
+package dev.blep.accounts.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.entities.ApiResponse;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of binding a request body and writing a response.
+ * The legacy benchmarks reproduce AccountController before typed binding: getRequestBodyJsonNode parsed the body
+ * with two new ObjectMappers via a HashMap and org.json, and responses were serialized from a HashMap with org.json.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestBindingBenchmark {
+
+    private static final String REQUEST_BODY = "{\"username\": \"user1\", \"password\": \"A)1ansmfdlasdf\", " +
+            "\"ssoSuiteId\": \"604186342e99d717018b69c4\"}";
+
+    private static final String JWT = "eyJ0eXBlIjoiSldUIiwiYWxnIjoiSFM1MTIifQ.eyJzc29TdWl0ZUlkIjoiNjA0MTg2MzQyZTk5ZDcx" +
+            "NzAxOGI2OWM0IiwidXNlcklkIjoidGVzMjM0dCIsImV4cCI6MTYxNDkxNzcwMH0.ciaBuU2ImJlLS571oroif8CIeP5pOeDz-6746rHvkHZh1" +
+            "oTsbaLYn620AFsawOBGFFrIeS1JC28ksSzfAZ8lmw";
+
+    private ObjectReader requestReader;
+
+    private ObjectWriter responseWriter;
+
+    @Setup
+    public void setUp() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        requestReader = objectMapper.readerFor(AccountRequest.class);
+        responseWriter = objectMapper.writerFor(ApiResponse.class);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public JsonNode legacyGetRequestBodyJsonNode() throws Exception {
+        Map<String, String> requestBodyMap = new ObjectMapper().readValue(REQUEST_BODY, HashMap.class);
+        return new ObjectMapper().readTree(new JSONObject(requestBodyMap).toString());
+    }
+
+    @Benchmark
+    public AccountRequest bindAccountRequest() throws Exception {
+        return requestReader.readValue(REQUEST_BODY);
+    }
+
+    @Benchmark
+    public String legacyWriteResponse() {
+        Map<String, String> body = new HashMap<>();
+        body.put("path", "/account/authenticate");
+        body.put("jwt", JWT);
+        body.put("status", "200 OK");
+        return new JSONObject(body).toString();
+    }
+
+    @Benchmark
+    public String writeApiResponse() throws Exception {
+        ApiResponse body = new ApiResponse("/account/authenticate");
+        body.setJwt(JWT);
+        body.setStatus("200 OK");
+        return responseWriter.writeValueAsString(body);
+    }
+}
@@ -0,0 +1,59 @@
+package dev.blep.accounts.benchmarks;
+
+import dev.blep.accounts.util.AccountValidator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the email and password validators on adversarial inputs of increasing length.
+ * Time should grow linearly with length; see {@link LegacyEmailRegexBenchmark} for the regex they replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ValidatorBenchmark {
+
+    /** Emails of 254 characters or more are rejected by length alone */
+    @Param({"16", "64", "253"})
+    private int length;
+
+    private String repeatedAtoms;
+
+    private String dottedAtoms;
+
+    private String longDomain;
+
+    private String password;
+
+    @Setup
+    public void setUp() {
+        repeatedAtoms = Adversarial.repeatedAtoms(length);
+        dottedAtoms = Adversarial.dottedAtoms(length);
+        longDomain = Adversarial.longDomain(length);
+        password = Adversarial.passwordWithoutSymbol(length * 16);
+    }
+
+    @Benchmark
+    public boolean emailRepeatedAtoms() {
+        return AccountValidator.isValidEmail(repeatedAtoms);
+    }
+
+    @Benchmark
+    public boolean emailDottedAtoms() {
+        return AccountValidator.isValidEmail(dottedAtoms);
+    }
+
+    @Benchmark
+    public boolean emailLongDomain() {
+        return AccountValidator.isValidEmail(longDomain);
+    }
+
+    @Benchmark
+    public boolean passwordWithoutSymbol() {
+        return AccountValidator.isValidPassword(password);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.blep.accounts.benchmarks;
+
+import dev.blep.accounts.util.AccountValidator;
+
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Fuzzes the email and password validators.
+ * Random inputs are checked against reference regexes of the same grammar, then adversarial inputs of doubling
+ * length are timed to confirm cost per character stays flat. Exits non-zero on any failure.
+ * Run with: gradle validatorFuzz
+ */
+public class ValidatorFuzz {
+
+    private static final Pattern REFERENCE_EMAIL =
+            Pattern.compile("[A-Za-z0-9_+-]+(?:\\.[A-Za-z0-9_+-]+)*@(?:[A-Za-z0-9-]+\\.)+[A-Za-z]{2,}");
+
+    private static final String EMAIL_ALPHABET = "aZ09_+-.@!";
+    private static final String PASSWORD_ALPHABET = "aZ09!. \t";
+
+    /** Largest allowed growth in cost per character between the shortest and longest adversarial input */
+    private static final double MAX_COST_GROWTH = 4.0;
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int failures = fuzzEmails(new Random(seed), 1000000) + fuzzPasswords(new Random(seed), 1000000);
+        failures += checkLinear("email", Adversarial::repeatedAtoms, AccountValidator::isValidEmail, 253);
+        failures += checkLinear("password", Adversarial::passwordWithoutSymbol, AccountValidator::isValidPassword, 1 << 20);
+        System.out.println(String.format("Seed %d: %d failures", seed, failures));
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int fuzzEmails(Random random, int inputs) {
+        int failures = 0;
+        for (int i = 0; i < inputs; i++) {
+            String email = randomString(random, EMAIL_ALPHABET, 24);
+            if (AccountValidator.isValidEmail(email) != REFERENCE_EMAIL.matcher(email).matches()) {
+                System.out.println("Email validator disagrees with reference on: " + email);
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static int fuzzPasswords(Random random, int inputs) {
+        int failures = 0;
+        for (int i = 0; i < inputs; i++) {
+            String password = randomString(random, PASSWORD_ALPHABET, 16);
+            boolean expected = password.length() >= 8
+                    && !Pattern.compile("\\s").matcher(password).find()
+                    && Pattern.compile("[A-Z]").matcher(password).find()
+                    && Pattern.compile("\\d").matcher(password).find()
+                    && Pattern.compile("[!.]").matcher(password).find();
+            if (AccountValidator.isValidPassword(password) != expected) {
+                System.out.println("Password validator disagrees with reference on: " + password);
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static int checkLinear(String name, IntFunction<String> input, Predicate<String> validator, int maxLength) {
+        int minLength = Math.max(16, maxLength >> 4);
+        double shortest = nanosPerChar(validator, input.apply(minLength));
+        double longest = nanosPerChar(validator, input.apply(maxLength));
+        System.out.println(String.format("%s: %.2f ns/char at %d, %.2f ns/char at %d",
+                name, shortest, minLength, longest, maxLength));
+        if (longest > shortest * MAX_COST_GROWTH) {
+            System.out.println(name + " validator cost grows faster than linearly");
+            return 1;
+        }
+        return 0;
+    }
+
+    private static double nanosPerChar(Predicate<String> validator, String input) {
+        // Warm up, then take the best of several runs
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 2000; run++) {
+            long start = System.nanoTime();
+            validator.test(input);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / input.length();
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
@@ -1,11 +1,21 @@
 package dev.blep.accounts;
 
 import dev.blep.accounts.config.SecurityProperties;
+import dev.blep.accounts.repositories.CollectionTransfer;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.actuate.autoconfigure.security.reactive.ReactiveManagementWebSecurityAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.ManagementWebSecurityAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.reactive.ReactiveSecurityAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.reactive.ReactiveUserDetailsServiceAutoConfiguration;
 import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ConfigurableApplicationContext;
 
 /**
  * Bootstraps the application.
@@ -14,16 +24,28 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 // Enable Lombok plugin and Annotation Processors in Intellij
 @Log4j2
 // can't seem to authenticate spring security. disabled for now
-@SpringBootApplication(exclude = { SecurityAutoConfiguration.class })
+@SpringBootApplication(exclude = { SecurityAutoConfiguration.class, ManagementWebSecurityAutoConfiguration.class,
+        ReactiveSecurityAutoConfiguration.class, ReactiveUserDetailsServiceAutoConfiguration.class,
+        ReactiveManagementWebSecurityAutoConfiguration.class,
+        // The reactive client is provided by ReactiveMongoConfig, from the same settings as the blocking one
+        MongoReactiveAutoConfiguration.class })
 @EnableConfigurationProperties(SecurityProperties.class)
 public class Application {
 
 
     /**
-     * Initializes the web server.
-     * @param args none
+     * Initializes the web server, or runs an export or import of a collection without one.
+     * @param args none to serve the API; see {@link CollectionTransfer} for export and import
      */
     public static void main(String[] args) {
+        if (args.length > 0 && CollectionTransfer.COMMANDS.contains(args[0])) {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                    .web(WebApplicationType.NONE)
+                    .profiles(CollectionTransfer.PROFILE)
+                    .run(args);
+            int exitCode = context.getBean(CollectionTransfer.class).run(context.getBean(ApplicationArguments.class));
+            System.exit(SpringApplication.exit(context, () -> exitCode));
+        }
         log.info("Starting application...");
         SpringApplication.run(Application.class, args);
     }
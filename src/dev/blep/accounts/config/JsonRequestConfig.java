@@ -0,0 +1,59 @@
+package dev.blep.accounts.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads JSON request bodies sent as text/plain or without a Content-Type, which clients could send while the
+ * endpoints took the body as a String. Spring treats a missing Content-Type as application/octet-stream.
+ * Responses are still written as application/json only.
+ */
+@Configuration
+public class JsonRequestConfig {
+
+    private static final List<MediaType> LEGACY_MEDIA_TYPES = Arrays.asList(MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM);
+
+    /** Replaces the converter Spring Boot would create from the same ObjectMapper */
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    public MappingJackson2HttpMessageConverter mappingJackson2HttpMessageConverter(ObjectMapper objectMapper) {
+        return new MappingJackson2HttpMessageConverter(objectMapper) {
+            @Override
+            protected boolean canRead(MediaType mediaType) {
+                return super.canRead(mediaType) || isLegacyMediaType(mediaType);
+            }
+        };
+    }
+
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+    public WebFluxConfigurer legacyMediaTypeWebFluxConfigurer(ObjectMapper objectMapper) {
+        return new WebFluxConfigurer() {
+            @Override
+            public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+                configurer.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper,
+                        MediaType.APPLICATION_JSON, new MediaType("application", "*+json"),
+                        MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM));
+            }
+        };
+    }
+
+    private static boolean isLegacyMediaType(MediaType mediaType) {
+        for (MediaType legacy : LEGACY_MEDIA_TYPES) {
+            if (legacy.includes(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
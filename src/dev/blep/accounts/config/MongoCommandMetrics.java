@@ -0,0 +1,58 @@
+package dev.blep.accounts.config;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.BsonValue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every MongoDB command by command name, collection and outcome, so each repository operation
+ * (find on accounts, update on accounts, find on sso_suites, ...) has its own latency distribution.
+ */
+public class MongoCommandMetrics implements CommandListener {
+
+    private final MeterRegistry meterRegistry;
+
+    /** Collection targeted by each in-flight command, keyed by request id; only started events carry the command */
+    private final Map<Integer, String> inFlightCollections = new ConcurrentHashMap<>();
+
+    public MongoCommandMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        // For CRUD commands the value of the command name field is the collection name
+        BsonValue collection = event.getCommand().get(event.getCommandName());
+        inFlightCollections.put(event.getRequestId(),
+                collection != null && collection.isString() ? collection.asString().getValue() : "none");
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        record(event.getRequestId(), event.getCommandName(), "SUCCESS", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        record(event.getRequestId(), event.getCommandName(), "FAILED", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    private void record(int requestId, String commandName, String status, long elapsedNanos) {
+        String collection = inFlightCollections.remove(requestId);
+        Timer.builder("mongodb.driver.commands")
+                .description("Time to run MongoDB commands")
+                .tag("command", commandName)
+                .tag("collection", collection == null ? "none" : collection)
+                .tag("status", status)
+                .register(meterRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+}
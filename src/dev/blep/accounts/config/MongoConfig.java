@@ -0,0 +1,112 @@
+package dev.blep.accounts.config;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the single MongoDB client shared by all repositories, so the process keeps one connection pool
+ * and one set of server monitors. The reactive client, when enabled, is built from the same settings.
+ * Not created under the memory profile, which stores accounts without MongoDB.
+ */
+@Configuration
+@Profile("!memory")
+public class MongoConfig {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Bean
+    public MongoClientSettings mongoClientSettings() {
+
+        String HOST = env.getProperty("spring.data.mongodb.host");
+        int PORT = env.getProperty("spring.data.mongodb.port", Integer.class, ServerAddress.defaultPort());
+        String USERNAME = env.getProperty("spring.data.mongodb.username");
+        String PASSWORD = env.getProperty("spring.data.mongodb.password");
+        String AUTH_SOURCE = env.getProperty("spring.data.mongodb.authentication-database");
+
+        // Default the pool to the number of request threads, so every Tomcat worker can hold a connection
+        int maxPoolSize = env.getProperty("app.mongodb.pool.maxSize", Integer.class,
+                env.getProperty("server.tomcat.threads.max", Integer.class, 200));
+        int minPoolSize = env.getProperty("app.mongodb.pool.minSize", Integer.class, 0);
+        long waitQueueTimeout = env.getProperty("app.mongodb.pool.waitQueueTimeoutMs", Long.class, 2000L);
+        long connectTimeout = env.getProperty("app.mongodb.connectTimeoutMs", Long.class, 10000L);
+        long socketTimeout = env.getProperty("app.mongodb.socketTimeoutMs", Long.class, 10000L);
+        long serverSelectionTimeout = env.getProperty("app.mongodb.serverSelectionTimeoutMs", Long.class, 5000L);
+
+        MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                .applyToClusterSettings(builder -> builder
+                        .hosts(Collections.singletonList(new ServerAddress(HOST, PORT)))
+                        .serverSelectionTimeout(serverSelectionTimeout, TimeUnit.MILLISECONDS))
+                .applyToConnectionPoolSettings(builder -> builder
+                        .maxSize(maxPoolSize)
+                        .minSize(minPoolSize)
+                        .maxWaitTime(waitQueueTimeout, TimeUnit.MILLISECONDS)
+                        .addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry)))
+                .applyToSocketSettings(builder -> builder
+                        .connectTimeout((int) connectTimeout, TimeUnit.MILLISECONDS)
+                        .readTimeout((int) socketTimeout, TimeUnit.MILLISECONDS))
+                .compressorList(getCompressors())
+                .addCommandListener(new MongoCommandMetrics(meterRegistry));
+
+        if (USERNAME != null && !USERNAME.isEmpty()) {
+            settings.credential(MongoCredential.createCredential(USERNAME, AUTH_SOURCE,
+                    Objects.requireNonNull(PASSWORD).toCharArray()));
+        }
+
+        return settings.build();
+    }
+
+    @Bean(destroyMethod = "close")
+    public MongoClient mongoClient(MongoClientSettings mongoClientSettings) {
+        return MongoClients.create(mongoClientSettings);
+    }
+
+    @Bean
+    public MongoDatabase mongoDatabase(MongoClient mongoClient) {
+        String DATABASE = env.getProperty("spring.data.mongodb.database");
+        return mongoClient.getDatabase(Objects.requireNonNull(DATABASE));
+    }
+
+    /** Compressors offered to the server, in order of preference */
+    private List<MongoCompressor> getCompressors() {
+        List<MongoCompressor> compressors = new ArrayList<>();
+        String[] names = env.getProperty("app.mongodb.compressors", String[].class, new String[0]);
+        for (String name : names) {
+            switch (name.trim().toLowerCase()) {
+                case "zstd":
+                    compressors.add(MongoCompressor.createZstdCompressor());
+                    break;
+                case "snappy":
+                    compressors.add(MongoCompressor.createSnappyCompressor());
+                    break;
+                case "zlib":
+                    compressors.add(MongoCompressor.createZlibCompressor());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported MongoDB compressor: " + name);
+            }
+        }
+        return compressors;
+    }
+}
@@ -0,0 +1,38 @@
+package dev.blep.accounts.config;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+
+import java.util.Objects;
+
+/**
+ * Provides the reactive streams MongoDB client used when the application runs as a reactive web application
+ * (spring.main.web-application-type=reactive).
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Profile("!memory")
+public class ReactiveMongoConfig {
+
+    @Autowired
+    private Environment env;
+
+    @Bean(destroyMethod = "close")
+    public MongoClient reactiveMongoClient(MongoClientSettings mongoClientSettings) {
+        return MongoClients.create(mongoClientSettings);
+    }
+
+    @Bean
+    public MongoDatabase reactiveMongoDatabase(MongoClient reactiveMongoClient) {
+        String DATABASE = env.getProperty("spring.data.mongodb.database");
+        return reactiveMongoClient.getDatabase(Objects.requireNonNull(DATABASE));
+    }
+}
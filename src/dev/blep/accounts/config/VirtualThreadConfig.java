@@ -0,0 +1,46 @@
+package dev.blep.accounts.config;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves requests on virtual threads instead of Tomcat's fixed pool of platform threads, so a request blocked on
+ * MongoDB no longer holds one of a few hundred workers. Enabled with app.server.virtualThreads=true.
+ * The build targets Java 11, so the executor is looked up reflectively and requires a Java 21 or later runtime.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.server.virtualThreads", havingValue = "true")
+@Log4j2
+public class VirtualThreadConfig {
+
+    /** Starts a new virtual thread per task. Also used to fork the independent lookups of a login */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService virtualThreadExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            log.info("Serving requests on virtual threads");
+            if (Runtime.version().feature() < 24) {
+                // The MongoDB driver and Tomcat block inside synchronized code, which pins carriers before JEP 491
+                log.warn("Virtual threads are pinned while blocked in synchronized code before Java 24; " +
+                        "run with -Djdk.tracePinnedThreads=full to check for pinning under load");
+            }
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("app.server.virtualThreads requires a Java 21 or later runtime, found "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer(ExecutorService virtualThreadExecutor) {
+        return protocolHandler -> protocolHandler.setExecutor(virtualThreadExecutor);
+    }
+}
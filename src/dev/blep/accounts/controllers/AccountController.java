@@ -1,28 +1,37 @@
 package dev.blep.accounts.controllers;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.entities.ApiResponse;
+import dev.blep.accounts.entities.SessionTokens;
 import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
 import dev.blep.accounts.services.Account;
 import dev.blep.accounts.services.SingleSignOnSuite;
 import lombok.extern.log4j.Log4j2;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.web.firewall.RequestRejectedException;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.*;
 
 import javax.naming.AuthenticationException;
-import java.util.HashMap;
-import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Provides an API for interaction with accounts.
+ * Request bodies are bound to {@link AccountRequest} and responses written as {@link ApiResponse} by the shared,
+ * auto-configured Jackson mapper. See {@link ReactiveAccountController} for the reactive web application.
  */
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @Log4j2
 public class AccountController {
 
@@ -33,155 +42,209 @@ public class AccountController {
     @Autowired
     private SingleSignOnSuite ssoSuite;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /** Carries the developer apiKey on requests whose body has no room for it */
+    static final String API_KEY_HEADER = "X-Api-Key";
+
     @CrossOrigin(origins = "*")
-    @RequestMapping(value = "/account/create", method = RequestMethod.POST)
-    public ResponseEntity createAccount(@RequestBody String requestBody) {
-        HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.set("Content-Type", "application/json");
-        Map<String, String> body = new HashMap<>();
+    @RequestMapping(value = "/account/create", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> createAccount(@RequestBody AccountRequest request) {
         String endpoint = "/account/create";
-        body.put("path", endpoint);
+        ApiResponse body = new ApiResponse(endpoint);
         try {
-            JsonNode requestBodyJN = getRequestBodyJsonNode(requestBody, body);
-            this.account.createAccount(requestBodyJN);
-            body.put("status", HttpStatus.OK.toString());
-            return ResponseEntity.status(HttpStatus.OK).headers(responseHeaders).body(new JSONObject(body).toString());
+            this.account.createAccount(request);
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
         } catch (BadRequestException e) {
-            body.put("status", HttpStatus.BAD_REQUEST.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
+        } catch (ServiceUnavailableException e) {
+            return serviceUnavailableResponse(body, e);
         } catch (Exception e) {
             // Should never execute
-            return genericExceptionResponse(body, responseHeaders, endpoint, e);
+            return genericExceptionResponse(body, endpoint, e);
         }
     }
 
+    /**
+     * Creates many accounts from a JSON array, or from newline delimited JSON (application/x-ndjson), of
+     * {@link AccountRequest}s. The body is read as a stream, so its size isn't bounded by memory. Since the body
+     * holds only accounts, the developer apiKey is sent in the X-Api-Key header.
+     */
     @CrossOrigin(origins = "*")
-    @RequestMapping(value = "/account/authenticate", method = RequestMethod.POST)
-    public ResponseEntity <String> authenticateAccount(@RequestBody String requestBody) {
-        HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.set("Content-Type", "application/json");
-        Map<String, String> body = new HashMap<>();
+    @RequestMapping(value = "/account/bulkCreate", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> bulkCreateAccounts(InputStream requestBody,
+                                                          @RequestHeader(value = API_KEY_HEADER, required = false) String apiKey) {
+        String endpoint = "/account/bulkCreate";
+        ApiResponse body = new ApiResponse(endpoint);
+        try {
+            this.account.checkDeveloperApiKey(apiKey);
+        } catch (BadRequestException e) {
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
+        }
+        // A root level array is read element by element, and so are whitespace separated values
+        try (MappingIterator<AccountRequest> requests = objectMapper.readerFor(AccountRequest.class).readValues(requestBody)) {
+            body.setResults(this.account.createAccounts(requests));
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
+        } catch (IOException e) {
+            return errorResponse(HttpStatus.BAD_REQUEST, body, new BadRequestException("Request body json is malformed"));
+        } catch (Exception e) {
+            // Should never execute
+            return genericExceptionResponse(body, endpoint, e);
+        }
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/authenticate", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> authenticateAccount(@RequestBody AccountRequest request, HttpServletRequest servletRequest) {
         String endpoint = "/account/authenticate";
-        body.put("path", endpoint);
+        ApiResponse body = new ApiResponse(endpoint);
         try {
-            JsonNode requestBodyJN = getRequestBodyJsonNode(requestBody, body);
-            String jwt = this.account.authenticateAndGetJwt(requestBodyJN);
-            body.put("jwt", jwt);
-            body.put("status", HttpStatus.OK.toString());
-            return ResponseEntity.status(HttpStatus.OK).headers(responseHeaders).body(new JSONObject(body).toString());
+            request.setClientAddress(servletRequest.getRemoteAddr());
+            SessionTokens tokens = this.account.authenticateAndGetJwt(request);
+            body.setJwt(tokens.getJwt());
+            body.setRefreshToken(tokens.getRefreshToken());
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
         } catch (BadRequestException e) {
-            body.put("status", HttpStatus.BAD_REQUEST.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
         } catch (AuthenticationException e) {
-            body.put("status", HttpStatus.UNAUTHORIZED.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.UNAUTHORIZED, body, e);
+        } catch (TooManyRequestsException e) {
+            return tooManyRequestsResponse(body, e);
+        } catch (ServiceUnavailableException e) {
+            return serviceUnavailableResponse(body, e);
         } catch (Exception e) {
             // Should never execute
-            return genericExceptionResponse(body, responseHeaders, endpoint, e);
+            return genericExceptionResponse(body, endpoint, e);
         }
     }
 
+    /** Reports the validity and claims of many JWTs, see {@link dev.blep.accounts.entities.IntrospectionResult} */
     @CrossOrigin(origins = "*")
-    @RequestMapping(value = "/account/signOut", method = RequestMethod.POST)
-    public ResponseEntity signOutAccount(@RequestBody String requestBody) {
-        HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.set("Content-Type", "application/json");
-        Map<String, String> body = new HashMap<>();
+    @RequestMapping(value = "/account/introspect/batch", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> introspectTokens(@RequestBody AccountRequest request) {
+        String endpoint = "/account/introspect/batch";
+        ApiResponse body = new ApiResponse(endpoint);
+        try {
+            body.setTokens(this.account.introspect(request));
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
+        } catch (BadRequestException e) {
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
+        } catch (Exception e) {
+            // Should never execute
+            return genericExceptionResponse(body, endpoint, e);
+        }
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/signOut", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> signOutAccount(@RequestBody AccountRequest request) {
         String endpoint = "/account/signOut";
-        body.put("path", endpoint);
+        ApiResponse body = new ApiResponse(endpoint);
         try {
-            JsonNode requestBodyJN = getRequestBodyJsonNode(requestBody, body);
-            this.account.signOut(requestBodyJN);
-            body.put("status", HttpStatus.OK.toString());
-            return ResponseEntity.status(HttpStatus.OK).headers(responseHeaders).body(new JSONObject(body).toString());
+            this.account.signOut(request);
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
         } catch (BadRequestException e) {
-            body.put("status", HttpStatus.BAD_REQUEST.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
         } catch (AuthenticationException e) {
-            body.put("status", HttpStatus.UNAUTHORIZED.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.UNAUTHORIZED, body, e);
         } catch (Exception e) {
             // Should never execute
-            return genericExceptionResponse(body, responseHeaders, endpoint, e);
+            return genericExceptionResponse(body, endpoint, e);
         }
     }
 
     @CrossOrigin(origins = "*")
-    @RequestMapping(value = "/account/changeType", method = RequestMethod.POST)
-    public ResponseEntity modifyAccount(@RequestBody String requestBody) {
-        HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.set("Content-Type", "application/json");
-        Map<String, String> body = new HashMap<>();
+    @RequestMapping(value = "/account/changeType", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> modifyAccount(@RequestBody AccountRequest request, HttpServletRequest servletRequest) {
         String endpoint = "/account/changeType";
-        body.put("path", endpoint);
+        ApiResponse body = new ApiResponse(endpoint);
         try {
-            JsonNode requestBodyJN = getRequestBodyJsonNode(requestBody, body);
-            String apiKey = this.account.changeAccountType(requestBodyJN);
-            body.put("apiKey", apiKey);
-            body.put("status", HttpStatus.OK.toString());
-            return ResponseEntity.status(HttpStatus.OK).headers(responseHeaders).body(new JSONObject(body).toString());
+            request.setClientAddress(servletRequest.getRemoteAddr());
+            String apiKey = this.account.changeAccountType(request);
+            body.setApiKey(apiKey);
+            body.setStatus(HttpStatus.OK.toString());
+            return ResponseEntity.status(HttpStatus.OK).body(body);
         } catch (BadRequestException e) {
-            body.put("status", HttpStatus.BAD_REQUEST.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
         } catch (AuthenticationException e) {
-            body.put("status", HttpStatus.UNAUTHORIZED.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.UNAUTHORIZED, body, e);
+        } catch (TooManyRequestsException e) {
+            return tooManyRequestsResponse(body, e);
+        } catch (ServiceUnavailableException e) {
+            return serviceUnavailableResponse(body, e);
         } catch (Exception e) {
             // Should never execute
-            return genericExceptionResponse(body, responseHeaders, endpoint, e);
+            return genericExceptionResponse(body, endpoint, e);
         }
     }
 
     @CrossOrigin(origins = "*")
-    @RequestMapping(value = "/sso-suite/create", method = RequestMethod.POST)
-    public ResponseEntity createSsoSuite(@RequestBody String requestBody) {
-        HttpHeaders responseHeaders = new HttpHeaders();
-        responseHeaders.set("Content-Type", "application/json");
-        Map<String, String> body = new HashMap<>();
+    @RequestMapping(value = "/sso-suite/create", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<ApiResponse> createSsoSuite(@RequestBody AccountRequest request, HttpServletRequest servletRequest) {
         String endpoint = "/sso-suite/create";
-        body.put("path", endpoint);
+        ApiResponse body = new ApiResponse(endpoint);
         try {
-            JsonNode requestBodyJN = getRequestBodyJsonNode(requestBody, body);
-            String ssoSuiteId = this.ssoSuite.createSsoSuite(requestBodyJN);
-            body.put("status", HttpStatus.OK.toString());
-            body.put("ssoSuiteId", ssoSuiteId);
-            return ResponseEntity.status(HttpStatus.OK).headers(responseHeaders).body(new JSONObject(body).toString());
+            request.setClientAddress(servletRequest.getRemoteAddr());
+            String ssoSuiteId = this.ssoSuite.createSsoSuite(request);
+            body.setStatus(HttpStatus.OK.toString());
+            body.setSsoSuiteId(ssoSuiteId);
+            return ResponseEntity.status(HttpStatus.OK).body(body);
         } catch (BadRequestException e) {
-            body.put("status", HttpStatus.BAD_REQUEST.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.BAD_REQUEST, body, e);
         } catch (AuthenticationException e) {
-            body.put("status", HttpStatus.UNAUTHORIZED.toString());
-            body.put("error", e.getLocalizedMessage());
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).headers(responseHeaders).body(new JSONObject(body).toString());
+            return errorResponse(HttpStatus.UNAUTHORIZED, body, e);
+        } catch (TooManyRequestsException e) {
+            return tooManyRequestsResponse(body, e);
+        } catch (ServiceUnavailableException e) {
+            return serviceUnavailableResponse(body, e);
         } catch (Exception e) {
             // Should never execute
-            return genericExceptionResponse(body, responseHeaders, endpoint, e);
+            return genericExceptionResponse(body, endpoint, e);
         }
     }
 
-    private JsonNode getRequestBodyJsonNode(String requestBody, Map<String, String> responseBody) throws BadRequestException {
-        Map<String, String> requestBodyMap;
-        try {
-            requestBodyMap = new ObjectMapper().readValue(requestBody, HashMap.class);
-            return new ObjectMapper().readTree(new JSONObject(requestBodyMap).toString());
-        } catch (Exception e) {
-            throw new BadRequestException("Request body json is malformed");
-        }
+    /** Bodies that aren't valid JSON, or don't fit {@link AccountRequest}, are rejected before reaching a handler */
+    @ExceptionHandler(HttpMessageNotReadableException.class)
+    public ResponseEntity<ApiResponse> malformedRequestResponse(HttpServletRequest request) {
+        ApiResponse body = new ApiResponse(request.getServletPath());
+        body.setStatus(HttpStatus.BAD_REQUEST.toString());
+        body.setError("Request body json is malformed");
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    private ResponseEntity<ApiResponse> errorResponse(HttpStatus status, ApiResponse responseBody, Exception e) {
+        responseBody.setStatus(status.toString());
+        responseBody.setError(e.getLocalizedMessage());
+        return ResponseEntity.status(status).body(responseBody);
+    }
+
+    private ResponseEntity<ApiResponse> serviceUnavailableResponse(ApiResponse responseBody, ServiceUnavailableException e) {
+        responseBody.setStatus(HttpStatus.SERVICE_UNAVAILABLE.toString());
+        responseBody.setError(e.getLocalizedMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(responseBody);
+    }
+
+    private ResponseEntity<ApiResponse> tooManyRequestsResponse(ApiResponse responseBody, TooManyRequestsException e) {
+        responseBody.setStatus(HttpStatus.TOO_MANY_REQUESTS.toString());
+        responseBody.setError(e.getLocalizedMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(responseBody);
     }
 
-    private ResponseEntity<String> genericExceptionResponse(Map<String, String> responseBody, HttpHeaders responseHeaders, String endpoint, Exception e) {
+    private ResponseEntity<ApiResponse> genericExceptionResponse(ApiResponse responseBody, String endpoint, Exception e) {
         log.info(String.format("Unforeseen error at %s: ", endpoint));
         e.printStackTrace();
-        responseBody.put("status", HttpStatus.INTERNAL_SERVER_ERROR.toString());
-        responseBody.put("error", "An unknown error occurred. Please report the steps to reproduce this issue to support@email.com");
-        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).headers(responseHeaders).body(new JSONObject(responseBody).toString());
+        responseBody.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.toString());
+        responseBody.setError("An unknown error occurred. Please report the steps to reproduce this issue to support@email.com");
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(responseBody);
     }
 }
@@ -0,0 +1,33 @@
+package dev.blep.accounts.controllers;
+
+import dev.blep.accounts.repositories.JwtKeyStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the public keys JWTs are signed with, so relying apps can verify tokens without calling
+ * /account/authenticate. Serves both the servlet and the reactive web application.
+ */
+@RestController
+public class JwksController {
+
+    @Autowired
+    private JwtKeyStore jwtKeyStore;
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/.well-known/jwks.json", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> getJwks() {
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.maxAge(jwtKeyStore.getJwksMaxAgeSeconds(), TimeUnit.SECONDS).cachePublic())
+                .body(jwtKeyStore.getKeyRing().getJwks());
+    }
+}
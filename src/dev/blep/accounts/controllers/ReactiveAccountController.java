@@ -0,0 +1,178 @@
+package dev.blep.accounts.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.entities.ApiResponse;
+import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
+import dev.blep.accounts.services.ReactiveAccount;
+import dev.blep.accounts.services.ReactiveSingleSignOnSuite;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Mono;
+
+import javax.naming.AuthenticationException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+/**
+ * Non-blocking counterpart of {@link AccountController}, serving the same endpoints and responses when the
+ * application runs as a reactive web application (spring.main.web-application-type=reactive).
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Log4j2
+public class ReactiveAccountController {
+
+    @Autowired
+    private ReactiveAccount account;
+
+    @Autowired
+    private ReactiveSingleSignOnSuite ssoSuite;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/create", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> createAccount(@RequestBody Mono<AccountRequest> request) {
+        ApiResponse body = new ApiResponse("/account/create");
+        return request.flatMap(this.account::createAccount)
+                .then(Mono.fromCallable(() -> okResponse(body)))
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    /** Unlike {@link AccountController}, the body is buffered in full before the accounts are read */
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/bulkCreate", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> bulkCreateAccounts(ServerHttpRequest request) {
+        ApiResponse body = new ApiResponse("/account/bulkCreate");
+        return this.account.checkDeveloperApiKey(request.getHeaders().getFirst(AccountController.API_KEY_HEADER))
+                .then(DataBufferUtils.join(request.getBody()))
+                .flatMap(buffer -> Mono.fromCallable(() -> objectMapper.readerFor(AccountRequest.class)
+                                .<AccountRequest>readValues(buffer.asInputStream(true)))
+                        .onErrorMap(e -> new BadRequestException("Request body json is malformed")))
+                .flatMap(this.account::createAccounts)
+                .defaultIfEmpty(Collections.emptyList())
+                .map(results -> {
+                    body.setResults(results);
+                    return okResponse(body);
+                })
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/authenticate", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> authenticateAccount(@RequestBody Mono<AccountRequest> request, ServerHttpRequest httpRequest) {
+        ApiResponse body = new ApiResponse("/account/authenticate");
+        return request.doOnNext(accountRequest -> accountRequest.setClientAddress(clientAddress(httpRequest)))
+                .flatMap(this.account::authenticateAndGetJwt)
+                .map(tokens -> {
+                    body.setJwt(tokens.getJwt());
+                    body.setRefreshToken(tokens.getRefreshToken());
+                    return okResponse(body);
+                })
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/introspect/batch", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> introspectTokens(@RequestBody Mono<AccountRequest> request) {
+        ApiResponse body = new ApiResponse("/account/introspect/batch");
+        return request.flatMap(this.account::introspect)
+                .map(tokens -> {
+                    body.setTokens(tokens);
+                    return okResponse(body);
+                })
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/signOut", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> signOutAccount(@RequestBody Mono<AccountRequest> request) {
+        ApiResponse body = new ApiResponse("/account/signOut");
+        return request.flatMap(this.account::signOut)
+                .then(Mono.fromCallable(() -> okResponse(body)))
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/account/changeType", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> modifyAccount(@RequestBody Mono<AccountRequest> request, ServerHttpRequest httpRequest) {
+        ApiResponse body = new ApiResponse("/account/changeType");
+        return request.doOnNext(accountRequest -> accountRequest.setClientAddress(clientAddress(httpRequest)))
+                .flatMap(this.account::changeAccountType)
+                .doOnNext(body::setApiKey)
+                .then(Mono.fromCallable(() -> okResponse(body)))
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    @CrossOrigin(origins = "*")
+    @RequestMapping(value = "/sso-suite/create", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<ResponseEntity<ApiResponse>> createSsoSuite(@RequestBody Mono<AccountRequest> request, ServerHttpRequest httpRequest) {
+        ApiResponse body = new ApiResponse("/sso-suite/create");
+        return request.doOnNext(accountRequest -> accountRequest.setClientAddress(clientAddress(httpRequest)))
+                .flatMap(this.ssoSuite::createSsoSuite)
+                .map(ssoSuiteId -> {
+                    body.setSsoSuiteId(ssoSuiteId);
+                    return okResponse(body);
+                })
+                .onErrorResume(e -> Mono.just(errorResponse(body, e)));
+    }
+
+    private static String clientAddress(ServerHttpRequest httpRequest) {
+        InetSocketAddress remoteAddress = httpRequest.getRemoteAddress();
+        return remoteAddress == null || remoteAddress.getAddress() == null ? null : remoteAddress.getAddress().getHostAddress();
+    }
+
+    private ResponseEntity<ApiResponse> okResponse(ApiResponse responseBody) {
+        responseBody.setStatus(HttpStatus.OK.toString());
+        return ResponseEntity.status(HttpStatus.OK).body(responseBody);
+    }
+
+    /** Maps each failure to the status {@link AccountController} uses for it */
+    private ResponseEntity<ApiResponse> errorResponse(ApiResponse responseBody, Throwable e) {
+        if (e instanceof BadRequestException) {
+            return errorResponse(HttpStatus.BAD_REQUEST, responseBody, e.getLocalizedMessage());
+        } else if (e instanceof ServerWebInputException) {
+            // Bodies that aren't valid JSON, or don't fit AccountRequest
+            return errorResponse(HttpStatus.BAD_REQUEST, responseBody, "Request body json is malformed");
+        } else if (e instanceof AuthenticationException) {
+            return errorResponse(HttpStatus.UNAUTHORIZED, responseBody, e.getLocalizedMessage());
+        } else if (e instanceof TooManyRequestsException) {
+            responseBody.setStatus(HttpStatus.TOO_MANY_REQUESTS.toString());
+            responseBody.setError(e.getLocalizedMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(((TooManyRequestsException) e).getRetryAfterSeconds()))
+                    .body(responseBody);
+        } else if (e instanceof ServiceUnavailableException) {
+            responseBody.setStatus(HttpStatus.SERVICE_UNAVAILABLE.toString());
+            responseBody.setError(e.getLocalizedMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(((ServiceUnavailableException) e).getRetryAfterSeconds()))
+                    .body(responseBody);
+        } else {
+            // Should never execute
+            log.info(String.format("Unforeseen error at %s: ", responseBody.getPath()));
+            e.printStackTrace();
+            return errorResponse(HttpStatus.INTERNAL_SERVER_ERROR, responseBody,
+                    "An unknown error occurred. Please report the steps to reproduce this issue to support@email.com");
+        }
+    }
+
+    private ResponseEntity<ApiResponse> errorResponse(HttpStatus status, ApiResponse responseBody, String error) {
+        responseBody.setStatus(status.toString());
+        responseBody.setError(error);
+        return ResponseEntity.status(status).body(responseBody);
+    }
+}
@@ -0,0 +1,32 @@
+package dev.blep.accounts.entities;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Request body accepted by the account and SSO suite endpoints.
+ * Each endpoint reads only the fields it needs; absent fields are null.
+ */
+@Data
+public class AccountRequest {
+
+    private String username;
+    private String email;
+    private String password;
+    private String type;
+    private String ssoSuiteId;
+    private String ssoSuiteName;
+    private String apiKey;
+    private String jwt;
+    private Boolean renew;
+    private String refreshToken;
+    /** Lifetime in seconds of the access JWTs of a new SSO suite */
+    private Long accessTokenTtl;
+    private List<String> jwts;
+
+    /** Address of the client that sent the request, set by the controller rather than read from the body */
+    @JsonIgnore
+    private String clientAddress;
+}
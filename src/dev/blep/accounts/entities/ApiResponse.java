@@ -0,0 +1,28 @@
+package dev.blep.accounts.entities;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Response body returned by the account and SSO suite endpoints. Unset fields are omitted.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ApiResponse {
+
+    private String path;
+    private String status;
+    private String error;
+    private String jwt;
+    private String refreshToken;
+    private String apiKey;
+    private String ssoSuiteId;
+    private List<BulkCreateResult> results;
+    private List<IntrospectionResult> tokens;
+
+    public ApiResponse(String path) {
+        this.path = path;
+    }
+}
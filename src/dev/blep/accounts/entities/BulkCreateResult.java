@@ -0,0 +1,22 @@
+package dev.blep.accounts.entities;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+/**
+ * Outcome of creating one account of a bulk request, identified by its position in the request.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkCreateResult {
+
+    private int index;
+    private String username;
+    private String status;
+    private String error;
+
+    public BulkCreateResult(int index, String username) {
+        this.index = index;
+        this.username = username;
+    }
+}
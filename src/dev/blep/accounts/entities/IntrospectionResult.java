@@ -0,0 +1,25 @@
+package dev.blep.accounts.entities;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+/**
+ * Validity and claims of one JWT of a batch introspection request, identified by its position in the request.
+ * Claims are included whenever the signature is valid, even if the token is inactive.
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class IntrospectionResult {
+
+    private int index;
+    private boolean active;
+    private String userId;
+    private String ssoSuiteId;
+    /** Expiry, in seconds since the epoch */
+    private Long exp;
+    private String error;
+
+    public IntrospectionResult(int index) {
+        this.index = index;
+    }
+}
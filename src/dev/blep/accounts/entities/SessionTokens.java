@@ -0,0 +1,14 @@
+package dev.blep.accounts.entities;
+
+import lombok.Data;
+
+/**
+ * Tokens returned by a successful authentication: the access JWT, and a refresh token when one was issued.
+ */
+@Data
+public class SessionTokens {
+
+    private final String jwt;
+    /** Null unless the request signed in or refreshed, and refresh tokens are enabled */
+    private final String refreshToken;
+}
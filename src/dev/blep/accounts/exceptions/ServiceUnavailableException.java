@@ -0,0 +1,16 @@
+package dev.blep.accounts.exceptions;
+
+public class ServiceUnavailableException extends Exception {
+
+    /** Seconds a client should wait before retrying, sent as the Retry-After header */
+    private final long retryAfterSeconds;
+
+    public ServiceUnavailableException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
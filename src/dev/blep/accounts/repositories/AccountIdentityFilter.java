@@ -0,0 +1,255 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import dev.blep.accounts.util.BloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bloom filter of every username and email, so logins for identities that don't exist are answered without a
+ * query. Built by streaming the accounts collection at startup, then kept current by adding accounts created by
+ * this instance and periodically scanning for accounts inserted since the newest one seen.
+ * Accounts with older ids, e.g. upserted by an import, are missed by those scans, so the filter is rebuilt when the
+ * collection holds more accounts than the scans have seen, and on a fixed interval to catch any the count hides.
+ * Accounts created on another instance are only found by that scan, so until it runs a login to one would be
+ * rejected; the filter is therefore disabled by default and should be enabled on a single instance, or where a
+ * refresh interval's delay before a new account can sign in elsewhere is acceptable.
+ */
+@Component
+@Profile("!transfer")
+@Log4j2
+public class AccountIdentityFilter {
+
+    @Autowired
+    private Environment env;
+
+    /** Absent under the memory profile, whose lookups are cheap enough not to need the filter */
+    @Autowired(required = false)
+    private MongoDatabase database;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final String COLLECTION_NAME = "accounts";
+    private static final String EMAIL_FIELD = "email";
+    private static final String USERNAME_FIELD = "username";
+    private static final int SCAN_BATCH_SIZE = 1000;
+    private static final long MIN_CAPACITY = 100000;
+
+    /** ObjectIds from other instances may be out of order by up to their clock skew, so scans overlap by this much */
+    private static final long WATERMARK_MARGIN_SECONDS = 60;
+
+    private boolean enabled;
+
+    private double falsePositiveRate;
+
+    private MongoCollection<Document> collection;
+
+    private ScheduledExecutorService refresher;
+
+    /** Null until the first build completes; until then every identity might exist */
+    private volatile BloomFilter filter;
+
+    /** A filter being rebuilt, which also receives adds so none are lost when it replaces the current one */
+    private volatile BloomFilter rebuilding;
+
+    /** Newest account id seen by a scan */
+    private volatile ObjectId watermark;
+
+    /** Accounts seen by the last rebuild and the scans since; only used by the refresher thread */
+    private long accountsSeen;
+
+    /** Ids the last scan saw within the margin of the watermark, which the next scan reads again */
+    private Set<ObjectId> overlapIds = Collections.emptySet();
+
+    private long rebuildIntervalNanos;
+
+    private long lastRebuildNanos;
+
+    private Counter skippedLookups;
+
+    private Counter queriedLookups;
+
+    @PostConstruct
+    public void init() {
+        this.enabled = env.getProperty("app.accounts.identityFilter.enabled", Boolean.class, false);
+        if (enabled && database == null) {
+            log.info("Ignoring app.accounts.identityFilter.enabled; accounts aren't stored in MongoDB");
+            this.enabled = false;
+        }
+        if (!enabled) {
+            return;
+        }
+        this.falsePositiveRate = env.getProperty("app.accounts.identityFilter.falsePositiveRate", Double.class, 0.01);
+        long refreshIntervalMs = env.getProperty("app.accounts.identityFilter.refreshIntervalMs", Long.class, 5000L);
+        this.rebuildIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                env.getProperty("app.accounts.identityFilter.rebuildIntervalMs", Long.class, TimeUnit.HOURS.toMillis(1)));
+        this.collection = database.getCollection(COLLECTION_NAME);
+
+        this.skippedLookups = Counter.builder("accounts.identity.filter").tag("result", "absent")
+                .description("Logins for unknown identities answered without a query").register(meterRegistry);
+        this.queriedLookups = Counter.builder("accounts.identity.filter").tag("result", "maybe")
+                .description("Logins the identity filter passed on to MongoDB").register(meterRegistry);
+        Gauge.builder("accounts.identity.filter.insertions", this,
+                identityFilter -> identityFilter.filter == null ? 0 : identityFilter.filter.getInsertions())
+                .register(meterRegistry);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "identity-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first run builds the filter; later runs scan for new accounts, rebuilding once it is saturated or stale
+        refresher.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /** Returns false only if no account has the username or email. Always true while disabled or building */
+    public boolean mightContain(String userIdField, String userId) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return true;
+        }
+        boolean mightContain = current.mightContain(userIdField + ':' + userId);
+        (mightContain ? queriedLookups : skippedLookups).increment();
+        return mightContain;
+    }
+
+    /** Records a new account. Call before inserting it, so a login racing the insert can't be turned away */
+    public void add(String username, String email) {
+        add(filter, username, email);
+        add(rebuilding, username, email);
+    }
+
+    private void refresh() {
+        try {
+            if (filter == null || filter.isSaturated()
+                    || (rebuildIntervalNanos > 0 && System.nanoTime() - lastRebuildNanos >= rebuildIntervalNanos)) {
+                rebuild();
+                return;
+            }
+            // Counted before the scan, so accounts inserted during it can't look missed
+            long accountCount = collection.estimatedDocumentCount();
+            ObjectId since = watermark;
+            Bson newAccounts = since == null ? new Document()
+                    : Filters.gt("_id", new ObjectId(String.format("%08x%016x",
+                            Math.max(0, since.getTimestamp() - WATERMARK_MARGIN_SECONDS), 0)));
+            accountsSeen += scan(filter, newAccounts);
+            if (accountCount > accountsSeen) {
+                log.info(String.format("Rebuilding account identity filter; %d accounts weren't seen by its scans",
+                        accountCount - accountsSeen));
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to refresh the account identity filter: ", e);
+        }
+    }
+
+    private void rebuild() {
+        long startTime = System.nanoTime();
+        // Two identities per account, with room for the collection to double before the next rebuild
+        long expected = Math.max(MIN_CAPACITY, collection.estimatedDocumentCount() * 2 * 2);
+        BloomFilter next = new BloomFilter(expected, falsePositiveRate);
+        this.rebuilding = next;
+        // With no watermark or remembered ids the scan counts every account, as does the next one if this fails
+        this.watermark = null;
+        this.overlapIds = Collections.emptySet();
+        this.accountsSeen = 0;
+        this.accountsSeen = scan(next, new Document());
+        this.lastRebuildNanos = System.nanoTime();
+        this.filter = next;
+        this.rebuilding = null;
+        log.info(String.format("Built account identity filter with %d entries, sized for %d, in %d ms",
+                next.getInsertions(), expected, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    }
+
+    /**
+     * Adds the identities of every matching account, advancing the watermark to the newest id seen.
+     * Returns the number of accounts no earlier scan has counted: scans overlap, so accounts in the overlap that an
+     * earlier scan already saw are remembered and skipped.
+     */
+    private long scan(BloomFilter target, Bson accounts) {
+        ObjectId newest = watermark;
+        Set<ObjectId> seen = new HashSet<>();
+        int pruneAt = SCAN_BATCH_SIZE;
+        long newAccounts = 0;
+        for (Document accountDoc : collection.find(accounts)
+                .projection(Projections.include(USERNAME_FIELD, EMAIL_FIELD))
+                .batchSize(SCAN_BATCH_SIZE)) {
+            add(target, accountDoc.getString(USERNAME_FIELD), accountDoc.getString(EMAIL_FIELD));
+            Object id = accountDoc.get("_id");
+            if (!(id instanceof ObjectId)) {
+                newAccounts++;
+                continue;
+            }
+            ObjectId objectId = (ObjectId) id;
+            if (!overlapIds.contains(objectId)) {
+                newAccounts++;
+            }
+            if (newest == null || objectId.compareTo(newest) > 0) {
+                newest = objectId;
+            }
+            if (inOverlap(objectId, newest)) {
+                seen.add(objectId);
+                if (seen.size() > pruneAt) {
+                    pruneOverlap(seen, newest);
+                    pruneAt = Math.max(SCAN_BATCH_SIZE, seen.size() * 2);
+                }
+            }
+        }
+        if (newest != null) {
+            pruneOverlap(seen, newest);
+        }
+        this.overlapIds = seen;
+        this.watermark = newest;
+        return newAccounts;
+    }
+
+    /** Whether the next scan after one that saw newest will read the account again */
+    private static boolean inOverlap(ObjectId id, ObjectId newest) {
+        return id.getTimestamp() >= newest.getTimestamp() - WATERMARK_MARGIN_SECONDS;
+    }
+
+    private static void pruneOverlap(Set<ObjectId> ids, ObjectId newest) {
+        ids.removeIf(id -> !inOverlap(id, newest));
+    }
+
+    private static void add(BloomFilter target, String username, String email) {
+        if (target == null) {
+            return;
+        }
+        if (username != null) {
+            target.add(USERNAME_FIELD + ':' + username);
+        }
+        if (email != null) {
+            target.add(EMAIL_FIELD + ':' + email);
+        }
+    }
+}
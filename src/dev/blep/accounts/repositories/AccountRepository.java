@@ -1,41 +1,48 @@
 package dev.blep.accounts.repositories;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
 import dev.blep.accounts.entities.AccountEntity;
+import dev.blep.accounts.entities.IntrospectionResult;
+import dev.blep.accounts.entities.SessionTokens;
 import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import dev.blep.accounts.util.PasswordHasher;
+import dev.blep.accounts.util.RefreshToken;
+import dev.blep.accounts.util.TokenRevocationList;
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
 import io.jsonwebtoken.SignatureException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.core.env.Environment;
-import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.PostConstruct;
 import javax.naming.AuthenticationException;
 import java.lang.reflect.Field;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import static com.mongodb.client.model.Updates.set;
-import static dev.blep.accounts.repositories.Repository.fieldValueExists;
+import static com.mongodb.client.model.Updates.unset;
 import static dev.blep.accounts.repositories.Repository.getFieldValue;
 import static dev.blep.accounts.util.AccountValidator.*;
 
 /**
- * Database interaction
+ * Database interaction. Accounts are read and written through the {@link AccountStore}
  */
 @Repository
 @Log4j2
@@ -47,167 +54,608 @@ public class AccountRepository {
     @Autowired
     private SsoSuiteRepository ssoSuiteRepository;
 
-    private String SECRET_KEY;
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private TokenRevocationList revocationList;
+
+    @Autowired
+    private AccountStore accountStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private AccountIdentityFilter identityFilter;
 
-    private MongoCollection<Document> collection;
+    @Autowired
+    private JwtKeyStore jwtKeyStore;
+
+    @Autowired
+    private SsoSuiteCache ssoSuiteCache;
+
+    /** Present when requests are served on virtual threads; see {@link dev.blep.accounts.config.VirtualThreadConfig} */
+    @Autowired(required = false)
+    @Qualifier("virtualThreadExecutor")
+    private ExecutorService virtualThreadExecutor;
+
+    private Timer jwtSignTimer;
+
+    private Timer jwtVerifyTimer;
+
+    /** Validate JWTs locally against the revocation list instead of the stored session */
+    private boolean statelessVerification;
+
+    /** Lifetime of refresh tokens; 0 disables them */
+    private long refreshTokenTtlSeconds;
+
+    /** Refresh tokens kept per account and suite, e.g. one per device; signing in again replaces the oldest */
+    private int refreshTokensPerSuite;
 
-    private static final String COLLECTION_NAME = "accounts";
     private static final String EMAIL_FIELD = "email";
     private static final String USERNAME_FIELD = "username";
     private static final String PASSWORD_FIELD = "password";
     private static final String TYPE_FIELD = "type";
     private static final String SSO_FIELD = "ssoSuiteJwt";
+    /** Maps suite id to the SHA-256 of each refresh token to its REFRESH_USER_ID and REFRESH_EXPIRY */
+    static final String REFRESH_FIELD = "refreshTokens";
+    private static final String REFRESH_USER_ID = "userId";
+    private static final String REFRESH_EXPIRY = "exp";
+
+    /** Batches at least this large have their signatures verified in parallel */
+    private static final int PARALLEL_VERIFICATION_THRESHOLD = 32;
+
+    /** Fields needed to authenticate an account and update its type or sessions */
+    private static final String[] ACCOUNT_FIELDS = { PASSWORD_FIELD, TYPE_FIELD, SSO_FIELD, REFRESH_FIELD };
+
+    static final String SSO_SUITE_NOT_REGISTERED = "The SSO suite specified has not been registered. To register a " +
+            "SSO suite a developer account can use the /sso-suite/create endpoint";
+
+    /** Fields needed to match JWTs to the sessions of the accounts they were issued to */
+    static final String[] SESSION_OWNER_FIELDS = { USERNAME_FIELD, EMAIL_FIELD, SSO_FIELD };
 
     @PostConstruct
     public void init() {
 
-        this.SECRET_KEY = env.getProperty("app.security.jwtSecret");
-        String HOST = env.getProperty("spring.data.mongodb.host");
-        String PORT = env.getProperty("spring.data.mongodb.port");
-        String DATABASE = env.getProperty("spring.data.mongodb.database");
-        String USERNAME = env.getProperty("spring.data.mongodb.username");
-        String PASSWORD = env.getProperty("spring.data.mongodb.password");
-        String AUTH_SOURCE = env.getProperty("spring.data.mongodb.authentication-database");
-        MongoClient mongoClient = MongoClients.create("mongodb://" + USERNAME + ":" + URLEncoder.encode(PASSWORD, StandardCharsets.UTF_8) + "@" + HOST + ":" + PORT + "/?authSource=" + AUTH_SOURCE);
-        System.out.print("mongodb://" + USERNAME + ":" + URLEncoder.encode(PASSWORD, StandardCharsets.UTF_8) + "@" + HOST + ":" + PORT + "/?authSource=" + AUTH_SOURCE);
-        MongoDatabase db = mongoClient.getDatabase(Objects.requireNonNull(DATABASE));
-        this.collection = db.getCollection(COLLECTION_NAME);
+        this.statelessVerification = env.getProperty("app.security.statelessVerification", Boolean.class, false);
+        this.refreshTokenTtlSeconds = env.getProperty("app.security.refreshTokenTtlSeconds", Long.class, TimeUnit.DAYS.toSeconds(30));
+        this.refreshTokensPerSuite = Math.max(1, env.getProperty("app.security.refreshTokensPerSuite", Integer.class, 10));
+        this.jwtSignTimer = Timer.builder("jwt.sign").description("Time to sign a JWT").register(meterRegistry);
+        this.jwtVerifyTimer = Timer.builder("jwt.verify").description("Time to verify a JWT signature and expiry").register(meterRegistry);
+        Gauge.builder("jwt.revocations", revocationList, TokenRevocationList::size)
+                .description("Sign-outs held in the in-memory revocation list").register(meterRegistry);
     }
 
     public void createAccount(String username, String email, String hashedPassword, String accountType) throws BadRequestException {
 
-        Document doc = new Document(EMAIL_FIELD, email)
+        identityFilter.add(username, email);
+        accountStore.insert(newAccountDocument(username, email, hashedPassword, accountType));
+
+    }
+
+    /**
+     * Inserts accounts, whose passwords are already hashed, independently so a duplicate doesn't stop the rest.
+     * Returns the error for each account that wasn't inserted, keyed by its position in the list.
+     */
+    public Map<Integer, Exception> createAccounts(List<AccountEntity> accounts) {
+        List<Document> docs = new ArrayList<>(accounts.size());
+        for (AccountEntity account : accounts) {
+            identityFilter.add(account.getUsername(), account.getEmail());
+            docs.add(newAccountDocument(account.getUsername(), account.getEmail(), account.getPassword(), account.getType()));
+        }
+        return accountStore.insertAll(docs);
+    }
+
+    private static Document newAccountDocument(String username, String email, String hashedPassword, String accountType) {
+        return new Document(EMAIL_FIELD, email)
                 .append(USERNAME_FIELD, username)
                 .append(PASSWORD_FIELD, hashedPassword)
                 .append(TYPE_FIELD, accountType)
-                .append(SSO_FIELD, new JSONObject().toString());
+                .append(SSO_FIELD, new Document());
+    }
 
-        if (fieldValueExists(collection, USERNAME_FIELD, username)) {
-            throw new BadRequestException(String.format("An account with the username '%s' already exists",
-                    username));
-        } else if (fieldValueExists(collection, EMAIL_FIELD, email)) {
-            throw new BadRequestException(String.format("An account with the email '%s' already exists",
+    /** The error for an account whose username or email, as named by clashingField, is already taken */
+    static BadRequestException duplicateAccountException(String clashingField, String username, String email) {
+        if (clashingField.equals(EMAIL_FIELD)) {
+            return new BadRequestException(String.format("An account with the email '%s' already exists",
                     email));
         } else {
-            collection.insertOne(doc);
+            return new BadRequestException(String.format("An account with the username '%s' already exists",
+                    username));
         }
-
     }
 
-    public String loginAndGetJwt(String userIdField, String userId, String password, String ssoSuiteId) throws BadRequestException, AuthenticationException {
-
-        verifyCredentials(userIdField, userId, password);
-
-        Document accountDoc = collection.find(Filters.eq(userIdField, userId)).first();
-        JSONObject ssoSuiteJwtJson = getSsoSuiteJwtJson(accountDoc);
+    /**
+     * Signs in to a suite, returning the account's current JWT for it if unexpired or a new one otherwise, and a
+     * new refresh token. Both are stored with one update.
+     */
+    public SessionTokens loginAndGetJwt(String userIdField, String userId, String password, String ssoSuiteId) throws BadRequestException, AuthenticationException, ServiceUnavailableException {
+        return issueSessionTokens(login(userIdField, userId, password, ssoSuiteId));
+    }
 
-        if (!ssoSuiteRepository.ssoSuiteExists(ssoSuiteId)) {
-            throw new BadRequestException("The SSO suite specified has not been registered. To register a " +
-                    "SSO suite a developer account can use the /sso-suite/create endpoint");
-        }
-        String dbJwt;
+    /**
+     * Checks the password and picks the JWT to return: the account's current one for the suite if unexpired, or a
+     * new one. Nothing is stored until {@link #issueSessionTokens}, so concurrent identical logins can share one
+     * Login and still each get their own refresh token.
+     */
+    public Login login(String userIdField, String userId, String password, String ssoSuiteId) throws BadRequestException, AuthenticationException, ServiceUnavailableException {
+
+        // On virtual threads the suite lookup runs alongside authentication, and is abandoned if authentication fails.
+        // It isn't interrupted: interrupting a virtual thread blocked on a socket closes the pooled connection
+        Future<Long> ssoSuiteLookup = virtualThreadExecutor == null ? null
+                : virtualThreadExecutor.submit(() -> ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId));
+        Document accountDoc;
         try {
-            dbJwt = ssoSuiteJwtJson.get(ssoSuiteId).toString();
-        } catch (JSONException e) {
-            dbJwt = null;
+            accountDoc = authenticate(userIdField, userId, password);
+        } catch (Exception e) {
+            if (ssoSuiteLookup != null) {
+                ssoSuiteLookup.cancel(false);
+            }
+            throw e;
+        }
+        Document sessions = getSessions(accountDoc);
+
+        Long accessTokenTtl = getAccessTokenTtl(ssoSuiteLookup, ssoSuiteId);
+        if (accessTokenTtl == null) {
+            throw new BadRequestException(SSO_SUITE_NOT_REGISTERED);
         }
+        String dbJwt = getFieldValue(sessions, ssoSuiteId);
 
         // if the user is already signed in and jwt is unexpired, return jwt
+        String jwt = null;
         if (dbJwt != null && !dbJwt.isEmpty()) {
             try {
-                jwtIsValid(dbJwt, SECRET_KEY);
-                return dbJwt;
-            } catch (ExpiredJwtException e) {}
+                if (!isRevoked(verifyJwt(dbJwt))) {
+                    jwt = dbJwt;
+                }
+            } catch (ExpiredJwtException | AuthenticationException e) {
+                // Expired, or signed with a key that has since been removed
+            }
         }
         // if user wasn't signed in or their database jwt expired, sign in and return new jwt
-        String newJwt = generateJwt(SECRET_KEY, userId, ssoSuiteId);
-        ssoSuiteJwtJson.put(ssoSuiteId, newJwt);
-        collection.updateOne(accountDoc, set(SSO_FIELD, ssoSuiteJwtJson.toString()));
-        return newJwt;
+        if (jwt == null) {
+            return new Login(accountDoc, userId, ssoSuiteId, signJwt(userId, ssoSuiteId, accessTokenTtl), true);
+        }
+        return new Login(accountDoc, userId, ssoSuiteId, jwt, false);
+    }
+
+    /**
+     * Issues a new refresh token for the login, and stores it with the login's JWT if that is new, in one update.
+     * Every caller sharing a login stores the same JWT, so each has it stored before it is returned.
+     */
+    public SessionTokens issueSessionTokens(Login login) {
+        List<Bson> updates = login.getUpdates();
+        String refreshToken = issueRefreshToken(login.accountDoc, login.userId, login.ssoSuiteId, updates);
+        if (!updates.isEmpty()) {
+            accountStore.update(login.accountDoc.getObjectId("_id"), Updates.combine(updates));
+        }
+        return new SessionTokens(login.jwt, refreshToken);
     }
 
-    private JSONObject getSsoSuiteJwtJson(Document accountDoc) {
-        // Initialized during account creation. Will never be null
-        Map<String, String> result = null;
+    /**
+     * An account authenticated for a suite, and the JWT it gets, before a refresh token is issued. Refresh tokens
+     * are single use, so unlike the login they can't be shared.
+     */
+    public static final class Login {
+
+        private final Document accountDoc;
+
+        private final String userId;
+
+        private final String ssoSuiteId;
+
+        private final String jwt;
+
+        /** Whether the JWT was signed by this login and still needs to be stored */
+        private final boolean newJwt;
+
+        Login(Document accountDoc, String userId, String ssoSuiteId, String jwt, boolean newJwt) {
+            this.accountDoc = accountDoc;
+            this.userId = userId;
+            this.ssoSuiteId = ssoSuiteId;
+            this.jwt = jwt;
+            this.newJwt = newJwt;
+        }
+
+        Document getAccountDoc() {
+            return accountDoc;
+        }
+
+        String getUserId() {
+            return userId;
+        }
+
+        String getSsoSuiteId() {
+            return ssoSuiteId;
+        }
+
+        String getJwt() {
+            return jwt;
+        }
+
+        /** Returns a new list holding the update storing the JWT, if it is new */
+        List<Bson> getUpdates() {
+            List<Bson> updates = new ArrayList<>();
+            if (newJwt) {
+                updates.add(set(SSO_FIELD + "." + ssoSuiteId, jwt));
+            }
+            return updates;
+        }
+    }
+
+    /** Waits for a suite lookup forked by {@link #loginAndGetJwt}, or looks the suite up now if none was forked */
+    private Long getAccessTokenTtl(Future<Long> ssoSuiteLookup, String ssoSuiteId) throws BadRequestException {
+        if (ssoSuiteLookup == null) {
+            return ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId);
+        }
         try {
-            result = new ObjectMapper().readValue(accountDoc.get(SSO_FIELD).toString(), HashMap.class);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+            return ssoSuiteLookup.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BadRequestException) {
+                throw (BadRequestException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            ssoSuiteLookup.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
         }
-        return new JSONObject(result);
     }
 
-    public void verifyCredentials(String userIdField, String userId, String inputPassword) throws AuthenticationException {
-        if (!fieldValueExists(collection, userIdField, userId)) {
+    /** Returns the lifetime in seconds of the suite's access JWTs, failing if the suite isn't registered */
+    private long getAccessTokenTtl(String ssoSuiteId) throws BadRequestException {
+        Long accessTokenTtl = ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId);
+        if (accessTokenTtl == null) {
+            throw new BadRequestException(SSO_SUITE_NOT_REGISTERED);
+        }
+        return accessTokenTtl;
+    }
+
+    /**
+     * Exchanges a refresh token for a new access JWT and a new refresh token with the same expiry. The used token
+     * is removed in the same update, conditional on it still being stored, so each token is redeemed only once.
+     */
+    public SessionTokens refresh(String refreshToken) throws AuthenticationException, BadRequestException {
+        RefreshToken token = RefreshToken.parse(refreshToken);
+        if (token == null) {
+            throw new AuthenticationException("The refresh token provided is invalid");
+        }
+        Document accountDoc = accountStore.findById(token.getAccountId(), refreshTokenField(token));
+        Document entry = getLiveRefreshToken(accountDoc, token);
+        if (entry == null) {
+            throw new AuthenticationException("The refresh token provided is invalid, expired or signed out. " +
+                    "Sign in using the web app");
+        }
+
+        String jwt = signJwt(entry.getString(REFRESH_USER_ID), token.getSsoSuiteId(), getAccessTokenTtl(token.getSsoSuiteId()));
+        RefreshToken next = RefreshToken.issue(token.getAccountId(), token.getSsoSuiteId());
+        if (!accountStore.updateIfExists(token.getAccountId(), refreshTokenField(token), rotateRefreshToken(token, next, entry, jwt))) {
+            throw new AuthenticationException("The refresh token provided has already been used");
+        }
+        return new SessionTokens(jwt, next.toString());
+    }
+
+    /**
+     * Adds the updates storing a new refresh token for the suite, and returns the token, or null if refresh tokens
+     * are disabled. The suite's expired tokens, and its oldest beyond app.security.refreshTokensPerSuite, are
+     * removed by the same updates, so an account's tokens stay bounded.
+     */
+    String issueRefreshToken(Document accountDoc, String userId, String ssoSuiteId, List<Bson> updates) {
+        if (refreshTokenTtlSeconds <= 0) {
+            return null;
+        }
+        String suiteField = REFRESH_FIELD + "." + ssoSuiteId;
+        Object refreshTokens = accountDoc.get(REFRESH_FIELD);
+        Object stored = refreshTokens instanceof Document ? ((Document) refreshTokens).get(ssoSuiteId) : null;
+        if (stored instanceof Document) {
+            Date now = new Date();
+            List<Map.Entry<String, Date>> live = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : ((Document) stored).entrySet()) {
+                Date expiry = getRefreshTokenExpiry(entry.getValue());
+                if (expiry == null || !expiry.after(now)) {
+                    updates.add(unset(suiteField + "." + entry.getKey()));
+                } else {
+                    live.add(new AbstractMap.SimpleEntry<>(entry.getKey(), expiry));
+                }
+            }
+            // Every token of a suite has the same lifetime, so the first to expire is the oldest. Logins sharing a
+            // Login prune from the same read, so the suite may briefly hold one extra token per concurrent caller
+            live.sort(Map.Entry.comparingByValue());
+            for (int i = 0; i <= live.size() - refreshTokensPerSuite; i++) {
+                updates.add(unset(suiteField + "." + live.get(i).getKey()));
+            }
+        }
+
+        RefreshToken token = RefreshToken.issue(accountDoc.getObjectId("_id"), ssoSuiteId);
+        updates.add(set(refreshTokenField(token), new Document(REFRESH_USER_ID, userId)
+                .append(REFRESH_EXPIRY, new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(refreshTokenTtlSeconds)))));
+        return token.toString();
+    }
+
+    static String refreshTokenField(RefreshToken token) {
+        return REFRESH_FIELD + "." + token.getSsoSuiteId() + "." + token.getHash();
+    }
+
+    /** Returns the stored entry of an unexpired token, or null */
+    static Document getLiveRefreshToken(Document accountDoc, RefreshToken token) {
+        if (accountDoc == null) {
+            return null;
+        }
+        Object entry = accountDoc.getEmbedded(Arrays.asList(REFRESH_FIELD, token.getSsoSuiteId(), token.getHash()), Object.class);
+        Date expiry = getRefreshTokenExpiry(entry);
+        return expiry != null && expiry.after(new Date()) ? (Document) entry : null;
+    }
+
+    static Date getRefreshTokenExpiry(Object entry) {
+        if (!(entry instanceof Document)) {
+            return null;
+        }
+        Object expiry = ((Document) entry).get(REFRESH_EXPIRY);
+        return expiry instanceof Date ? (Date) expiry : null;
+    }
+
+    /** Replaces the used token with the next, keeping its expiry, and stores the new JWT as the suite's session */
+    static Bson rotateRefreshToken(RefreshToken used, RefreshToken next, Document entry, String jwt) {
+        return Updates.combine(
+                unset(refreshTokenField(used)),
+                set(refreshTokenField(next), entry),
+                set(SSO_FIELD + "." + used.getSsoSuiteId(), jwt));
+    }
+
+    /**
+     * Returns the account's map of SSO suite id to JWT.
+     * Sessions stored as a JSON string, before they were a subdocument, have already been converted by the store.
+     */
+    private static Document getSessions(Document accountDoc) {
+        Object sessions = accountDoc.get(SSO_FIELD);
+        return sessions instanceof Document ? (Document) sessions : new Document();
+    }
+
+    /** Parses a JSON string encoded session map, dropping signed out (empty) entries */
+    static Document parseLegacySessions(String sessions) {
+        Document converted = new Document();
+        if (sessions.isEmpty()) {
+            return converted;
+        }
+        Document.parse(sessions).forEach((ssoSuiteId, jwt) -> {
+            if (jwt instanceof String && !((String) jwt).isEmpty()) {
+                converted.append(ssoSuiteId, jwt);
+            }
+        });
+        return converted;
+    }
+
+    public void verifyCredentials(String userIdField, String userId, String inputPassword) throws AuthenticationException, ServiceUnavailableException {
+        authenticate(userIdField, userId, inputPassword);
+    }
+
+    /**
+     * Loads the account with a single projected query and checks the password against it.
+     * Returns the account document so callers can reuse it rather than querying again.
+     */
+    private Document authenticate(String userIdField, String userId, String inputPassword) throws AuthenticationException, ServiceUnavailableException {
+        Document accountDoc = identityFilter.mightContain(userIdField, userId) ? findAccount(userIdField, userId) : null;
+        if (accountDoc == null) {
             if (userIdField.equals("email")) {
                 throw new AuthenticationException(String.format("An account with the email '%s' doesn't exist", userId));
-            } else if (userIdField.equals("username")) {
+            } else {
                 throw new AuthenticationException(String.format("An account with the username '%s' doesn't exist", userId));
             }
         }
 
         // If the account exists, as ensured above, it will always have an associated password
-        if (!BCrypt.checkpw(inputPassword, getFieldValue(collection, "password", userIdField, userId))) {
+        String hashedPassword = getFieldValue(accountDoc, PASSWORD_FIELD);
+        if (!passwordHasher.matches(inputPassword, hashedPassword)) {
             throw new AuthenticationException("The password provided is incorrect");
         }
+
+        // Converge stored hashes to this node's cost. Only replace the hash that was verified
+        if (passwordHasher.needsRehash(hashedPassword)) {
+            ObjectId accountId = accountDoc.getObjectId("_id");
+            passwordHasher.rehashInBackground(inputPassword, rehashedPassword ->
+                    accountStore.updateIfEquals(accountId, PASSWORD_FIELD, hashedPassword, set(PASSWORD_FIELD, rehashedPassword)));
+        }
+        return accountDoc;
+    }
+
+    private Document findAccount(String userIdField, String userId) {
+        return accountStore.findByIdentity(userIdField, userId, ACCOUNT_FIELDS);
+    }
+
+    /** Finds the account a token was issued to; see {@link #getFallbackUserIdField} */
+    private Document findTokenOwner(String userIdField, String userId) throws AuthenticationException {
+        Document accountDoc = findAccount(userIdField, userId);
+        String fallbackUserIdField = getFallbackUserIdField(userIdField, userId);
+        if (accountDoc == null && fallbackUserIdField != null) {
+            accountDoc = findAccount(fallbackUserIdField, userId);
+        }
+        if (accountDoc == null) {
+            throw new AuthenticationException("The account associated with the provided JWT doesn't exist");
+        }
+        return accountDoc;
     }
 
     public String verifyJwtAndGetJwt(String jwt, boolean renew) throws AuthenticationException, BadRequestException {
 
-        Map<String, String> userInfoMap;
-        try {
-            userInfoMap = getUserInfo(jwt);
-        } catch (ExpiredJwtException e) {
-            // handled by calling function
-            throw e;
+        if (statelessVerification && !renew) {
+            return verifyJwtStateless(jwt);
         }
+
+        // ExpiredJwtException is handled by calling function
+        Claims claims = verifyJwt(jwt);
+        Map<String, String> userInfoMap = getUserInfo(claims);
         String userIdField = userInfoMap.get("userIdField");
         String userId = userInfoMap.get("userId");
         String ssoSuiteId = userInfoMap.get("ssoSuiteId");
 
-        Document accountDoc = collection.find(Filters.eq(userIdField, userId)).first();
-        JSONObject ssoSuiteJwtJson = getSsoSuiteJwtJson(accountDoc);
-        String expireTime = new JSONObject(getJwtPayload(jwt)).get("exp").toString();
-        String dbJwt;
-        try {
-            dbJwt = ssoSuiteJwtJson.get(ssoSuiteId).toString();
-        } catch (JSONException e) {
-            dbJwt = null;
-        }
+        Document accountDoc = findTokenOwner(userIdField, userId);
+        Document sessions = getSessions(accountDoc);
+        long expireTime = claims.getExpiration().getTime() / 1000;
+        String dbJwt = getFieldValue(sessions, ssoSuiteId);
 
         // if user account associated with query jwt is signed in
         if (dbJwt != null && !dbJwt.isEmpty()) {
+            if (renew) {
+                 if (expireTime - Instant.now().getEpochSecond() <= 30) {
+                     String newJwt = signJwt(userId, ssoSuiteId, getAccessTokenTtl(ssoSuiteId));
+                     accountStore.update(accountDoc.getObjectId("_id"), set(SSO_FIELD + "." + ssoSuiteId, newJwt));
+                     return newJwt;
+                 } else {
+                     throw new BadRequestException("JWT tokens can only be renewed if they expire in 30 or fewer seconds");
+                 }
+            }
+
+            return dbJwt;
+        } else {
+            throw new AuthenticationException("The account associated with the provided JWT is signed out. " +
+                    "Sign in using the web app");
+        }
+    }
+
+    /**
+     * Introspects many JWTs at once. Signatures are verified in parallel and the sessions of every account involved
+     * are read with a single query. A token is active under the same rules as {@link #verifyJwtAndGetJwt} without
+     * renewal, including stateless verification.
+     */
+    public List<IntrospectionResult> introspect(List<String> jwts) {
+        List<IntrospectionResult> results = new ArrayList<>(jwts.size());
+        Claims[] claims = verifyAll(jwts, results);
+        Set<String> usernames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        addSessionOwners(claims, usernames, emails);
+        if (!usernames.isEmpty() || !emails.isEmpty()) {
+            resolveSessions(results, claims, accountStore.findByIdentities(usernames, emails, SESSION_OWNER_FIELDS));
+        }
+        return results;
+    }
+
+    /**
+     * Verifies the signature and expiry of each JWT, adding a result for each with its claims or error.
+     * Returns the valid claims by position, with null for tokens that failed.
+     * With stateless verification the tokens are also checked against the revocation list, and marked active.
+     */
+    Claims[] verifyAll(List<String> jwts, List<IntrospectionResult> results) {
+        Claims[] claims = new Claims[jwts.size()];
+        for (int i = 0; i < jwts.size(); i++) {
+            results.add(new IntrospectionResult(i));
+        }
+        IntStream indexes = IntStream.range(0, jwts.size());
+        (jwts.size() >= PARALLEL_VERIFICATION_THRESHOLD ? indexes.parallel() : indexes).forEach(i -> {
+            IntrospectionResult result = results.get(i);
             try {
-                jwtIsValid(jwt, SECRET_KEY);
-
-                if (renew) {
-                     if (Integer.parseInt(expireTime) - Instant.now().getEpochSecond() <= 30) {
-                         String newJwt = generateJwt(SECRET_KEY, userId, ssoSuiteId);
-                         ssoSuiteJwtJson.put(ssoSuiteId, newJwt);
-                         collection.updateOne(accountDoc, set(SSO_FIELD, ssoSuiteJwtJson.toString()));
-                         return newJwt;
-                     } else {
-                         throw new BadRequestException("JWT tokens can only be renewed if they expire in 30 or fewer seconds");
-                     }
+                Claims valid = verifyJwt(jwts.get(i));
+                result.setUserId(valid.get("userId", String.class));
+                result.setSsoSuiteId(valid.get("ssoSuiteId", String.class));
+                result.setExp(valid.getExpiration().getTime() / 1000);
+                if (!statelessVerification) {
+                    claims[i] = valid;
+                } else if (isRevoked(valid)) {
+                    result.setError("The account associated with the provided JWT is signed out");
+                } else {
+                    result.setActive(true);
                 }
-
-                return dbJwt;
             } catch (ExpiredJwtException e) {
-                // handle by calling function
-                throw e;
+                result.setError("The JWT provided has expired");
+            } catch (AuthenticationException | JwtException | IllegalArgumentException e) {
+                result.setError("The JWT provided is invalid");
             }
-        } else {
+        });
+        return claims;
+    }
+
+    /** Adds the username or email of every account the claims were issued to */
+    void addSessionOwners(Claims[] claims, Set<String> usernames, Set<String> emails) {
+        for (Claims valid : claims) {
+            if (valid != null) {
+                Map<String, String> userInfoMap = getUserInfo(valid);
+                String userIdField = userInfoMap.get("userIdField");
+                String userId = userInfoMap.get("userId");
+                (userIdField.equals(EMAIL_FIELD) ? emails : usernames).add(userId);
+                if (getFallbackUserIdField(userIdField, userId) != null) {
+                    emails.add(userId);
+                }
+            }
+        }
+    }
+
+    /** Marks each verified token active if its account holds a session for its SSO suite */
+    void resolveSessions(List<IntrospectionResult> results, Claims[] claims, Iterable<Document> owners) {
+        Map<String, Object> sessionsByUsername = new HashMap<>();
+        Map<String, Object> sessionsByEmail = new HashMap<>();
+        for (Document owner : owners) {
+            sessionsByUsername.put(owner.getString(USERNAME_FIELD), owner.get(SSO_FIELD));
+            sessionsByEmail.put(owner.getString(EMAIL_FIELD), owner.get(SSO_FIELD));
+        }
+        for (int i = 0; i < claims.length; i++) {
+            if (claims[i] == null) {
+                continue;
+            }
+            Map<String, String> userInfoMap = getUserInfo(claims[i]);
+            String userIdField = userInfoMap.get("userIdField");
+            String userId = userInfoMap.get("userId");
+            Object sessions = (userIdField.equals(EMAIL_FIELD) ? sessionsByEmail : sessionsByUsername).get(userId);
+            if (sessions == null && getFallbackUserIdField(userIdField, userId) != null) {
+                sessions = sessionsByEmail.get(userId);
+            }
+            // Legacy sessions are only read here; they are converted on the account's next login or verification
+            if (sessions instanceof String) {
+                sessions = parseLegacySessions((String) sessions);
+            }
+            String dbJwt = sessions instanceof Document ? getFieldValue((Document) sessions, userInfoMap.get("ssoSuiteId")) : null;
+            if (dbJwt != null && !dbJwt.isEmpty()) {
+                results.get(i).setActive(true);
+            } else {
+                results.get(i).setError("The account associated with the provided JWT is signed out");
+            }
+        }
+    }
+
+    /**
+     * Validates a JWT using only its signature, expiry and the in-memory revocation list.
+     * Sign-outs are recorded on the node that handled them; see {@link TokenRevocationList}.
+     */
+    String verifyJwtStateless(String jwt) throws AuthenticationException {
+        // ExpiredJwtException is handled by calling function
+        if (isRevoked(verifyJwt(jwt))) {
             throw new AuthenticationException("The account associated with the provided JWT is signed out. " +
                     "Sign in using the web app");
         }
+        return jwt;
+    }
+
+    /** Whether the token was issued before a sign-out recorded on this node */
+    boolean isRevoked(Claims claims) {
+        return revocationList.isRevoked(claims.get("userId", String.class), claims.get("ssoSuiteId", String.class),
+                getIssuedAtMillis(claims), claims.getExpiration().getTime() / 1000);
+    }
+
+    String signJwt(String userId, String ssoSuiteId, long accessTokenTtl) {
+        Timer.Sample sample = Timer.start();
+        try {
+            return generateJwt(jwtKeyStore.getKeyRing().getSigningKey(), userId, ssoSuiteId,
+                    TimeUnit.SECONDS.toMillis(accessTokenTtl));
+        } finally {
+            sample.stop(jwtSignTimer);
+        }
     }
 
-    private Map<String, String> getUserInfo(String jwt) {
+    Claims verifyJwt(String jwt) throws AuthenticationException {
+        Timer.Sample sample = Timer.start();
+        try {
+            return getValidClaims(jwt, jwtKeyStore.getKeyRing().getParser());
+        } finally {
+            sample.stop(jwtVerifyTimer);
+        }
+    }
+
+    Map<String, String> getUserInfo(Claims claims) {
 
         Map<String, String> userInfoMap = new HashMap<>();
-        JSONObject jwtPayload = new JSONObject(getJwtPayload(jwt));
-        String userId = jwtPayload.get("userId").toString();
-        String ssoSuiteId = jwtPayload.get("ssoSuiteId").toString();
+        String userId = claims.get("userId", String.class);
+        String ssoSuiteId = claims.get("ssoSuiteId", String.class);
         String userIdField;
         if (isValidEmail(userId)) {
             userIdField = "email";
@@ -220,7 +668,17 @@ public class AccountRepository {
         return userInfoMap;
     }
 
-    public String changeAccountType(String filterField, String filterValue, String accountType) throws BadRequestException {
+    /**
+     * Returns the field to look a token's owner up by if it isn't found by the field {@link #getUserInfo} chose, or
+     * null if there is none. Tokens only hold the identity the user signed in with, and emails accepted by the
+     * earlier, looser email pattern, such as john@my_company.com, fail {@code isValidEmail}, so
+     * a username containing an '@' may be one of those emails.
+     */
+    static String getFallbackUserIdField(String userIdField, String userId) {
+        return userIdField.equals(USERNAME_FIELD) && userId.indexOf('@') >= 0 ? EMAIL_FIELD : null;
+    }
+
+    public String changeAccountType(String userIdField, String userId, String inputPassword, String accountType) throws BadRequestException, AuthenticationException, ServiceUnavailableException {
         Field[] types = AccountEntity.Types.class.getDeclaredFields();
         List<String> typeStrings = new ArrayList<>();
         for (Field f: types) {
@@ -232,11 +690,10 @@ public class AccountRepository {
         }
 
         if (typeStrings.contains(accountType)) {
-            Document doc = collection.find(Filters.eq(filterField, filterValue)).first();
-            String previousType = getFieldValue(doc, "type");
+            Document doc = authenticate(userIdField, userId, inputPassword);
+            String previousType = getFieldValue(doc, TYPE_FIELD);
             if (!accountType.equals(previousType)) {
-                collection.updateOne(doc,
-                        new Document("$set", new Document("type", accountType)));
+                accountStore.update(doc.getObjectId("_id"), set(TYPE_FIELD, accountType));
                 if (accountType.equals(AccountEntity.Types.DEVELOPER)) {
                     return doc.get("_id").toString();
                 } else {
@@ -251,22 +708,63 @@ public class AccountRepository {
         }
     }
 
+    boolean isStatelessVerification() {
+        return statelessVerification;
+    }
+
     public Document getDocument(String objectID) {
 
-        return collection.find(Filters.eq("_id", new ObjectId(objectID))).first();
+        return accountStore.findById(new ObjectId(objectID));
+    }
+
+    /** Whether the apiKey is that of a developer account */
+    public boolean isDeveloperApiKey(String apiKey) {
+        if (apiKey == null || !ObjectId.isValid(apiKey)) {
+            return false;
+        }
+        Document accountDoc = accountStore.findById(new ObjectId(apiKey), TYPE_FIELD);
+        return accountDoc != null && AccountEntity.Types.DEVELOPER.equals(accountDoc.getString(TYPE_FIELD));
     }
 
-    public void signOut(String jwt) {
+    public void signOut(String jwt) throws AuthenticationException {
 
-        Map<String, String> userInfoMap = getUserInfo(jwt);
+        // Expired JWTs may still be signed out, but their signature must be valid
+        Claims claims;
+        try {
+            claims = verifyJwt(jwt);
+        } catch (ExpiredJwtException e) {
+            claims = e.getClaims();
+        }
+        Map<String, String> userInfoMap = getUserInfo(claims);
         String userIdField = userInfoMap.get("userIdField");
         String userId = userInfoMap.get("userId");
         String ssoSuiteId = userInfoMap.get("ssoSuiteId");
 
-        Document accountDoc = collection.find(Filters.eq(userIdField, userId)).first();
-        JSONObject ssoSuiteJwtJson = getSsoSuiteJwtJson(accountDoc);
-        ssoSuiteJwtJson.put(ssoSuiteId, "");
+        // Every token issued for this suite so far expires no later than one suite token lifetime from now
+        long signedOutAt = System.currentTimeMillis();
+        revocationList.revoke(userId, ssoSuiteId, signedOutAt, signedOutAt / 1000 + getRevocationWindow(ssoSuiteId));
+
+        String fallbackUserIdField = getFallbackUserIdField(userIdField, userId);
+        if (!accountStore.updateByIdentity(userIdField, userId, signOutUpdate(ssoSuiteId)) && fallbackUserIdField != null) {
+            accountStore.updateByIdentity(fallbackUserIdField, userId, signOutUpdate(ssoSuiteId));
+        }
+    }
 
-        collection.updateOne(accountDoc, set(SSO_FIELD, ssoSuiteJwtJson.toString()));
+    /** Removes the suite's session and every refresh token for it */
+    static Bson signOutUpdate(String ssoSuiteId) {
+        return Updates.combine(unset(SSO_FIELD + "." + ssoSuiteId), unset(REFRESH_FIELD + "." + ssoSuiteId));
+    }
+
+    /** The suite's access token lifetime, or the longest any suite may have if it can't be looked up */
+    private long getRevocationWindow(String ssoSuiteId) {
+        try {
+            Long accessTokenTtl = ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId);
+            if (accessTokenTtl != null) {
+                return accessTokenTtl;
+            }
+        } catch (BadRequestException e) {
+            // Fall through to the longest lifetime
+        }
+        return ssoSuiteCache.getMaxAccessTokenTtl();
     }
 }
@@ -0,0 +1,50 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of account documents, found by _id or by their unique username or email. {@link MongoAccountStore}
+ * backs the service; {@link InMemoryAccountStore} replaces it under the memory profile.
+ * Finds return only _id and the fields named, which may be dotted paths, or every field if none are named.
+ * Updates are built from {@link com.mongodb.client.model.Updates#set} and {@link com.mongodb.client.model.Updates#unset}
+ * and apply atomically to one account.
+ */
+public interface AccountStore {
+
+    /** Inserts an account, giving it an _id, or fails naming the username or email that is already taken */
+    void insert(Document account) throws BadRequestException;
+
+    /**
+     * Inserts accounts independently, so a duplicate doesn't stop the rest. Returns the error for each account
+     * that wasn't inserted, keyed by its position in the list.
+     */
+    Map<Integer, Exception> insertAll(List<Document> accounts);
+
+    /** Returns the account, or null if there is none */
+    Document findById(ObjectId id, String... fields);
+
+    /** Returns the account whose userIdField, username or email, is userId, or null if there is none */
+    Document findByIdentity(String userIdField, String userId, String... fields);
+
+    /** Returns every account with one of the usernames or emails */
+    List<Document> findByIdentities(Collection<String> usernames, Collection<String> emails, String... fields);
+
+    /** Returns false if there is no such account */
+    boolean update(ObjectId id, Bson update);
+
+    /** Updates the account only if its field equals expected; returns whether it did */
+    boolean updateIfEquals(ObjectId id, String field, Object expected, Bson update);
+
+    /** Updates the account only if it has the field; returns whether it did */
+    boolean updateIfExists(ObjectId id, String field, Bson update);
+
+    /** Returns false if there is no account whose userIdField, username or email, is userId */
+    boolean updateByIdentity(String userIdField, String userId, Bson update);
+}
@@ -0,0 +1,355 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the accounts and sso_suites collections to and from newline delimited extended JSON, gzipped when the
+ * file name ends in .gz. Memory use is constant in the size of the collection: exports read through a cursor, and
+ * imports hold at most parallelism * 2 batches.
+ * Imports upsert by _id, so a batch that is written twice leaves the same result, and record the number of lines
+ * written in a checkpoint file so an interrupted import resumes where it stopped. Documents without an _id can't be
+ * matched on a rerun, so they are rejected like documents the database refuses: each is logged, and the import
+ * exits with status 1 once the rest of the file has been written.
+ */
+@Component
+@Profile("!memory")
+@Log4j2
+public class CollectionTransfer {
+
+    public static final List<String> COMMANDS = Arrays.asList("export", "import");
+
+    /** Active while a command runs, to leave out the beans that only serve the API */
+    public static final String PROFILE = "transfer";
+
+    private static final List<String> COLLECTIONS = Arrays.asList("accounts", "sso_suites");
+
+    private static final String USAGE = "Usage: export <accounts|sso_suites> --file=<path>[.gz] [--batchSize=1000]\n" +
+            "       import <accounts|sso_suites> --file=<path>[.gz] [--batchSize=1000] [--parallelism=4] " +
+            "[--checkpoint=<file>.checkpoint]";
+
+    /** Extended JSON keeps ObjectIds and dates typed, so documents are imported exactly as exported */
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int PROGRESS_INTERVAL = 100000;
+
+    @Autowired
+    private MongoDatabase database;
+
+    /** Runs the command given on the command line and returns the process exit code */
+    public int run(ApplicationArguments args) {
+        List<String> command = args.getNonOptionArgs();
+        if (command.size() != 2 || !COMMANDS.contains(command.get(0)) || !COLLECTIONS.contains(command.get(1))
+                || !args.containsOption("file")) {
+            log.error(USAGE);
+            return 2;
+        }
+        String collectionName = command.get(1);
+        Path file;
+        Path checkpoint;
+        int batchSize;
+        int parallelism;
+        try {
+            file = Paths.get(getOption(args, "file", null));
+            checkpoint = Paths.get(getOption(args, "checkpoint", file + ".checkpoint"));
+            batchSize = getPositiveOption(args, "batchSize", 1000);
+            parallelism = getPositiveOption(args, "parallelism", 4);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+            log.error(USAGE);
+            return 2;
+        }
+
+        try {
+            if (command.get(0).equals("export")) {
+                exportCollection(collectionName, file, batchSize);
+            } else if (importCollection(collectionName, file, batchSize, parallelism, checkpoint).getRejected() > 0) {
+                return 1;
+            }
+            return 0;
+        } catch (Exception e) {
+            log.error(String.format("Failed to %s %s: ", command.get(0), collectionName), e);
+            return 1;
+        }
+    }
+
+    /** Writes every document of the collection to the file, one per line. Returns the number written */
+    public long exportCollection(String collectionName, Path file, int batchSize) throws IOException {
+        return exportDocuments(collectionName, database.getCollection(collectionName).find().batchSize(batchSize), file);
+    }
+
+    static long exportDocuments(String collectionName, Iterable<Document> documents, Path file) throws IOException {
+        long exported = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(open(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            for (Document doc : documents) {
+                out.write(doc.toJson(JSON_SETTINGS));
+                out.write('\n');
+                if (++exported % PROGRESS_INTERVAL == 0) {
+                    log.info(String.format("Exported %d documents from %s", exported, collectionName));
+                }
+            }
+        }
+        log.info(String.format("Exported %d documents from %s to %s", exported, collectionName, file));
+        return exported;
+    }
+
+    /**
+     * Upserts every document in the file into the collection with unordered bulk writes, running up to
+     * parallelism batches at once. Lines already recorded in the checkpoint are skipped. The checkpoint is removed
+     * once the whole file has been written, including when some documents were rejected.
+     */
+    public ImportResult importCollection(String collectionName, Path file, int batchSize, int parallelism,
+                                         Path checkpoint) throws IOException, InterruptedException {
+        MongoCollection<Document> collection = database.getCollection(collectionName);
+        return importDocuments(collectionName, file, batchSize, parallelism, checkpoint, models -> write(collection, models));
+    }
+
+    static ImportResult importDocuments(String collectionName, Path file, int batchSize, int parallelism,
+                                        Path checkpoint, BatchWriter writer) throws IOException, InterruptedException {
+        ImportProgress progress = new ImportProgress(checkpoint);
+        if (progress.getLinesWritten() > 0) {
+            log.info(String.format("Resuming import of %s after line %d", collectionName, progress.getLinesWritten()));
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "import-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        AtomicLong written = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(read(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            long line = 0;
+            while (line < progress.getLinesWritten() && in.readLine() != null) {
+                line++;
+            }
+
+            List<ReplaceOneModel<Document>> batch = new ArrayList<>(batchSize);
+            String json;
+            while (failure.get() == null) {
+                json = in.readLine();
+                if (json != null) {
+                    line++;
+                    if (!json.isEmpty()) {
+                        Document doc = Document.parse(json);
+                        if (doc.get("_id") == null) {
+                            log.warn(String.format("Rejected document on line %d of %s: it has no _id", line, file));
+                            failed.incrementAndGet();
+                        } else {
+                            batch.add(toWriteModel(doc));
+                        }
+                    }
+                }
+                if (batch.size() == batchSize || (json == null && !batch.isEmpty())) {
+                    List<ReplaceOneModel<Document>> models = batch;
+                    long endLine = line;
+                    batch = new ArrayList<>(batchSize);
+
+                    inFlight.acquire();
+                    progress.submitted(endLine);
+                    executor.execute(() -> {
+                        try {
+                            int errors = writer.write(models);
+                            written.addAndGet(models.size() - errors);
+                            failed.addAndGet(errors);
+                            progress.completed(endLine);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                if (json == null) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (failure.get() != null) {
+            log.error(String.format("Import of %s stopped; rerun the same command to resume after line %d",
+                    collectionName, progress.getLinesWritten()));
+            throw failure.get();
+        }
+        Files.deleteIfExists(checkpoint);
+        if (failed.get() > 0) {
+            log.error(String.format("Imported %d documents into %s from %s; %d were rejected and are logged above",
+                    written.get(), collectionName, file, failed.get()));
+        } else {
+            log.info(String.format("Imported %d documents into %s from %s", written.get(), collectionName, file));
+        }
+        return new ImportResult(written.get(), failed.get());
+    }
+
+    /** Writes a batch of documents, returning how many were rejected */
+    interface BatchWriter {
+        int write(List<ReplaceOneModel<Document>> models);
+    }
+
+    /**
+     * Writes a batch, returning how many documents were rejected. Rejected documents, e.g. a username already
+     * held by another account, are logged and skipped rather than failing the import.
+     */
+    private static int write(MongoCollection<Document> collection, List<ReplaceOneModel<Document>> models) {
+        try {
+            collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+            return 0;
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                log.warn(String.format("Rejected document: %s", error.getMessage()));
+            }
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+            return e.getWriteErrors().size();
+        }
+    }
+
+    private static ReplaceOneModel<Document> toWriteModel(Document doc) {
+        return new ReplaceOneModel<>(Filters.eq("_id", doc.get("_id")), doc, new ReplaceOptions().upsert(true));
+    }
+
+    private static OutputStream open(Path file) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        return file.toString().endsWith(".gz") ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+
+    private static InputStream read(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return file.toString().endsWith(".gz") ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    private static String getOption(ApplicationArguments args, String name, String defaultValue) {
+        List<String> values = args.getOptionValues(name);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    /** Returns the option as a number of at least one, throwing an IllegalArgumentException for any other value */
+    private static int getPositiveOption(ApplicationArguments args, String name, int defaultValue) {
+        String value = getOption(args, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below with the option name
+        }
+        throw new IllegalArgumentException(String.format("--%s must be a positive integer, not '%s'", name, value));
+    }
+
+    public static final class ImportResult {
+
+        private final long written;
+        private final long rejected;
+
+        ImportResult(long written, long rejected) {
+            this.written = written;
+            this.rejected = rejected;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+
+    /**
+     * Tracks which batches have been written. Batches complete out of order, so the checkpoint only advances
+     * past a batch once every batch before it has also been written.
+     */
+    private static class ImportProgress {
+
+        private final Path checkpoint;
+
+        /** End lines of submitted batches, in file order, that aren't yet covered by the checkpoint */
+        private final Deque<Long> pending = new ArrayDeque<>();
+
+        private final Set<Long> completed = new HashSet<>();
+
+        private long linesWritten;
+
+        ImportProgress(Path checkpoint) throws IOException {
+            this.checkpoint = checkpoint;
+            if (Files.exists(checkpoint)) {
+                this.linesWritten = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+            }
+        }
+
+        synchronized long getLinesWritten() {
+            return linesWritten;
+        }
+
+        synchronized void submitted(long endLine) {
+            pending.addLast(endLine);
+        }
+
+        synchronized void completed(long endLine) {
+            completed.add(endLine);
+            long advancedTo = linesWritten;
+            while (!pending.isEmpty() && completed.remove(pending.peekFirst())) {
+                advancedTo = pending.removeFirst();
+            }
+            if (advancedTo != linesWritten) {
+                linesWritten = advancedTo;
+                save();
+            }
+        }
+
+        /** Replaces the checkpoint atomically, so a crash never leaves it half written */
+        private void save() {
+            try {
+                Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+                Files.write(temp, Long.toString(linesWritten).getBytes(StandardCharsets.UTF_8));
+                Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.exceptions.BadRequestException;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Keeps accounts in concurrent maps, so the service can be load tested and profiled without MongoDB. Enabled by
+ * the memory profile; accounts are lost on restart and aren't shared between instances.
+ * Usernames and emails are claimed with putIfAbsent before an account is stored, so they are unique just as with
+ * the unique indexes. Each update replaces the account with an updated copy inside
+ * {@link ConcurrentHashMap#computeIfPresent}, so updates to one account are atomic and readers never see one half
+ * applied.
+ */
+@Repository
+@Profile("memory")
+@Log4j2
+public class InMemoryAccountStore implements AccountStore {
+
+    @Autowired
+    private Environment env;
+
+    private static final String EMAIL_FIELD = "email";
+    private static final String USERNAME_FIELD = "username";
+
+    private final Map<ObjectId, Document> accounts = new ConcurrentHashMap<>();
+
+    private final Map<String, ObjectId> idsByUsername = new ConcurrentHashMap<>();
+
+    private final Map<String, ObjectId> idsByEmail = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        // The reactive repositories use the reactive streams driver directly
+        if ("reactive".equalsIgnoreCase(env.getProperty("spring.main.web-application-type"))) {
+            throw new IllegalStateException("The memory profile only supports spring.main.web-application-type=servlet");
+        }
+        log.warn("Storing accounts in memory; they will be lost when the application stops");
+    }
+
+    @Override
+    public void insert(Document account) throws BadRequestException {
+        String username = account.getString(USERNAME_FIELD);
+        String email = account.getString(EMAIL_FIELD);
+        ObjectId id = new ObjectId();
+        if (idsByUsername.putIfAbsent(username, id) != null) {
+            throw AccountRepository.duplicateAccountException(USERNAME_FIELD, username, email);
+        }
+        if (idsByEmail.putIfAbsent(email, id) != null) {
+            idsByUsername.remove(username, id);
+            throw AccountRepository.duplicateAccountException(EMAIL_FIELD, username, email);
+        }
+        // Until this put, lookups by the claimed username or email find nothing, as before the insert
+        account.put("_id", id);
+        accounts.put(id, (Document) InMemoryDocuments.copy(account));
+    }
+
+    @Override
+    public Map<Integer, Exception> insertAll(List<Document> newAccounts) {
+        Map<Integer, Exception> errors = new HashMap<>();
+        for (int i = 0; i < newAccounts.size(); i++) {
+            try {
+                insert(newAccounts.get(i));
+            } catch (BadRequestException e) {
+                errors.put(i, e);
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public Document findById(ObjectId id, String... fields) {
+        return InMemoryDocuments.project(accounts.get(id), fields);
+    }
+
+    @Override
+    public Document findByIdentity(String userIdField, String userId, String... fields) {
+        ObjectId id = getIds(userIdField).get(userId);
+        return id == null ? null : findById(id, fields);
+    }
+
+    @Override
+    public List<Document> findByIdentities(Collection<String> usernames, Collection<String> emails, String... fields) {
+        // An account matching both by username and by email is returned once
+        Set<ObjectId> ids = new LinkedHashSet<>();
+        for (String username : usernames) {
+            ids.add(idsByUsername.get(username));
+        }
+        for (String email : emails) {
+            ids.add(idsByEmail.get(email));
+        }
+        List<Document> found = new ArrayList<>(ids.size());
+        for (ObjectId id : ids) {
+            Document account = id == null ? null : findById(id, fields);
+            if (account != null) {
+                found.add(account);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean update(ObjectId id, Bson update) {
+        return update(id, account -> true, update);
+    }
+
+    @Override
+    public boolean updateIfEquals(ObjectId id, String field, Object expected, Bson update) {
+        return update(id, account -> Objects.equals(InMemoryDocuments.get(account, field), expected), update);
+    }
+
+    @Override
+    public boolean updateIfExists(ObjectId id, String field, Bson update) {
+        return update(id, account -> InMemoryDocuments.exists(account, field), update);
+    }
+
+    @Override
+    public boolean updateByIdentity(String userIdField, String userId, Bson update) {
+        ObjectId id = getIds(userIdField).get(userId);
+        return id != null && update(id, update);
+    }
+
+    private boolean update(ObjectId id, Predicate<Document> condition, Bson update) {
+        Document parsed = InMemoryDocuments.parseUpdate(update);
+        if (InMemoryDocuments.updates(parsed, USERNAME_FIELD) || InMemoryDocuments.updates(parsed, EMAIL_FIELD)) {
+            throw new IllegalArgumentException("Usernames and emails can't be changed in memory");
+        }
+        boolean[] matched = new boolean[1];
+        accounts.computeIfPresent(id, (key, account) -> {
+            if (!condition.test(account)) {
+                return account;
+            }
+            matched[0] = true;
+            return InMemoryDocuments.apply(account, parsed);
+        });
+        return matched[0];
+    }
+
+    private Map<String, ObjectId> getIds(String userIdField) {
+        if (userIdField.equals(USERNAME_FIELD)) {
+            return idsByUsername;
+        } else if (userIdField.equals(EMAIL_FIELD)) {
+            return idsByEmail;
+        }
+        throw new IllegalArgumentException(String.format("Accounts can't be found by %s in memory", userIdField));
+    }
+}
@@ -0,0 +1,162 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Document operations for the in-memory stores, following MongoDB's semantics for the projections, filters and
+ * updates the repositories use. Field names may be dotted paths into embedded documents.
+ * Stored documents are treated as immutable: reads return copies, and updates return an updated copy.
+ */
+final class InMemoryDocuments {
+
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    private static final String SET = "$set";
+
+    private static final String UNSET = "$unset";
+
+    private InMemoryDocuments() {
+    }
+
+    /** Deep copies documents, lists and dates; other values stored by the repositories are immutable */
+    static Object copy(Object value) {
+        if (value instanceof Document) {
+            Document copy = new Document();
+            for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(copy(element));
+            }
+            return copy;
+        } else if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        return value;
+    }
+
+    /** Copies _id and the fields, or the whole document if none are given. Returns null for a null document */
+    static Document project(Document doc, String... fields) {
+        if (doc == null) {
+            return null;
+        } else if (fields.length == 0) {
+            return (Document) copy(doc);
+        }
+        Document projected = new Document("_id", doc.get("_id"));
+        for (String field : fields) {
+            copyPath(doc, projected, field);
+        }
+        return projected;
+    }
+
+    private static void copyPath(Document from, Document to, String path) {
+        int dot = path.indexOf('.');
+        String key = dot < 0 ? path : path.substring(0, dot);
+        if (!from.containsKey(key)) {
+            return;
+        } else if (dot < 0) {
+            to.put(key, copy(from.get(key)));
+            return;
+        }
+        Object value = from.get(key);
+        if (value instanceof Document) {
+            Object child = to.get(key);
+            if (!(child instanceof Document)) {
+                child = new Document();
+                to.put(key, child);
+            }
+            copyPath((Document) value, (Document) child, path.substring(dot + 1));
+        }
+    }
+
+    /** Returns the value at the path, or null if it is missing */
+    static Object get(Document doc, String path) {
+        Object value = doc;
+        for (String key : path.split("\\.")) {
+            if (!(value instanceof Document)) {
+                return null;
+            }
+            value = ((Document) value).get(key);
+        }
+        return value;
+    }
+
+    static boolean exists(Document doc, String path) {
+        int dot = path.lastIndexOf('.');
+        Object parent = dot < 0 ? doc : get(doc, path.substring(0, dot));
+        return parent instanceof Document && ((Document) parent).containsKey(path.substring(dot + 1));
+    }
+
+    /**
+     * Decodes an update built with {@link com.mongodb.client.model.Updates}, failing if it uses an operator other
+     * than $set and $unset. Decode once, outside any lock, then {@link #apply} it.
+     */
+    static Document parseUpdate(Bson update) {
+        BsonDocument bson = update.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        Document parsed = DOCUMENT_CODEC.decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+        for (String operator : parsed.keySet()) {
+            if (!operator.equals(SET) && !operator.equals(UNSET)) {
+                throw new IllegalArgumentException(String.format("Update operator %s isn't supported in memory", operator));
+            }
+        }
+        return parsed;
+    }
+
+    /** Returns whether the update sets or unsets the field or anything within it */
+    static boolean updates(Document update, String field) {
+        for (Object fields : update.values()) {
+            for (String path : ((Document) fields).keySet()) {
+                if (path.equals(field) || path.startsWith(field + ".")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns a copy of the document with the update applied. Like MongoDB, $set creates missing parents */
+    static Document apply(Document doc, Document update) {
+        Document updated = (Document) copy(doc);
+        Document set = update.get(SET, Document.class);
+        if (set != null) {
+            for (Map.Entry<String, Object> entry : set.entrySet()) {
+                String[] keys = entry.getKey().split("\\.");
+                Document parent = updated;
+                for (int i = 0; i < keys.length - 1; i++) {
+                    Object child = parent.get(keys[i]);
+                    if (!(child instanceof Document)) {
+                        child = new Document();
+                        parent.put(keys[i], child);
+                    }
+                    parent = (Document) child;
+                }
+                parent.put(keys[keys.length - 1], copy(entry.getValue()));
+            }
+        }
+        Document unset = update.get(UNSET, Document.class);
+        if (unset != null) {
+            for (String path : unset.keySet()) {
+                int dot = path.lastIndexOf('.');
+                Object parent = dot < 0 ? updated : get(updated, path.substring(0, dot));
+                if (parent instanceof Document) {
+                    ((Document) parent).remove(path.substring(dot + 1));
+                }
+            }
+        }
+        return updated;
+    }
+}
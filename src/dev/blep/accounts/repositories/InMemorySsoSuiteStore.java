@@ -0,0 +1,54 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps SSO suites in concurrent maps under the memory profile; see {@link InMemoryAccountStore}.
+ * Names are claimed with putIfAbsent before a suite is stored, so they are unique as with the unique index.
+ */
+@Repository
+@Profile("memory")
+public class InMemorySsoSuiteStore implements SsoSuiteStore {
+
+    private final Map<ObjectId, Document> ssoSuites = new ConcurrentHashMap<>();
+
+    private final Map<String, ObjectId> idsByName = new ConcurrentHashMap<>();
+
+    @Override
+    public String insert(Document ssoSuite) throws BadRequestException {
+        String name = ssoSuite.getString(SsoSuiteRepository.NAME_FIELD);
+        ObjectId id = new ObjectId();
+        if (idsByName.putIfAbsent(name, id) != null) {
+            throw SsoSuiteRepository.duplicateSsoSuiteException(name);
+        }
+        ssoSuite.put("_id", id);
+        ssoSuites.put(id, (Document) InMemoryDocuments.copy(ssoSuite));
+        return id.toString();
+    }
+
+    @Override
+    public Document findById(ObjectId id, String... fields) {
+        return InMemoryDocuments.project(ssoSuites.get(id), fields);
+    }
+
+    @Override
+    public List<Document> findAll(int limit, String... fields) {
+        List<Document> found = new ArrayList<>();
+        for (Document ssoSuite : ssoSuites.values()) {
+            if (found.size() == limit) {
+                break;
+            }
+            found.add(InMemoryDocuments.project(ssoSuite, fields));
+        }
+        return found;
+    }
+}
@@ -0,0 +1,142 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.util.JwtKey;
+import dev.blep.accounts.util.JwtKeyRing;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the keys JWTs are signed and verified with. With app.security.jwtAlgorithm=HS512 this is the shared
+ * app.security.jwtSecret. With ES256 it is every *.pem file in app.security.jwtKeyDir, named by file name, or an
+ * ephemeral key when no directory is set.
+ * The directory is reread periodically to rotate keys. Every key is published in the JWKS as soon as it is read,
+ * but a new key only starts signing once its file is older than the JWKS cache lifetime, so relying apps have
+ * fetched it before they see tokens signed with it. Until then, and after its file is removed, the previous key
+ * keeps verifying.
+ */
+@Component
+@Profile("!transfer")
+@Log4j2
+public class JwtKeyStore {
+
+    @Autowired
+    private Environment env;
+
+    private static final String KEY_FILE_SUFFIX = ".pem";
+
+    private Path keyDir;
+
+    private long jwksMaxAgeSeconds;
+
+    private ScheduledExecutorService reloader;
+
+    private volatile JwtKeyRing keyRing;
+
+    @PostConstruct
+    public void init() throws IOException, GeneralSecurityException {
+        this.jwksMaxAgeSeconds = env.getProperty("app.security.jwksMaxAgeSeconds", Long.class, 300L);
+        String algorithm = env.getProperty("app.security.jwtAlgorithm", "HS512");
+        if (algorithm.equals("HS512")) {
+            this.keyRing = JwtKeyRing.of(JwtKey.hmac(env.getProperty("app.security.jwtSecret")));
+            return;
+        } else if (!algorithm.equals("ES256")) {
+            throw new IllegalStateException(String.format("Unsupported app.security.jwtAlgorithm %s; use HS512 or ES256", algorithm));
+        }
+
+        String keyDir = env.getProperty("app.security.jwtKeyDir");
+        if (keyDir == null || keyDir.isEmpty()) {
+            this.keyRing = JwtKeyRing.of(JwtKey.ecdsaEphemeral());
+            log.warn("No app.security.jwtKeyDir set; signing JWTs with an ephemeral key that other instances " +
+                    "can't verify and that changes on restart");
+            return;
+        }
+        this.keyDir = Paths.get(keyDir);
+        this.keyRing = load();
+        log.info(String.format("Signing JWTs with key %s", keyRing.getSigningKey().getKeyId()));
+
+        long reloadMs = env.getProperty("app.security.jwtKeyReloadMs", Long.class, 60000L);
+        this.reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwt-key-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(this::reload, reloadMs, reloadMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    public JwtKeyRing getKeyRing() {
+        return keyRing;
+    }
+
+    public long getJwksMaxAgeSeconds() {
+        return jwksMaxAgeSeconds;
+    }
+
+    void reload() {
+        try {
+            JwtKeyRing loaded = load();
+            if (!loaded.getSigningKey().getKeyId().equals(keyRing.getSigningKey().getKeyId())) {
+                log.info(String.format("Rotated JWT signing key from %s to %s",
+                        keyRing.getSigningKey().getKeyId(), loaded.getSigningKey().getKeyId()));
+            }
+            this.keyRing = loaded;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            log.warn("Failed to reload JWT keys; keeping the current ones: ", e);
+        }
+    }
+
+    /** Reads every key file; the signing key is the last by name among those published long enough */
+    private JwtKeyRing load() throws IOException, GeneralSecurityException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(keyDir, "*" + KEY_FILE_SUFFIX)) {
+            dir.forEach(files::add);
+        }
+        files.sort(null);
+
+        long publishedBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(jwksMaxAgeSeconds);
+        List<JwtKey> keys = new ArrayList<>();
+        JwtKey newest = null;
+        JwtKey published = null;
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            JwtKey key = JwtKey.ecdsaFromPem(fileName.substring(0, fileName.length() - KEY_FILE_SUFFIX.length()),
+                    new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            keys.add(key);
+            if (key.canSign()) {
+                newest = key;
+                if (Files.getLastModifiedTime(file).toMillis() <= publishedBefore) {
+                    published = key;
+                }
+            }
+        }
+        if (newest == null) {
+            throw new IllegalStateException(String.format("No private key found in %s", keyDir));
+        }
+        // With no key published long enough, e.g. on first deployment, sign with the newest
+        return new JwtKeyRing(published != null ? published : newest, keys);
+    }
+}
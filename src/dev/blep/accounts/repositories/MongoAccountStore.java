@@ -0,0 +1,270 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import dev.blep.accounts.exceptions.BadRequestException;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Stores accounts in the accounts collection, whose unique indexes on username and email back every lookup by
+ * identity. Accounts whose sessions are still a JSON string, as stored before sessions were a subdocument, are
+ * converted when read so that updates can target individual suites, and in the background at startup.
+ */
+@Repository
+@Profile("!memory & !transfer")
+@Log4j2
+public class MongoAccountStore implements AccountStore {
+
+    @Autowired
+    private MongoDatabase database;
+
+    @Autowired
+    private Environment env;
+
+    private MongoCollection<Document> collection;
+
+    private static final String COLLECTION_NAME = "accounts";
+    private static final String EMAIL_FIELD = "email";
+    private static final String USERNAME_FIELD = "username";
+    private static final String SSO_FIELD = "ssoSuiteJwt";
+    private static final String USERNAME_INDEX = "username_1";
+    private static final String EMAIL_INDEX = "email_1";
+    private static final int MIGRATION_BATCH_SIZE = 500;
+
+    @PostConstruct
+    public void init() {
+        this.collection = database.getCollection(COLLECTION_NAME);
+
+        // Unique indexes back every username/email lookup and enforce uniqueness on insert
+        Repository.createUniqueIndex(collection, USERNAME_FIELD, USERNAME_INDEX);
+        Repository.createUniqueIndex(collection, EMAIL_FIELD, EMAIL_INDEX);
+    }
+
+    @Override
+    public void insert(Document account) throws BadRequestException {
+        try {
+            collection.insertOne(account);
+        } catch (MongoWriteException e) {
+            throw duplicateAccountException(e, account.getString(USERNAME_FIELD), account.getString(EMAIL_FIELD));
+        }
+    }
+
+    @Override
+    public Map<Integer, Exception> insertAll(List<Document> accounts) {
+        Map<Integer, Exception> errors = new HashMap<>();
+        if (accounts.isEmpty()) {
+            return errors;
+        }
+        try {
+            collection.insertMany(accounts, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                Document account = accounts.get(error.getIndex());
+                if (error.getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                    errors.put(error.getIndex(), duplicateAccountException(error,
+                            account.getString(USERNAME_FIELD), account.getString(EMAIL_FIELD)));
+                } else {
+                    errors.put(error.getIndex(), new MongoWriteException(error, e.getServerAddress()));
+                }
+            }
+        }
+        return errors;
+    }
+
+    /** Maps a duplicate key error on insert to the message for the field that clashed; rethrows anything else */
+    static BadRequestException duplicateAccountException(MongoWriteException e, String username, String email) {
+        if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+            throw e;
+        }
+        return duplicateAccountException(e.getError(), username, email);
+    }
+
+    private static BadRequestException duplicateAccountException(WriteError error, String username, String email) {
+        return AccountRepository.duplicateAccountException(
+                error.getMessage().contains(EMAIL_INDEX) ? EMAIL_FIELD : USERNAME_FIELD, username, email);
+    }
+
+    @Override
+    public Document findById(ObjectId id, String... fields) {
+        return convertLegacySessions(collection.find(Filters.eq("_id", id)).projection(projection(fields)).first());
+    }
+
+    @Override
+    public Document findByIdentity(String userIdField, String userId, String... fields) {
+        return convertLegacySessions(collection.find(Filters.eq(userIdField, userId)).projection(projection(fields)).first());
+    }
+
+    @Override
+    public List<Document> findByIdentities(Collection<String> usernames, Collection<String> emails, String... fields) {
+        if (usernames.isEmpty() && emails.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return collection.find(identitiesFilter(usernames, emails)).projection(projection(fields)).into(new ArrayList<>());
+    }
+
+    /** Matches every account with one of the usernames or emails, at least one of which must be given */
+    static Bson identitiesFilter(Collection<String> usernames, Collection<String> emails) {
+        if (emails.isEmpty()) {
+            return Filters.in(USERNAME_FIELD, usernames);
+        } else if (usernames.isEmpty()) {
+            return Filters.in(EMAIL_FIELD, emails);
+        }
+        return Filters.or(Filters.in(USERNAME_FIELD, usernames), Filters.in(EMAIL_FIELD, emails));
+    }
+
+    @Override
+    public boolean update(ObjectId id, Bson update) {
+        return collection.updateOne(Filters.eq("_id", id), update).getMatchedCount() > 0;
+    }
+
+    @Override
+    public boolean updateIfEquals(ObjectId id, String field, Object expected, Bson update) {
+        return collection.updateOne(Filters.and(Filters.eq("_id", id), Filters.eq(field, expected)), update)
+                .getMatchedCount() > 0;
+    }
+
+    @Override
+    public boolean updateIfExists(ObjectId id, String field, Bson update) {
+        return collection.updateOne(Filters.and(Filters.eq("_id", id), Filters.exists(field)), update)
+                .getMatchedCount() > 0;
+    }
+
+    @Override
+    public boolean updateByIdentity(String userIdField, String userId, Bson update) {
+        // Sessions already stored as a subdocument can be updated without reading the account
+        if (collection.updateOne(Filters.and(Filters.eq(userIdField, userId), Filters.type(SSO_FIELD, BsonType.DOCUMENT)),
+                update).getMatchedCount() > 0) {
+            return true;
+        }
+        Document accountDoc = findByIdentity(userIdField, userId, SSO_FIELD);
+        return accountDoc != null && update(accountDoc.getObjectId("_id"), update);
+    }
+
+    private static Bson projection(String[] fields) {
+        return fields.length == 0 ? null : Projections.include(fields);
+    }
+
+    /**
+     * Converts the account's sessions in place if they are still a JSON string. Only replaces the string that was
+     * read, so a concurrent conversion or sign-in isn't overwritten.
+     */
+    private Document convertLegacySessions(Document accountDoc) {
+        if (accountDoc != null && accountDoc.get(SSO_FIELD) instanceof String) {
+            Document converted = AccountRepository.parseLegacySessions(accountDoc.getString(SSO_FIELD));
+            collection.updateOne(
+                    Filters.and(Filters.eq("_id", accountDoc.get("_id")), Filters.type(SSO_FIELD, BsonType.STRING)),
+                    set(SSO_FIELD, converted));
+            accountDoc.put(SSO_FIELD, converted);
+        }
+        return accountDoc;
+    }
+
+    /**
+     * Converts every account whose sessions are still stored as a JSON string. Safe to run while the service
+     * is serving requests: each update only applies if the field is still a string. Every instance with
+     * app.sessions.migration.enabled scans the collection once at startup, so one instance is enough.
+     * An account whose sessions can't be parsed or written is logged and skipped; reads convert the rest.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacySessions() {
+        if (!env.getProperty("app.sessions.migration.enabled", Boolean.class, true)) {
+            return;
+        }
+        Thread migration = new Thread(() -> {
+            log.info("Converting string encoded session maps to subdocuments");
+            long migrated = 0;
+            long skipped = 0;
+            try {
+                List<WriteModel<Document>> batch = new ArrayList<>();
+                List<Object> batchIds = new ArrayList<>();
+                for (Document accountDoc : collection.find(Filters.type(SSO_FIELD, BsonType.STRING))
+                        .projection(Projections.include(SSO_FIELD))
+                        .batchSize(MIGRATION_BATCH_SIZE)) {
+                    Object id = accountDoc.get("_id");
+                    Document converted;
+                    try {
+                        converted = AccountRepository.parseLegacySessions(accountDoc.getString(SSO_FIELD));
+                    } catch (RuntimeException e) {
+                        log.warn(String.format("Skipped the sessions of account %s, which can't be parsed: %s", id, e.getMessage()));
+                        skipped++;
+                        continue;
+                    }
+                    batch.add(new UpdateOneModel<>(
+                            Filters.and(Filters.eq("_id", id), Filters.type(SSO_FIELD, BsonType.STRING)),
+                            set(SSO_FIELD, converted)));
+                    batchIds.add(id);
+                    if (batch.size() == MIGRATION_BATCH_SIZE) {
+                        migrated += writeMigrationBatch(batch, batchIds);
+                        skipped += batch.size() - batchIds.size();
+                        batch.clear();
+                        batchIds.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    migrated += writeMigrationBatch(batch, batchIds);
+                    skipped += batch.size() - batchIds.size();
+                }
+                log.info(String.format("Converted %d string encoded session maps to subdocuments; skipped %d",
+                        migrated, skipped));
+            } catch (RuntimeException e) {
+                log.error(String.format("Session migration stopped after converting %d session maps; " +
+                        "the rest are converted when read, or at the next startup: ", migrated), e);
+            }
+        }, "session-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    /**
+     * Writes a migration batch, returning the number of accounts converted. Accounts whose update fails are logged
+     * and removed from ids, so the caller can count them as skipped.
+     */
+    private long writeMigrationBatch(List<WriteModel<Document>> batch, List<Object> ids) {
+        try {
+            return collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        } catch (MongoBulkWriteException e) {
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+            List<Object> failed = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                Object id = ids.get(error.getIndex());
+                log.warn(String.format("Skipped the sessions of account %s, which couldn't be written: %s", id, error.getMessage()));
+                failed.add(id);
+            }
+            ids.removeAll(failed);
+            return e.getWriteResult().getModifiedCount();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores SSO suites in the sso_suites collection, with a unique index on the name.
+ */
+@Repository
+@Profile("!memory & !transfer")
+public class MongoSsoSuiteStore implements SsoSuiteStore {
+
+    @Autowired
+    private MongoDatabase database;
+
+    private MongoCollection<Document> collection;
+
+    private static final String COLLECTION_NAME = "sso_suites";
+
+    @PostConstruct
+    public void init() {
+        this.collection = database.getCollection(COLLECTION_NAME);
+
+        Repository.createUniqueIndex(collection, SsoSuiteRepository.NAME_FIELD, SsoSuiteRepository.NAME_FIELD + "_1");
+    }
+
+    @Override
+    public String insert(Document ssoSuite) throws BadRequestException {
+        try {
+            return collection.insertOne(ssoSuite).getInsertedId().asObjectId().getValue().toString();
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                throw SsoSuiteRepository.duplicateSsoSuiteException(ssoSuite.getString(SsoSuiteRepository.NAME_FIELD));
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Document findById(ObjectId id, String... fields) {
+        return collection.find(Filters.eq("_id", id)).projection(projection(fields)).first();
+    }
+
+    @Override
+    public List<Document> findAll(int limit, String... fields) {
+        return collection.find().projection(projection(fields)).limit(limit).into(new ArrayList<>());
+    }
+
+    private static Bson projection(String[] fields) {
+        return fields.length == 0 ? null : Projections.include(fields);
+    }
+}
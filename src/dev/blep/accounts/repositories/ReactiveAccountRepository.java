@@ -0,0 +1,396 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import dev.blep.accounts.entities.AccountEntity;
+import dev.blep.accounts.entities.IntrospectionResult;
+import dev.blep.accounts.entities.SessionTokens;
+import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.util.PasswordHasher;
+import dev.blep.accounts.util.RefreshToken;
+import dev.blep.accounts.util.TokenRevocationList;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.naming.AuthenticationException;
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.mongodb.client.model.Updates.set;
+import static dev.blep.accounts.repositories.Repository.getFieldValue;
+
+/**
+ * Non-blocking counterpart of {@link AccountRepository}, backed by the reactive streams driver.
+ * JWT signing and verification are shared with {@link AccountRepository}, and the index and legacy session
+ * migration run at startup by {@link MongoAccountStore}. The memory profile has no reactive counterpart. BCrypt
+ * work runs on the {@link PasswordHasher} pool, never on an event loop.
+ * The accounts collection is read and written directly rather than through {@link AccountStore}, whose methods
+ * block.
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Log4j2
+public class ReactiveAccountRepository {
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private ReactiveSsoSuiteRepository ssoSuiteRepository;
+
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private TokenRevocationList revocationList;
+
+    @Autowired
+    private MongoDatabase database;
+
+    @Autowired
+    private AccountIdentityFilter identityFilter;
+
+    @Autowired
+    private SsoSuiteCache ssoSuiteCache;
+
+    private MongoCollection<Document> collection;
+
+    private static final String COLLECTION_NAME = "accounts";
+    private static final String EMAIL_FIELD = "email";
+    private static final String USERNAME_FIELD = "username";
+    private static final String PASSWORD_FIELD = "password";
+    private static final String TYPE_FIELD = "type";
+    private static final String SSO_FIELD = "ssoSuiteJwt";
+
+    /** Fields needed to authenticate an account and update its type or sessions */
+    private static final Bson ACCOUNT_PROJECTION = Projections.include(PASSWORD_FIELD, TYPE_FIELD, SSO_FIELD,
+            AccountRepository.REFRESH_FIELD);
+
+    /** Fields needed to match JWTs to the sessions of the accounts they were issued to */
+    private static final Bson SESSION_OWNER_PROJECTION = Projections.include(AccountRepository.SESSION_OWNER_FIELDS);
+
+    @PostConstruct
+    public void init() {
+        this.collection = database.getCollection(COLLECTION_NAME);
+    }
+
+    public Mono<Void> createAccount(String username, String email, String hashedPassword, String accountType) {
+
+        Document doc = new Document(EMAIL_FIELD, email)
+                .append(USERNAME_FIELD, username)
+                .append(PASSWORD_FIELD, hashedPassword)
+                .append(TYPE_FIELD, accountType)
+                .append(SSO_FIELD, new Document());
+
+        identityFilter.add(username, email);
+        return Mono.from(collection.insertOne(doc))
+                .onErrorMap(MongoWriteException.class,
+                        e -> MongoAccountStore.duplicateAccountException(e, username, email))
+                .then();
+    }
+
+    /** See {@link AccountRepository#loginAndGetJwt} */
+    public Mono<SessionTokens> loginAndGetJwt(String userIdField, String userId, String password, String ssoSuiteId) {
+        return login(userIdField, userId, password, ssoSuiteId).flatMap(this::issueSessionTokens);
+    }
+
+    /** See {@link AccountRepository#login} */
+    public Mono<AccountRepository.Login> login(String userIdField, String userId, String password, String ssoSuiteId) {
+
+        return authenticate(userIdField, userId, password).flatMap(accountDoc -> getAccessTokenTtl(ssoSuiteId)
+                .flatMap(accessTokenTtl -> getSessions(accountDoc).map(sessions -> {
+                    String dbJwt = getFieldValue(sessions, ssoSuiteId);
+
+                    // if the user is already signed in and jwt is unexpired, return jwt
+                    if (dbJwt != null && !dbJwt.isEmpty()) {
+                        try {
+                            if (!accountRepository.isRevoked(accountRepository.verifyJwt(dbJwt))) {
+                                return new AccountRepository.Login(accountDoc, userId, ssoSuiteId, dbJwt, false);
+                            }
+                        } catch (ExpiredJwtException | AuthenticationException e) {
+                            // Expired, or signed with a key that has since been removed
+                        }
+                    }
+                    // if user wasn't signed in or their database jwt expired, sign in and return new jwt
+                    return new AccountRepository.Login(accountDoc, userId, ssoSuiteId,
+                            accountRepository.signJwt(userId, ssoSuiteId, accessTokenTtl), true);
+                })));
+    }
+
+    /** See {@link AccountRepository#issueSessionTokens} */
+    public Mono<SessionTokens> issueSessionTokens(AccountRepository.Login login) {
+        List<Bson> updates = login.getUpdates();
+        SessionTokens tokens = new SessionTokens(login.getJwt(), accountRepository.issueRefreshToken(
+                login.getAccountDoc(), login.getUserId(), login.getSsoSuiteId(), updates));
+        if (updates.isEmpty()) {
+            return Mono.just(tokens);
+        }
+        return Mono.from(collection.updateOne(Filters.eq("_id", login.getAccountDoc().get("_id")), Updates.combine(updates)))
+                .thenReturn(tokens);
+    }
+
+    /** Emits the lifetime in seconds of the suite's access JWTs, failing if the suite isn't registered */
+    private Mono<Long> getAccessTokenTtl(String ssoSuiteId) {
+        return ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId)
+                .switchIfEmpty(Mono.error(() -> new BadRequestException(AccountRepository.SSO_SUITE_NOT_REGISTERED)));
+    }
+
+    /** See {@link AccountRepository#refresh} */
+    public Mono<SessionTokens> refresh(String refreshToken) {
+        RefreshToken token = RefreshToken.parse(refreshToken);
+        if (token == null) {
+            return Mono.error(new AuthenticationException("The refresh token provided is invalid"));
+        }
+        return Mono.from(collection.find(Filters.eq("_id", token.getAccountId()))
+                        .projection(Projections.include(AccountRepository.refreshTokenField(token)))
+                        .first())
+                .flatMap(accountDoc -> Mono.justOrEmpty(AccountRepository.getLiveRefreshToken(accountDoc, token)))
+                .switchIfEmpty(Mono.error(() -> new AuthenticationException("The refresh token provided is invalid, " +
+                        "expired or signed out. Sign in using the web app")))
+                .flatMap(entry -> getAccessTokenTtl(token.getSsoSuiteId()).flatMap(accessTokenTtl -> {
+                    String jwt = accountRepository.signJwt(entry.getString("userId"), token.getSsoSuiteId(), accessTokenTtl);
+                    RefreshToken next = RefreshToken.issue(token.getAccountId(), token.getSsoSuiteId());
+                    return Mono.from(collection.updateOne(refreshTokenFilter(token),
+                                    AccountRepository.rotateRefreshToken(token, next, entry, jwt)))
+                            .flatMap(result -> result.getMatchedCount() == 0
+                                    ? Mono.error(new AuthenticationException("The refresh token provided has already been used"))
+                                    : Mono.just(new SessionTokens(jwt, next.toString())));
+                }));
+    }
+
+    /** Matches the account only while it still holds the token */
+    private static Bson refreshTokenFilter(RefreshToken token) {
+        return Filters.and(Filters.eq("_id", token.getAccountId()), Filters.exists(AccountRepository.refreshTokenField(token)));
+    }
+
+    /** Returns the account's map of SSO suite id to JWT, converting a legacy string in place */
+    private Mono<Document> getSessions(Document accountDoc) {
+        Object sessions = accountDoc.get(SSO_FIELD);
+        if (sessions instanceof Document) {
+            return Mono.just((Document) sessions);
+        } else if (sessions instanceof String) {
+            Document converted = AccountRepository.parseLegacySessions((String) sessions);
+            return Mono.from(collection.updateOne(
+                    Filters.and(Filters.eq("_id", accountDoc.get("_id")), Filters.type(SSO_FIELD, BsonType.STRING)),
+                    set(SSO_FIELD, converted))).thenReturn(converted);
+        } else {
+            return Mono.just(new Document());
+        }
+    }
+
+    public Mono<Void> verifyCredentials(String userIdField, String userId, String inputPassword) {
+        return authenticate(userIdField, userId, inputPassword).then();
+    }
+
+    /**
+     * Loads the account with a single projected query and checks the password against it on the hashing pool.
+     * Emits the account document so callers can reuse it rather than querying again.
+     */
+    private Mono<Document> authenticate(String userIdField, String userId, String inputPassword) {
+        return (identityFilter.mightContain(userIdField, userId) ? findAccount(userIdField, userId) : Mono.<Document>empty())
+                .switchIfEmpty(Mono.error(() -> {
+                    if (userIdField.equals("email")) {
+                        return new AuthenticationException(String.format("An account with the email '%s' doesn't exist", userId));
+                    } else {
+                        return new AuthenticationException(String.format("An account with the username '%s' doesn't exist", userId));
+                    }
+                }))
+                .flatMap(accountDoc -> {
+                    // If the account exists, as ensured above, it will always have an associated password
+                    String hashedPassword = getFieldValue(accountDoc, PASSWORD_FIELD);
+                    return Mono.fromFuture(passwordHasher.matchesAsync(inputPassword, hashedPassword))
+                            .flatMap(matches -> {
+                                if (!matches) {
+                                    return Mono.error(new AuthenticationException("The password provided is incorrect"));
+                                }
+
+                                // Converge stored hashes to this node's cost. Only replace the hash that was verified
+                                if (passwordHasher.needsRehash(hashedPassword)) {
+                                    Object accountId = accountDoc.get("_id");
+                                    passwordHasher.rehashInBackground(inputPassword, rehashedPassword ->
+                                            Mono.from(collection.updateOne(
+                                                    Filters.and(Filters.eq("_id", accountId), Filters.eq(PASSWORD_FIELD, hashedPassword)),
+                                                    set(PASSWORD_FIELD, rehashedPassword))).subscribe());
+                                }
+                                return Mono.just(accountDoc);
+                            });
+                });
+    }
+
+    private Mono<Document> findAccount(String userIdField, String userId) {
+        return Mono.from(collection.find(Filters.eq(userIdField, userId)).projection(ACCOUNT_PROJECTION).first());
+    }
+
+    /** See {@link AccountRepository#getFallbackUserIdField} */
+    private Mono<Document> findTokenOwner(String userIdField, String userId) {
+        String fallbackUserIdField = AccountRepository.getFallbackUserIdField(userIdField, userId);
+        return findAccount(userIdField, userId).switchIfEmpty(
+                Mono.defer(() -> fallbackUserIdField == null ? Mono.empty() : findAccount(fallbackUserIdField, userId)));
+    }
+
+    /** Matches the account a token was issued to; see {@link AccountRepository#getFallbackUserIdField} */
+    private static Bson tokenOwnerFilter(String userIdField, String userId) {
+        String fallbackUserIdField = AccountRepository.getFallbackUserIdField(userIdField, userId);
+        return fallbackUserIdField == null ? Filters.eq(userIdField, userId)
+                : Filters.or(Filters.eq(userIdField, userId), Filters.eq(fallbackUserIdField, userId));
+    }
+
+    /** Signals ExpiredJwtException for expired tokens; it is handled by the calling function */
+    public Mono<String> verifyJwtAndGetJwt(String jwt, boolean renew) {
+
+        if (accountRepository.isStatelessVerification() && !renew) {
+            return Mono.fromCallable(() -> accountRepository.verifyJwtStateless(jwt));
+        }
+
+        return Mono.fromCallable(() -> accountRepository.verifyJwt(jwt)).flatMap(claims -> {
+            Map<String, String> userInfoMap = accountRepository.getUserInfo(claims);
+            String userIdField = userInfoMap.get("userIdField");
+            String userId = userInfoMap.get("userId");
+            String ssoSuiteId = userInfoMap.get("ssoSuiteId");
+            long expireTime = claims.getExpiration().getTime() / 1000;
+
+            return findTokenOwner(userIdField, userId).flatMap(accountDoc -> getSessions(accountDoc).flatMap(sessions -> {
+                String dbJwt = getFieldValue(sessions, ssoSuiteId);
+
+                // if user account associated with query jwt is signed in
+                if (dbJwt == null || dbJwt.isEmpty()) {
+                    return Mono.empty();
+                } else if (!renew) {
+                    return Mono.just(dbJwt);
+                } else if (expireTime - Instant.now().getEpochSecond() <= 30) {
+                    return getAccessTokenTtl(ssoSuiteId).flatMap(accessTokenTtl -> {
+                        String newJwt = accountRepository.signJwt(userId, ssoSuiteId, accessTokenTtl);
+                        return Mono.from(collection.updateOne(Filters.eq("_id", accountDoc.get("_id")),
+                                set(SSO_FIELD + "." + ssoSuiteId, newJwt))).thenReturn(newJwt);
+                    });
+                } else {
+                    return Mono.error(new BadRequestException("JWT tokens can only be renewed if they expire in 30 or fewer seconds"));
+                }
+            }));
+        }).switchIfEmpty(Mono.error(() -> new AuthenticationException("The account associated with the provided JWT is signed out. " +
+                "Sign in using the web app")));
+    }
+
+    /**
+     * See {@link AccountRepository#introspect}. Verifying the signatures of a large batch is CPU bound, so it runs on
+     * the parallel scheduler instead of the event loop.
+     */
+    public Mono<List<IntrospectionResult>> introspect(List<String> jwts) {
+        List<IntrospectionResult> results = new ArrayList<>(jwts.size());
+        return Mono.fromCallable(() -> accountRepository.verifyAll(jwts, results))
+                .subscribeOn(Schedulers.parallel())
+                .flatMap(claims -> {
+                    Set<String> usernames = new HashSet<>();
+                    Set<String> emails = new HashSet<>();
+                    accountRepository.addSessionOwners(claims, usernames, emails);
+                    if (usernames.isEmpty() && emails.isEmpty()) {
+                        return Mono.just(results);
+                    }
+                    return Flux.from(collection.find(MongoAccountStore.identitiesFilter(usernames, emails))
+                                    .projection(SESSION_OWNER_PROJECTION))
+                            .collectList()
+                            .map(owners -> {
+                                accountRepository.resolveSessions(results, claims, owners);
+                                return results;
+                            });
+                });
+    }
+
+    /** Emits the new API key when the account becomes a developer account, and completes empty otherwise */
+    public Mono<String> changeAccountType(String userIdField, String userId, String inputPassword, String accountType) {
+        Field[] types = AccountEntity.Types.class.getDeclaredFields();
+        List<String> typeStrings = new ArrayList<>();
+        for (Field f: types) {
+            try {
+                typeStrings.add((String) f.get(AccountEntity.Types.class));
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (!typeStrings.contains(accountType)) {
+            return Mono.error(new BadRequestException("Valid account types are: " + typeStrings.toString()));
+        }
+        return authenticate(userIdField, userId, inputPassword).flatMap(doc -> {
+            String previousType = getFieldValue(doc, TYPE_FIELD);
+            if (accountType.equals(previousType)) {
+                return Mono.error(new BadRequestException("Cannot change account type to the existing type. Specify a 'type' field " +
+                        "in your request with a value from: " + typeStrings.toString()));
+            }
+            return Mono.from(collection.updateOne(Filters.eq("_id", doc.get("_id")), set(TYPE_FIELD, accountType)))
+                    .then(Mono.justOrEmpty(accountType.equals(AccountEntity.Types.DEVELOPER) ? doc.get("_id").toString() : null));
+        });
+    }
+
+    /** Completes empty when no document has the id, or the id isn't a valid ObjectId */
+    public Mono<Document> getDocument(String objectID) {
+        if (objectID == null || !ObjectId.isValid(objectID)) {
+            return Mono.empty();
+        }
+        return Mono.from(collection.find(Filters.eq("_id", new ObjectId(objectID))).first());
+    }
+
+    /** See {@link AccountRepository#isDeveloperApiKey} */
+    public Mono<Boolean> isDeveloperApiKey(String apiKey) {
+        if (apiKey == null || !ObjectId.isValid(apiKey)) {
+            return Mono.just(false);
+        }
+        return Mono.from(collection.find(Filters.eq("_id", new ObjectId(apiKey))).projection(Projections.include(TYPE_FIELD)).first())
+                .map(accountDoc -> AccountEntity.Types.DEVELOPER.equals(accountDoc.getString(TYPE_FIELD)))
+                .defaultIfEmpty(false);
+    }
+
+    public Mono<Void> signOut(String jwt) {
+
+        // Expired JWTs may still be signed out, but their signature must be valid
+        return Mono.fromCallable(() -> accountRepository.verifyJwt(jwt))
+                .onErrorResume(ExpiredJwtException.class, e -> Mono.just(e.getClaims()))
+                .flatMap(this::signOut);
+    }
+
+    private Mono<Void> signOut(Claims claims) {
+        Map<String, String> userInfoMap = accountRepository.getUserInfo(claims);
+        String userIdField = userInfoMap.get("userIdField");
+        String userId = userInfoMap.get("userId");
+        String ssoSuiteId = userInfoMap.get("ssoSuiteId");
+
+        // Every token issued for this suite so far expires no later than one suite token lifetime from now
+        long signedOutAt = System.currentTimeMillis();
+        return ssoSuiteRepository.getAccessTokenTtl(ssoSuiteId)
+                .onErrorResume(BadRequestException.class, e -> Mono.empty())
+                .defaultIfEmpty(ssoSuiteCache.getMaxAccessTokenTtl())
+                .doOnNext(revocationWindow -> revocationList.revoke(userId, ssoSuiteId, signedOutAt,
+                        signedOutAt / 1000 + revocationWindow))
+                // Sessions already stored as a subdocument can be cleared without reading the account
+                .then(Mono.from(collection.updateOne(
+                        Filters.and(tokenOwnerFilter(userIdField, userId), Filters.type(SSO_FIELD, BsonType.DOCUMENT)),
+                        AccountRepository.signOutUpdate(ssoSuiteId))))
+                .filter(result -> result.getMatchedCount() == 0)
+                .flatMap(result -> Mono.from(collection.find(tokenOwnerFilter(userIdField, userId))
+                        .projection(Projections.include(SSO_FIELD)).first()))
+                .flatMap(accountDoc -> getSessions(accountDoc).then(Mono.from(collection.updateOne(
+                        Filters.eq("_id", accountDoc.get("_id")), AccountRepository.signOutUpdate(ssoSuiteId)))))
+                .then();
+    }
+}
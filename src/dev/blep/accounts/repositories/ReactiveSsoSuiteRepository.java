@@ -0,0 +1,100 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Non-blocking counterpart of {@link SsoSuiteRepository}, sharing its cache.
+ * The index and cache warm-up are left to {@link MongoSsoSuiteStore} and {@link SsoSuiteRepository}, which
+ * still run at startup.
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveSsoSuiteRepository {
+
+    @Autowired
+    private ReactiveAccountRepository accountRepository;
+
+    @Autowired
+    private MongoDatabase database;
+
+    @Autowired
+    private SsoSuiteCache ssoSuiteCache;
+
+    private MongoCollection<Document> collection;
+
+    private static final String COLLECTION_NAME = "sso_suites";
+    private static final String NAME_FIELD = "name";
+
+    @PostConstruct
+    public void init() {
+        this.collection = database.getCollection(COLLECTION_NAME);
+    }
+
+    public Mono<String> createSsoSuite(String userIdField, String userId, String apiKey, String ssoSuite, Long accessTokenTtl) {
+
+        try {
+            ssoSuiteCache.checkAccessTokenTtl(accessTokenTtl);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+        Document doc = new Document(NAME_FIELD, ssoSuite);
+        if (accessTokenTtl != null) {
+            doc.append(SsoSuiteCache.ACCESS_TOKEN_TTL_FIELD, accessTokenTtl);
+        }
+
+        // Only dev accounts can create sso suites
+        return accountRepository.getDocument(apiKey)
+                .filter(accountDocument -> userId.equals(accountDocument.get(userIdField)))
+                .switchIfEmpty(Mono.error(() -> new BadRequestException("The apiKey provided is invalid")))
+                .flatMap(accountDocument -> Mono.from(collection.insertOne(doc)))
+                .map(result -> {
+                    String ssoSuiteId = result.getInsertedId().asObjectId().getValue().toString();
+                    ssoSuiteCache.put(ssoSuiteId, doc);
+                    return ssoSuiteId;
+                })
+                .onErrorMap(MongoWriteException.class, e -> {
+                    if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                        return new BadRequestException(String.format("An SSO suite with the name '%s' already exists",
+                                ssoSuite));
+                    }
+                    return e;
+                });
+    }
+
+    public Mono<Boolean> ssoSuiteExists(String ssoSuiteId) {
+        return getAccessTokenTtl(ssoSuiteId).hasElement();
+    }
+
+    /** Emits the lifetime in seconds of the suite's access JWTs, or completes empty if it isn't registered */
+    public Mono<Long> getAccessTokenTtl(String ssoSuiteId) {
+        Long cached = ssoSuiteCache.lookup(ssoSuiteId);
+        if (cached != null) {
+            return cached == SsoSuiteCache.UNREGISTERED ? Mono.empty() : Mono.just(cached);
+        }
+
+        // Malformed ids are rejected without a query, so they never need caching
+        if (!ObjectId.isValid(ssoSuiteId)) {
+            return Mono.error(new BadRequestException("The ssoSuiteId provided is invalid"));
+        }
+        return Mono.from(collection.find(Filters.eq("_id", new ObjectId(ssoSuiteId)))
+                        .projection(Projections.include(SsoSuiteCache.ACCESS_TOKEN_TTL_FIELD))
+                        .first())
+                .map(ssoSuiteDoc -> ssoSuiteCache.put(ssoSuiteId, ssoSuiteDoc))
+                .switchIfEmpty(Mono.fromRunnable(() -> ssoSuiteCache.put(ssoSuiteId, null)));
+    }
+
+}
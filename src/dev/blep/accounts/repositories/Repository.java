@@ -1,39 +1,57 @@
 package dev.blep.accounts.repositories;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import lombok.extern.log4j.Log4j2;
 import org.bson.Document;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Log4j2
 public class Repository {
 
-    public static boolean fieldValueExists(MongoCollection<Document> collection, String filterField, String filterValue) {
-        return collection.countDocuments(
-                Filters.eq(filterField, filterValue)) != 0;
-    }
+    /** Duplicated values listed when a unique index can't be created */
+    private static final int MAX_DUPLICATES_REPORTED = 20;
 
-    /**
-     * Searches collection for doc containing "filterField": "filterValue"
-     * Returns "field" element of first search result*/
-    public static String getFieldValue(MongoCollection<Document> collection, String field, String filterField, String filterValue) throws JSONException {
-
-        /*TODO: find more modern means of extracting field value from db search doc*/
-        String json = collection.find(Filters.eq(filterField, filterValue)).first().toJson();
-        JSONObject jsonObject = new JSONObject(json);
-        try {
-            return (String) jsonObject.get(field);
-        } catch (JSONException e) {
-            return null;
-        }
+    public static String getFieldValue(Document doc, String field) {
+        Object value = doc.get(field);
+        return value instanceof String ? (String) value : null;
     }
 
-    public static String getFieldValue(Document doc, String field) {
-        JSONObject jsonObject = new JSONObject(doc.toJson());
+    /**
+     * Creates a unique index on the field. If documents already share a value, e.g. accounts created by racing
+     * requests before the index existed, logs the values and their _ids and fails, since the index is what keeps
+     * the field unique. See "Unique indexes" in the README to resolve them.
+     */
+    static void createUniqueIndex(MongoCollection<Document> collection, String field, String indexName) {
         try {
-            return (String) jsonObject.get(field);
-        } catch (JSONException e) {
-            return null;
+            collection.createIndex(Indexes.ascending(field), new IndexOptions().unique(true).name(indexName));
+        } catch (MongoCommandException e) {
+            if (ErrorCategory.fromErrorCode(e.getErrorCode()) != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+            List<Document> duplicates = collection.aggregate(Arrays.asList(
+                    Aggregates.group("$" + field, Accumulators.push("ids", "$_id"), Accumulators.sum("count", 1)),
+                    Aggregates.match(Filters.gt("count", 1)),
+                    Aggregates.limit(MAX_DUPLICATES_REPORTED)))
+                    .allowDiskUse(true)
+                    .into(new ArrayList<>());
+            for (Document duplicate : duplicates) {
+                log.error(String.format("%s.%s '%s' is held by %d documents: %s", collection.getNamespace().getCollectionName(),
+                        field, duplicate.get("_id"), duplicate.getInteger("count"), duplicate.get("ids")));
+            }
+            throw new IllegalStateException(String.format("Can't create the unique index %s on %s.%s because documents " +
+                            "share a value; the first %d are logged above. Rename or remove the duplicates so each value " +
+                            "is held once, as described under \"Unique indexes\" in the README, then restart",
+                    indexName, collection.getNamespace().getCollectionName(), field, MAX_DUPLICATES_REPORTED), e);
         }
     }
 }
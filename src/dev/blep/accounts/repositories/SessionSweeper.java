@@ -0,0 +1,254 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Updates.unset;
+import static dev.blep.accounts.util.AccountValidator.getJwtPayload;
+
+/**
+ * Periodically removes expired and empty sessions, and expired refresh tokens, from account documents, which
+ * otherwise keep every SSO suite a user ever signed in to. Accounts are streamed in batches and the sweep is paced
+ * to app.sessions.sweep.maxAccountsPerSecond.
+ * Each session is removed only if it still holds the JWT that was read, so a sign-in racing the sweep is kept.
+ * Removals are idempotent, so instances may sweep concurrently, but each would scan every account, so the sweeper is
+ * disabled by default and should be enabled on a single instance.
+ */
+@Component
+@Profile("!memory & !transfer")
+@Log4j2
+public class SessionSweeper {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private MongoDatabase database;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final String COLLECTION_NAME = "accounts";
+    private static final String SSO_FIELD = "ssoSuiteJwt";
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static final String REFRESH_FIELD = AccountRepository.REFRESH_FIELD;
+
+    private MongoCollection<Document> collection;
+
+    private ScheduledExecutorService sweeper;
+
+    private int batchSize;
+
+    private int maxAccountsPerSecond;
+
+    private Counter expiredRemoved;
+
+    private Counter emptyRemoved;
+
+    private Counter refreshTokensRemoved;
+
+    private Counter bytesReclaimed;
+
+    @PostConstruct
+    public void init() {
+        if (!env.getProperty("app.sessions.sweep.enabled", Boolean.class, false)) {
+            return;
+        }
+        long intervalMs = env.getProperty("app.sessions.sweep.intervalMs", Long.class, TimeUnit.HOURS.toMillis(1));
+        this.batchSize = env.getProperty("app.sessions.sweep.batchSize", Integer.class, 500);
+        this.maxAccountsPerSecond = env.getProperty("app.sessions.sweep.maxAccountsPerSecond", Integer.class, 2000);
+        this.collection = database.getCollection(COLLECTION_NAME);
+
+        this.expiredRemoved = Counter.builder("sessions.swept").tag("reason", "expired")
+                .description("Expired sessions removed from accounts").register(meterRegistry);
+        this.emptyRemoved = Counter.builder("sessions.swept").tag("reason", "empty")
+                .description("Signed out sessions left as empty strings, removed from accounts").register(meterRegistry);
+        this.refreshTokensRemoved = Counter.builder("sessions.swept").tag("reason", "refresh")
+                .description("Expired refresh tokens removed from accounts").register(meterRegistry);
+        this.bytesReclaimed = Counter.builder("sessions.swept.bytes").baseUnit("bytes")
+                .description("Approximate BSON size of the sessions removed").register(meterRegistry);
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /** Runs one pass over every account with sessions */
+    public void sweep() {
+        long startTime = System.nanoTime();
+        Date now = new Date();
+        long accounts = 0;
+        Sweep sweep = new Sweep();
+        try {
+            for (Document accountDoc : collection.find(Filters.or(
+                            Filters.and(Filters.type(SSO_FIELD, BsonType.DOCUMENT), Filters.ne(SSO_FIELD, new Document())),
+                            Filters.and(Filters.type(REFRESH_FIELD, BsonType.DOCUMENT), Filters.ne(REFRESH_FIELD, new Document()))))
+                    .projection(Projections.include(SSO_FIELD, REFRESH_FIELD))
+                    .batchSize(batchSize)) {
+                collectRemovals(accountDoc, now, sweep);
+                if (++accounts % batchSize == 0) {
+                    write(sweep.batch);
+                    pace(startTime, accounts);
+                }
+            }
+            write(sweep.batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Session sweep stopped early: ", e);
+        }
+
+        expiredRemoved.increment(sweep.expired);
+        emptyRemoved.increment(sweep.empty);
+        refreshTokensRemoved.increment(sweep.refresh);
+        bytesReclaimed.increment(sweep.bytes);
+        log.info(String.format("Swept sessions of %d accounts in %d ms: removed %d expired and %d empty, and %d " +
+                        "expired refresh tokens, reclaiming about %d bytes",
+                accounts, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), sweep.expired, sweep.empty,
+                sweep.refresh, sweep.bytes));
+    }
+
+    /** Adds the updates removing an account's expired and empty sessions and expired refresh tokens */
+    static void collectRemovals(Document accountDoc, Date now, Sweep sweep) {
+        long nowSeconds = TimeUnit.MILLISECONDS.toSeconds(now.getTime());
+        Document sessions = accountDoc.get(SSO_FIELD) instanceof Document ? (Document) accountDoc.get(SSO_FIELD) : new Document();
+        for (Map.Entry<String, Object> session : sessions.entrySet()) {
+            Object jwt = session.getValue();
+            boolean isEmpty = !(jwt instanceof String) || ((String) jwt).isEmpty();
+            if (!isEmpty && !isExpired((String) jwt, nowSeconds)) {
+                continue;
+            }
+            String field = SSO_FIELD + "." + session.getKey();
+            sweep.batch.add(new UpdateOneModel<>(
+                    Filters.and(Filters.eq("_id", accountDoc.get("_id")), Filters.eq(field, jwt)),
+                    unset(field)));
+            if (isEmpty) {
+                sweep.empty++;
+            } else {
+                sweep.expired++;
+            }
+            sweep.bytes += bsonSize(session.getKey(), jwt);
+        }
+        Document refreshTokens = accountDoc.get(REFRESH_FIELD) instanceof Document
+                ? (Document) accountDoc.get(REFRESH_FIELD) : new Document();
+        for (Map.Entry<String, Object> suite : refreshTokens.entrySet()) {
+            if (!(suite.getValue() instanceof Document)) {
+                continue;
+            }
+            Document suiteTokens = (Document) suite.getValue();
+            String suiteField = REFRESH_FIELD + "." + suite.getKey();
+            List<String> expiredTokens = new ArrayList<>();
+            for (Map.Entry<String, Object> token : suiteTokens.entrySet()) {
+                Date expiry = AccountRepository.getRefreshTokenExpiry(token.getValue());
+                if (expiry == null || !expiry.after(now)) {
+                    expiredTokens.add(token.getKey());
+                    sweep.bytes += bsonSize(token.getKey(), token.getValue());
+                }
+            }
+            if (expiredTokens.size() == suiteTokens.size()) {
+                // Drop the suite's map too, unless a sign-in added a token since it was read
+                sweep.batch.add(new UpdateOneModel<>(
+                        Filters.and(Filters.eq("_id", accountDoc.get("_id")), Filters.eq(suiteField, suiteTokens)),
+                        unset(suiteField)));
+            } else {
+                for (String hash : expiredTokens) {
+                    sweep.batch.add(new UpdateOneModel<>(Filters.eq("_id", accountDoc.get("_id")), unset(suiteField + "." + hash)));
+                }
+            }
+            sweep.refresh += expiredTokens.size();
+        }
+    }
+
+    private void write(List<WriteModel<Document>> batch) {
+        if (!batch.isEmpty()) {
+            collection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+            batch.clear();
+        }
+    }
+
+    /** Sleeps as long as needed to keep the sweep under its accounts per second budget */
+    private void pace(long startTime, long accounts) throws InterruptedException {
+        long budgetNanos = TimeUnit.SECONDS.toNanos(accounts) / maxAccountsPerSecond;
+        long aheadNanos = budgetNanos - (System.nanoTime() - startTime);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    /** Reads the expiry without checking the signature; only this service writes sessions */
+    private static boolean isExpired(String jwt, long now) {
+        try {
+            Object exp = Document.parse(getJwtPayload(jwt)).get("exp");
+            return !(exp instanceof Number) || ((Number) exp).longValue() <= now;
+        } catch (RuntimeException e) {
+            // A session that can't be decoded can never be verified either
+            return true;
+        }
+    }
+
+    /** Size of an element: type byte, key and its terminator, then the value as encoded by BSON */
+    private static long bsonSize(String key, Object value) {
+        long valueSize;
+        if (value instanceof String) {
+            // Length prefix, the UTF-8 bytes and a terminator
+            valueSize = 4 + ((String) value).getBytes(StandardCharsets.UTF_8).length + 1;
+        } else if (value instanceof Document) {
+            valueSize = new RawBsonDocument((Document) value, DOCUMENT_CODEC).getByteBuffer().remaining();
+        } else {
+            valueSize = 0;
+        }
+        return 1 + key.getBytes(StandardCharsets.UTF_8).length + 1 + valueSize;
+    }
+
+    /** The updates and counts of one pass, written and reported in batches */
+    static final class Sweep {
+
+        final List<WriteModel<Document>> batch = new ArrayList<>();
+
+        long expired;
+
+        long empty;
+
+        long refresh;
+
+        long bytes;
+    }
+}
@@ -0,0 +1,126 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.util.BoundedCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * In-process cache of SSO suite ids and their access token lifetimes, shared by the blocking and reactive SSO
+ * suite repositories, which also read the lifetime limits from here.
+ */
+@Component
+public class SsoSuiteCache {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** Returned by {@link #lookup} for a suite known not to exist */
+    public static final long UNREGISTERED = 0;
+
+    /** Optional field of an sso_suites document holding the lifetime of its access JWTs, in seconds */
+    public static final String ACCESS_TOKEN_TTL_FIELD = "accessTokenTtlSeconds";
+
+    /**
+     * Ids of suites known to exist, mapped to their access token lifetime in seconds. Suites are never deleted or
+     * changed, so entries only leave the cache by eviction
+     */
+    private BoundedCache<String, Long> knownSsoSuites;
+
+    /** Ids of suites that didn't exist when last queried, mapped to when that answer expires */
+    private BoundedCache<String, Long> unknownSsoSuites;
+
+    private long unknownSsoSuiteTtlMillis;
+
+    private int maxSize;
+
+    private long defaultAccessTokenTtl;
+
+    private long minAccessTokenTtl;
+
+    private long maxAccessTokenTtl;
+
+    private Counter cacheHits;
+
+    private Counter cacheMisses;
+
+    @PostConstruct
+    public void init() {
+        this.maxSize = env.getProperty("app.ssoSuites.cache.maxSize", Integer.class, 10000);
+        this.unknownSsoSuiteTtlMillis = env.getProperty("app.ssoSuites.cache.negativeTtlMs", Long.class, 5000L);
+        this.defaultAccessTokenTtl = env.getProperty("app.ssoSuites.accessTokenTtlSeconds.default", Long.class, 60L);
+        this.minAccessTokenTtl = env.getProperty("app.ssoSuites.accessTokenTtlSeconds.min", Long.class, 30L);
+        this.maxAccessTokenTtl = env.getProperty("app.ssoSuites.accessTokenTtlSeconds.max", Long.class, 86400L);
+        this.knownSsoSuites = new BoundedCache<>(maxSize);
+        this.unknownSsoSuites = new BoundedCache<>(maxSize);
+        this.cacheHits = Counter.builder("cache.gets").tag("cache", "ssoSuites").tag("result", "hit")
+                .description("SSO suite lookups answered from the cache").register(meterRegistry);
+        this.cacheMisses = Counter.builder("cache.gets").tag("cache", "ssoSuites").tag("result", "miss")
+                .description("SSO suite lookups that queried MongoDB").register(meterRegistry);
+        Gauge.builder("cache.size", knownSsoSuites, BoundedCache::size).tag("cache", "ssoSuites")
+                .register(meterRegistry);
+        Gauge.builder("cache.size", unknownSsoSuites, BoundedCache::size).tag("cache", "unknownSsoSuites")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the suite's access token lifetime in seconds if it exists, {@link #UNREGISTERED} if it doesn't, or
+     * null if the cache doesn't know and MongoDB must be queried
+     */
+    public Long lookup(String ssoSuiteId) {
+        Long accessTokenTtl = knownSsoSuites.get(ssoSuiteId);
+        if (accessTokenTtl != null) {
+            cacheHits.increment();
+            return accessTokenTtl;
+        }
+        Long unknownUntil = unknownSsoSuites.get(ssoSuiteId);
+        if (unknownUntil != null && unknownUntil > System.currentTimeMillis()) {
+            cacheHits.increment();
+            return UNREGISTERED;
+        }
+        cacheMisses.increment();
+        return null;
+    }
+
+    /** Records the answer of a query for a suite, null if it doesn't exist, and returns its lifetime as lookup does */
+    public long put(String ssoSuiteId, Document ssoSuiteDoc) {
+        if (ssoSuiteDoc != null) {
+            Object ttl = ssoSuiteDoc.get(ACCESS_TOKEN_TTL_FIELD);
+            long accessTokenTtl = ttl instanceof Number ? ((Number) ttl).longValue() : defaultAccessTokenTtl;
+            knownSsoSuites.put(ssoSuiteId, accessTokenTtl);
+            unknownSsoSuites.remove(ssoSuiteId);
+            return accessTokenTtl;
+        } else {
+            // Expire negative answers so suites created on another instance are found
+            unknownSsoSuites.put(ssoSuiteId, System.currentTimeMillis() + unknownSsoSuiteTtlMillis);
+            return UNREGISTERED;
+        }
+    }
+
+    /** Checks the lifetime requested for a new suite; null selects the default */
+    public void checkAccessTokenTtl(Long accessTokenTtl) throws BadRequestException {
+        if (accessTokenTtl != null && (accessTokenTtl < minAccessTokenTtl || accessTokenTtl > maxAccessTokenTtl)) {
+            throw new BadRequestException(String.format("'accessTokenTtl' must be between %d and %d seconds",
+                    minAccessTokenTtl, maxAccessTokenTtl));
+        }
+    }
+
+    /** The longest lifetime any suite's access tokens can have */
+    public long getMaxAccessTokenTtl() {
+        return Math.max(maxAccessTokenTtl, defaultAccessTokenTtl);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
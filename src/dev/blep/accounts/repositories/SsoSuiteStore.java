@@ -0,0 +1,24 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+
+/**
+ * Storage of SSO suite documents, whose names are unique. {@link MongoSsoSuiteStore} backs the service;
+ * {@link InMemorySsoSuiteStore} replaces it under the memory profile.
+ * Finds return only _id and the fields named, or every field if none are named.
+ */
+public interface SsoSuiteStore {
+
+    /** Inserts a suite, giving it an _id which is returned, or fails if its name is already taken */
+    String insert(Document ssoSuite) throws BadRequestException;
+
+    /** Returns the suite, or null if there is none */
+    Document findById(ObjectId id, String... fields);
+
+    /** Returns up to limit suites, e.g. to warm a cache */
+    List<Document> findAll(int limit, String... fields);
+}
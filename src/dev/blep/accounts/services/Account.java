@@ -1,19 +1,38 @@
 package dev.blep.accounts.services;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import dev.blep.accounts.entities.AccountEntity;
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.entities.BulkCreateResult;
+import dev.blep.accounts.entities.IntrospectionResult;
+import dev.blep.accounts.entities.SessionTokens;
 import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
 import dev.blep.accounts.repositories.AccountRepository;
+import dev.blep.accounts.util.LoginThrottle;
+import dev.blep.accounts.util.PasswordHasher;
+import dev.blep.accounts.util.SingleFlight;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.jsonwebtoken.ExpiredJwtException;
+import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
-import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
+import javax.annotation.PostConstruct;
 import javax.naming.AuthenticationException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 
 import static dev.blep.accounts.util.AccountValidator.*;
 
@@ -21,149 +40,362 @@ import static dev.blep.accounts.util.AccountValidator.*;
  * The business object that operates on accounts.
  */
 @Service
+@Log4j2
 public class Account {
 
     @Autowired
     private AccountRepository accountRepository;
 
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private LoginThrottle loginThrottle;
+
     @Autowired
     private Environment env;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /** Accounts written per insertMany by {@link #createAccounts} */
+    private int bulkBatchSize;
+
+    /** Accounts accepted per {@link #createAccounts} request; later accounts are not processed */
+    private int bulkMaxItems;
+
+    /**
+     * Bounds the hashes all bulk requests together keep on the hashing pool to a share of its workers, so logins
+     * always find free workers.
+     */
+    private Semaphore bulkHashPermits;
+
+    /** JWTs accepted per {@link #introspect} request */
+    private int introspectMaxTokens;
+
+    /**
+     * Concurrent identical renewals and refreshes, as sent by an app fanning out, share one verification and one
+     * session write instead of racing to overwrite each other's session.
+     */
+    private final SingleFlight<SessionTokens> authentications = new SingleFlight<>();
+
+    /**
+     * Concurrent identical logins share one password check and one JWT. Each still gets its own refresh token,
+     * since refresh tokens are single use and rotating a shared one would sign out the other callers.
+     */
+    private final SingleFlight<AccountRepository.Login> logins = new SingleFlight<>();
+
+    @PostConstruct
+    public void init() {
+        this.bulkBatchSize = env.getProperty("app.bulkCreate.batchSize", Integer.class, 1000);
+        this.bulkMaxItems = env.getProperty("app.bulkCreate.maxItems", Integer.class, 100000);
+        this.bulkHashPermits = new Semaphore(bulkHashPermits(passwordHasher.getPoolSize(),
+                env.getProperty("app.bulkCreate.hashPoolShare", Double.class, 0.5)));
+        this.introspectMaxTokens = env.getProperty("app.introspect.maxTokens", Integer.class, 1000);
+        FunctionCounter.builder("authenticate.coalesced", this,
+                        account -> account.authentications.getCoalesced() + account.logins.getCoalesced())
+                .description("Logins and renewals answered with the result of an identical concurrent request")
+                .register(meterRegistry);
+    }
+
+    /** At least one, and short of the whole pool whenever it has more than one worker */
+    static int bulkHashPermits(int poolSize, double hashPoolShare) {
+        return Math.max(1, Math.min(poolSize - 1, (int) (poolSize * hashPoolShare)));
+    }
+
     @Validated
-    public void createAccount(JsonNode requestBody) throws BadRequestException {
-
-        JsonNode usernameNode = requestBody.get("username");
-        JsonNode emailNode = requestBody.get("email");
-        JsonNode passwordNode = requestBody.get("password");
-        JsonNode accountTypeNode = requestBody.get("type");
-        String accountType;
-        if (accountTypeNode == null) {
-            accountType = "user";
-        } else {
-            accountType = accountTypeNode.asText();
+    public void createAccount(AccountRequest request) throws BadRequestException, ServiceUnavailableException {
+
+        String accountType = validateNewAccount(request);
+        String hashedPassword = passwordHasher.hash(request.getPassword());
+
+        this.accountRepository.createAccount(request.getUsername(), request.getEmail(), hashedPassword, accountType);
+
+    }
+
+    /** Bulk creation, like creating SSO suites, is limited to developer accounts */
+    public void checkDeveloperApiKey(String apiKey) throws BadRequestException {
+        if (apiKey == null) {
+            throw new BadRequestException("Include an 'X-Api-Key' header with your developer account's apiKey");
         }
-        if (usernameNode == null || emailNode == null) {
-            throw new BadRequestException("Both username and email are required");
-        } else {
-            if (!isValidEmail(emailNode.asText())) {
-                throw new BadRequestException("The email provided is invalid");
-            } else if (!isValidPassword(passwordNode.asText())) {
-                throw new BadRequestException("The password must have 8 characters and at least one capital letter, one symbol, and one number");
+        if (!accountRepository.isDeveloperApiKey(apiKey)) {
+            throw new BadRequestException("The apiKey provided is invalid");
+        }
+    }
+
+    /**
+     * Creates the accounts read from a request, hashing their passwords in parallel and writing them in
+     * unordered batches. Each account succeeds or fails on its own; a result is returned for every account read.
+     */
+    public List<BulkCreateResult> createAccounts(Iterator<AccountRequest> requests) {
+        List<BulkCreateResult> results = new ArrayList<>();
+        List<BulkCreateResult> batchResults = new ArrayList<>();
+        List<AccountEntity> batchAccounts = new ArrayList<>();
+        List<CompletableFuture<String>> batchHashes = new ArrayList<>();
+
+        for (int index = 0; ; index++) {
+            AccountRequest request;
+            try {
+                if (!requests.hasNext()) {
+                    break;
+                }
+                request = requests.next();
+            } catch (RuntimeException e) {
+                // Jackson reports malformed items through the iterator
+                results.add(bulkCreateResult(index, null, HttpStatus.BAD_REQUEST,
+                        "The account json is malformed. Accounts after it were not processed"));
+                break;
+            }
+
+            BulkCreateResult result = new BulkCreateResult(index, request.getUsername());
+            results.add(result);
+            if (index >= bulkMaxItems) {
+                result.setStatus(HttpStatus.BAD_REQUEST.toString());
+                result.setError(String.format("At most %d accounts are created per request. " +
+                        "Accounts from this one on were not processed", bulkMaxItems));
+                break;
+            }
+
+            String accountType;
+            try {
+                accountType = validateNewAccount(request);
+            } catch (BadRequestException e) {
+                result.setStatus(HttpStatus.BAD_REQUEST.toString());
+                result.setError(e.getLocalizedMessage());
+                continue;
+            }
+
+            // Blocks reading the request while the hashing pool is busy with earlier accounts
+            bulkHashPermits.acquireUninterruptibly();
+            CompletableFuture<String> hash = passwordHasher.hashAsync(request.getPassword());
+            hash.whenComplete((hashedPassword, e) -> bulkHashPermits.release());
+
+            batchResults.add(result);
+            batchAccounts.add(new AccountEntity(request.getEmail(), request.getUsername(), null, accountType));
+            batchHashes.add(hash);
+            if (batchAccounts.size() == bulkBatchSize) {
+                writeBatch(batchResults, batchAccounts, batchHashes);
+            }
+        }
+        writeBatch(batchResults, batchAccounts, batchHashes);
+        return results;
+    }
+
+    /** Waits for a batch's hashes, inserts the accounts that were hashed and records each outcome; then clears the batch */
+    private void writeBatch(List<BulkCreateResult> batchResults, List<AccountEntity> batchAccounts,
+                            List<CompletableFuture<String>> batchHashes) {
+        List<BulkCreateResult> hashedResults = new ArrayList<>(batchResults.size());
+        List<AccountEntity> hashedAccounts = new ArrayList<>(batchAccounts.size());
+        for (int i = 0; i < batchAccounts.size(); i++) {
+            try {
+                batchAccounts.get(i).setPassword(batchHashes.get(i).join());
+                hashedResults.add(batchResults.get(i));
+                hashedAccounts.add(batchAccounts.get(i));
+            } catch (CompletionException e) {
+                setBulkCreateError(batchResults.get(i), e.getCause());
             }
-            String hashedPassword = BCrypt.hashpw(passwordNode.asText(),
-                    // 13 log_rounds required on my i7 6700k, but not necessarily on production server
-                    // use test.AccountSecurity to determine secure number of log_rounds
-                    BCrypt.gensalt(13, new SecureRandom()));
+        }
 
-            this.accountRepository.createAccount(usernameNode.asText(), emailNode.asText(), hashedPassword, accountType);
+        Map<Integer, Exception> errors = accountRepository.createAccounts(hashedAccounts);
+        for (int i = 0; i < hashedResults.size(); i++) {
+            if (errors.containsKey(i)) {
+                setBulkCreateError(hashedResults.get(i), errors.get(i));
+            } else {
+                hashedResults.get(i).setStatus(HttpStatus.OK.toString());
+            }
         }
 
+        batchResults.clear();
+        batchAccounts.clear();
+        batchHashes.clear();
     }
 
-    public String authenticateAndGetJwt(JsonNode requestBody) throws BadRequestException, AuthenticationException {
+    private static void setBulkCreateError(BulkCreateResult result, Throwable e) {
+        if (e instanceof BadRequestException) {
+            result.setStatus(HttpStatus.BAD_REQUEST.toString());
+            result.setError(e.getLocalizedMessage());
+        } else if (e instanceof ServiceUnavailableException) {
+            result.setStatus(HttpStatus.SERVICE_UNAVAILABLE.toString());
+            result.setError(e.getLocalizedMessage());
+        } else {
+            log.info(String.format("Unforeseen error creating account %d: ", result.getIndex()));
+            e.printStackTrace();
+            result.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.toString());
+            result.setError("The account could not be created");
+        }
+    }
+
+    private static BulkCreateResult bulkCreateResult(int index, String username, HttpStatus status, String error) {
+        BulkCreateResult result = new BulkCreateResult(index, username);
+        result.setStatus(status.toString());
+        result.setError(error);
+        return result;
+    }
+
+    /**
+     * Checks a new account against the {@link dev.blep.accounts.util.AccountValidator} rules and returns its type.
+     * Also used by {@link ReactiveAccount}.
+     */
+    public String validateNewAccount(AccountRequest request) throws BadRequestException {
+        if (request.getUsername() == null || request.getEmail() == null) {
+            throw new BadRequestException("Both username and email are required");
+        } else if (request.getPassword() == null) {
+            throw new BadRequestException("No password provided");
+        } else if (!isValidEmail(request.getEmail())) {
+            throw new BadRequestException("The email provided is invalid");
+        } else if (!isValidPassword(request.getPassword())) {
+            throw new BadRequestException("The password must have 8 characters and at least one capital letter, one symbol, and one number");
+        }
+        return request.getType() == null ? "user" : request.getType();
+    }
+
+    /**
+     * Authenticates with a JWT, a refresh token or credentials, in that order of precedence. Signing in with
+     * credentials or a refresh token also returns a new refresh token.
+     */
+    public SessionTokens authenticateAndGetJwt(AccountRequest request) throws BadRequestException, AuthenticationException, ServiceUnavailableException, TooManyRequestsException {
 
         String userIdField;
         String userId;
-        JsonNode ssoSuiteNode;
 
         // Authentication using JWT
-        JsonNode jwtNode = requestBody.get("jwt");
-        JsonNode renewNode = requestBody.get("renew");
-        if (jwtNode != null) {
-            boolean renew = false;
-            if (renewNode != null && renewNode.asText().equals("true")) {
-                renew = true;
-            }
+        if (request.getJwt() != null) {
+            boolean renew = Boolean.TRUE.equals(request.getRenew());
             // Return the input jwt, if valid
             try {
-                return this.accountRepository.verifyJwtAndGetJwt(jwtNode.asText(), renew);
+                return coalesce(SingleFlight.key(request.getJwt(), "jwt", String.valueOf(renew)),
+                        () -> new SessionTokens(this.accountRepository.verifyJwtAndGetJwt(request.getJwt(), renew), null));
             } catch (ExpiredJwtException e) {
                 throw new AuthenticationException("The JWT provided has expired. Visit the web app to sign in/get an updated JWT");
             }
         }
 
+        // Authentication using a refresh token. Concurrent refreshes with the same token share one rotation
+        if (request.getRefreshToken() != null) {
+            return coalesce(SingleFlight.key(request.getRefreshToken(), "refresh"),
+                    () -> this.accountRepository.refresh(request.getRefreshToken()));
+        }
+
         // Authentication using user credentials
-        Map<String, String> userMap = getUserIdFieldAndUserIdMap(requestBody);
+        Map<String, String> userMap = getUserIdFieldAndUserIdMap(request);
         userIdField = userMap.get("userIdField");
         userId = userMap.get("userId");
-        JsonNode passwordNode = requestBody.get("password");
-        ssoSuiteNode = requestBody.get("ssoSuiteId");
 
-        if (passwordNode == null) {
+        if (request.getPassword() == null) {
             throw new BadRequestException("No password provided");
-        } else if (ssoSuiteNode == null) {
+        } else if (request.getSsoSuiteId() == null) {
             throw new BadRequestException("Must specify 'ssoSuiteId' in your request. Create a SSO suite at /sso-suite/create");
         }
 
-        return this.accountRepository.loginAndGetJwt(
-                userIdField,
-                userId,
-                passwordNode.asText(),
-                ssoSuiteNode.asText());
+        // Only the request that runs the check is throttled; those sharing its result cost nothing more
+        AccountRepository.Login login = coalesce(logins, SingleFlight.key(request.getPassword(), userIdField, userId, request.getSsoSuiteId()), () -> {
+            loginThrottle.acquire(userIdField, userId, request.getClientAddress());
+            return this.accountRepository.login(
+                    userIdField,
+                    userId,
+                    request.getPassword(),
+                    request.getSsoSuiteId());
+        });
+        return this.accountRepository.issueSessionTokens(login);
+    }
+
+    /** Shared with {@link ReactiveAccount}, so both report through the same meter */
+    SingleFlight<SessionTokens> getAuthentications() {
+        return authentications;
     }
 
-    public String changeAccountType(JsonNode requestBody) throws BadRequestException, AuthenticationException {
+    /** See {@link #getAuthentications} */
+    SingleFlight<AccountRepository.Login> getLogins() {
+        return logins;
+    }
+
+    private SessionTokens coalesce(String key, Callable<SessionTokens> authentication) throws BadRequestException, AuthenticationException, ServiceUnavailableException, TooManyRequestsException {
+        return coalesce(authentications, key, authentication);
+    }
 
-        Map<String, String> userMap = getUserIdFieldAndUserIdMap(requestBody);
+    private static <T> T coalesce(SingleFlight<T> flights, String key, Callable<T> call) throws BadRequestException, AuthenticationException, ServiceUnavailableException, TooManyRequestsException {
+        try {
+            return flights.execute(key, call);
+        } catch (BadRequestException | AuthenticationException | ServiceUnavailableException | TooManyRequestsException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String changeAccountType(AccountRequest request) throws BadRequestException, AuthenticationException, ServiceUnavailableException, TooManyRequestsException {
+
+        Map<String, String> userMap = getUserIdFieldAndUserIdMap(request);
         String userIdField = userMap.get("userIdField");
         String userId = userMap.get("userId");
-        JsonNode passwordNode = requestBody.get("password");
 
-        if (passwordNode == null) {
+        if (request.getPassword() == null) {
             throw new BadRequestException("No password provided");
         }
+        loginThrottle.acquire(userIdField, userId, request.getClientAddress());
 
-        this.accountRepository.verifyCredentials(
+        return this.accountRepository.changeAccountType(
                 userIdField,
                 userId,
-                passwordNode.asText());
-
-        return this.accountRepository.changeAccountType(userIdField, userId, requestBody.get("type").asText());
+                request.getPassword(),
+                request.getType());
     }
 
-    public void verifyCredentials(JsonNode requestBody) throws BadRequestException, AuthenticationException {
+    public void verifyCredentials(AccountRequest request) throws BadRequestException, AuthenticationException, ServiceUnavailableException {
 
-        Map<String, String> userMap = getUserIdFieldAndUserIdMap(requestBody);
+        Map<String, String> userMap = getUserIdFieldAndUserIdMap(request);
         String userIdField = userMap.get("userIdField");
         String userId = userMap.get("userId");
-        JsonNode passwordNode = requestBody.get("password");
 
-        if (passwordNode == null) {
+        if (request.getPassword() == null) {
             throw new BadRequestException("No password provided");
         }
 
         this.accountRepository.verifyCredentials(
                 userIdField,
                 userId,
-                passwordNode.asText());
+                request.getPassword());
     }
 
-    public Map<String, String> getUserIdFieldAndUserIdMap(JsonNode requestBody) throws BadRequestException {
-        JsonNode usernameNode = requestBody.get("username");
-        JsonNode emailNode = requestBody.get("email");
+    public Map<String, String> getUserIdFieldAndUserIdMap(AccountRequest request) throws BadRequestException {
         Map<String, String> map = new HashMap<>();
-        if (usernameNode != null) {
+        if (request.getUsername() != null) {
             map.put("userIdField", "username");
-            map.put("userId", usernameNode.asText());
-        } else if (emailNode != null) {
+            map.put("userId", request.getUsername());
+        } else if (request.getEmail() != null) {
             map.put("userIdField", "email");
-            map.put("userId", emailNode.asText());
+            map.put("userId", request.getEmail());
         } else {
             throw new BadRequestException("No username or email provided");
         }
         return map;
     }
 
-    public void signOut(JsonNode requestBody) throws BadRequestException, AuthenticationException {
+    public List<IntrospectionResult> introspect(AccountRequest request) throws BadRequestException {
+        return this.accountRepository.introspect(getIntrospectionJwts(request));
+    }
+
+    public List<String> getIntrospectionJwts(AccountRequest request) throws BadRequestException {
+        List<String> jwts = request.getJwts();
+        if (jwts == null || jwts.isEmpty()) {
+            throw new BadRequestException("Include a 'jwts' array in your request body JSON");
+        } else if (jwts.size() > introspectMaxTokens) {
+            throw new BadRequestException(String.format("At most %d JWTs can be introspected per request",
+                    introspectMaxTokens));
+        }
+        return jwts;
+    }
+
+    public void signOut(AccountRequest request) throws BadRequestException, AuthenticationException {
 
-        JsonNode jwtNode = requestBody.get("jwt");
+        String jwt = request.getJwt();
 
-        if (jwtNode != null) {
+        if (jwt != null) {
             try {
-                this.accountRepository.verifyJwtAndGetJwt(jwtNode.asText(), false);
-                this.accountRepository.signOut(jwtNode.asText());
+                this.accountRepository.verifyJwtAndGetJwt(jwt, false);
+                this.accountRepository.signOut(jwt);
             } catch (ExpiredJwtException e) {
-                this.accountRepository.signOut(jwtNode.asText());
+                this.accountRepository.signOut(jwt);
             }
         } else {
             throw new BadRequestException("No JWT was specified");
@@ -0,0 +1,201 @@
+package dev.blep.accounts.services;
+
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.entities.BulkCreateResult;
+import dev.blep.accounts.entities.IntrospectionResult;
+import dev.blep.accounts.entities.SessionTokens;
+import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
+import dev.blep.accounts.repositories.ReactiveAccountRepository;
+import dev.blep.accounts.util.LoginThrottle;
+import dev.blep.accounts.util.PasswordHasher;
+import dev.blep.accounts.util.SingleFlight;
+import io.jsonwebtoken.ExpiredJwtException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.naming.AuthenticationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking counterpart of {@link Account}. Request validation is shared with {@link Account}.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveAccount {
+
+    @Autowired
+    private ReactiveAccountRepository accountRepository;
+
+    @Autowired
+    private Account account;
+
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private LoginThrottle loginThrottle;
+
+    public Mono<Void> createAccount(AccountRequest request) {
+
+        String accountType;
+        try {
+            accountType = account.validateNewAccount(request);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+
+        return Mono.defer(() -> Mono.fromFuture(passwordHasher.hashAsync(request.getPassword())))
+                .flatMap(hashedPassword -> this.accountRepository.createAccount(
+                        request.getUsername(), request.getEmail(), hashedPassword, accountType));
+    }
+
+    /** See {@link Account#checkDeveloperApiKey} */
+    public Mono<Void> checkDeveloperApiKey(String apiKey) {
+        if (apiKey == null) {
+            return Mono.error(new BadRequestException("Include an 'X-Api-Key' header with your developer account's apiKey"));
+        }
+        return accountRepository.isDeveloperApiKey(apiKey)
+                .flatMap(developer -> developer ? Mono.<Void>empty()
+                        : Mono.error(new BadRequestException("The apiKey provided is invalid")));
+    }
+
+    /**
+     * Bulk creation is bound by hashing throughput and paces itself on the hashing pool, so the blocking
+     * implementation runs on a worker thread rather than an event loop.
+     */
+    public Mono<List<BulkCreateResult>> createAccounts(Iterator<AccountRequest> requests) {
+        return Mono.fromCallable(() -> account.createAccounts(requests)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public Mono<SessionTokens> authenticateAndGetJwt(AccountRequest request) {
+
+        // Authentication using JWT
+        if (request.getJwt() != null) {
+            boolean renew = Boolean.TRUE.equals(request.getRenew());
+            // Return the input jwt, if valid
+            return coalesce(SingleFlight.key(request.getJwt(), "jwt", String.valueOf(renew)),
+                    () -> this.accountRepository.verifyJwtAndGetJwt(request.getJwt(), renew)
+                            .map(jwt -> new SessionTokens(jwt, null)))
+                    .onErrorMap(ExpiredJwtException.class, e -> new AuthenticationException(
+                            "The JWT provided has expired. Visit the web app to sign in/get an updated JWT"));
+        }
+
+        // Authentication using a refresh token. Concurrent refreshes with the same token share one rotation
+        if (request.getRefreshToken() != null) {
+            return coalesce(SingleFlight.key(request.getRefreshToken(), "refresh"),
+                    () -> this.accountRepository.refresh(request.getRefreshToken()));
+        }
+
+        // Authentication using user credentials
+        Map<String, String> userMap;
+        try {
+            userMap = account.getUserIdFieldAndUserIdMap(request);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+
+        if (request.getPassword() == null) {
+            return Mono.error(new BadRequestException("No password provided"));
+        } else if (request.getSsoSuiteId() == null) {
+            return Mono.error(new BadRequestException("Must specify 'ssoSuiteId' in your request. Create a SSO suite at /sso-suite/create"));
+        }
+
+        // Only the request that runs the check is throttled; those sharing its result cost nothing more
+        String key = SingleFlight.key(request.getPassword(), userMap.get("userIdField"), userMap.get("userId"),
+                request.getSsoSuiteId());
+        return coalesce(account.getLogins(), key, () -> {
+            try {
+                loginThrottle.acquire(userMap.get("userIdField"), userMap.get("userId"), request.getClientAddress());
+            } catch (TooManyRequestsException e) {
+                return Mono.error(e);
+            }
+            return this.accountRepository.login(
+                    userMap.get("userIdField"),
+                    userMap.get("userId"),
+                    request.getPassword(),
+                    request.getSsoSuiteId());
+        }).flatMap(this.accountRepository::issueSessionTokens);
+    }
+
+    /** Joins an identical renewal or refresh already in flight, see {@link Account#getAuthentications} */
+    private Mono<SessionTokens> coalesce(String key, Supplier<Mono<SessionTokens>> authentication) {
+        return coalesce(account.getAuthentications(), key, authentication);
+    }
+
+    /** Joins an identical call already in flight; each caller still gets its own copy of the result */
+    private static <T> Mono<T> coalesce(SingleFlight<T> flights, String key, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> Mono.fromFuture(flights.executeAsync(key, () -> call.get().toFuture())));
+    }
+
+    public Mono<String> changeAccountType(AccountRequest request) {
+
+        Map<String, String> userMap;
+        try {
+            userMap = account.getUserIdFieldAndUserIdMap(request);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+
+        if (request.getPassword() == null) {
+            return Mono.error(new BadRequestException("No password provided"));
+        }
+        try {
+            loginThrottle.acquire(userMap.get("userIdField"), userMap.get("userId"), request.getClientAddress());
+        } catch (TooManyRequestsException e) {
+            return Mono.error(e);
+        }
+
+        return this.accountRepository.changeAccountType(
+                userMap.get("userIdField"),
+                userMap.get("userId"),
+                request.getPassword(),
+                request.getType());
+    }
+
+    public Mono<Void> verifyCredentials(AccountRequest request) {
+
+        Map<String, String> userMap;
+        try {
+            userMap = account.getUserIdFieldAndUserIdMap(request);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+
+        if (request.getPassword() == null) {
+            return Mono.error(new BadRequestException("No password provided"));
+        }
+
+        return this.accountRepository.verifyCredentials(
+                userMap.get("userIdField"),
+                userMap.get("userId"),
+                request.getPassword());
+    }
+
+    public Mono<List<IntrospectionResult>> introspect(AccountRequest request) {
+        try {
+            return this.accountRepository.introspect(account.getIntrospectionJwts(request));
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+    }
+
+    public Mono<Void> signOut(AccountRequest request) {
+
+        String jwt = request.getJwt();
+
+        if (jwt == null) {
+            return Mono.error(new BadRequestException("No JWT was specified"));
+        }
+        return this.accountRepository.verifyJwtAndGetJwt(jwt, false)
+                .then()
+                .onErrorResume(ExpiredJwtException.class, e -> Mono.empty())
+                .then(this.accountRepository.signOut(jwt));
+    }
+}
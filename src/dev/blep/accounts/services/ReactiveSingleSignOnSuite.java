@@ -0,0 +1,61 @@
+package dev.blep.accounts.services;
+
+import dev.blep.accounts.entities.AccountRequest;
+import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
+import dev.blep.accounts.repositories.ReactiveSsoSuiteRepository;
+import dev.blep.accounts.util.LoginThrottle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+/**
+ * Non-blocking counterpart of {@link SingleSignOnSuite}.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveSingleSignOnSuite {
+
+    @Autowired
+    private ReactiveSsoSuiteRepository ssoSuiteRepository;
+
+    @Autowired
+    private Account account;
+
+    @Autowired
+    private ReactiveAccount reactiveAccount;
+
+    @Autowired
+    private LoginThrottle loginThrottle;
+
+    public Mono<String> createSsoSuite(AccountRequest request) {
+
+        Map<String, String> userMap;
+        try {
+            userMap = account.getUserIdFieldAndUserIdMap(request);
+        } catch (BadRequestException e) {
+            return Mono.error(e);
+        }
+
+        if (request.getApiKey() == null) {
+            return Mono.error(new BadRequestException("Include an 'apiKey' field in your request body JSON"));
+        }
+
+        if (request.getSsoSuiteName() == null) {
+            return Mono.error(new BadRequestException("Include a 'ssoSuiteName' field in your request body JSON"));
+        }
+        try {
+            loginThrottle.acquire(userMap.get("userIdField"), userMap.get("userId"), request.getClientAddress());
+        } catch (TooManyRequestsException e) {
+            return Mono.error(e);
+        }
+
+        return reactiveAccount.verifyCredentials(request)
+                .then(this.ssoSuiteRepository.createSsoSuite(
+                        userMap.get("userIdField"), userMap.get("userId"), request.getApiKey(), request.getSsoSuiteName(),
+                        request.getAccessTokenTtl()));
+    }
+}
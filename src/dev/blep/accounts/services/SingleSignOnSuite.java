@@ -1,8 +1,11 @@
 package dev.blep.accounts.services;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import dev.blep.accounts.entities.AccountRequest;
 import dev.blep.accounts.exceptions.BadRequestException;
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import dev.blep.accounts.exceptions.TooManyRequestsException;
 import dev.blep.accounts.repositories.SsoSuiteRepository;
+import dev.blep.accounts.util.LoginThrottle;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
@@ -19,27 +22,30 @@ public class SingleSignOnSuite {
     @Autowired
     private Account account;
 
+    @Autowired
+    private LoginThrottle loginThrottle;
+
     @Autowired
     private Environment env;
 
-    public String createSsoSuite(JsonNode requestBody) throws BadRequestException, AuthenticationException {
+    public String createSsoSuite(AccountRequest request) throws BadRequestException, AuthenticationException, ServiceUnavailableException, TooManyRequestsException {
 
-        Map<String, String> userMap = account.getUserIdFieldAndUserIdMap(requestBody);
+        Map<String, String> userMap = account.getUserIdFieldAndUserIdMap(request);
         String userIdField = userMap.get("userIdField");
         String userId = userMap.get("userId");
-        JsonNode apiKeyNode = requestBody.get("apiKey");
-        JsonNode ssoSuiteNode = requestBody.get("ssoSuiteName");
 
-        if (apiKeyNode == null) {
+        if (request.getApiKey() == null) {
             throw new BadRequestException("Include an 'apiKey' field in your request body JSON");
         }
 
-        if (ssoSuiteNode == null) {
+        if (request.getSsoSuiteName() == null) {
             throw new BadRequestException("Include a 'ssoSuiteName' field in your request body JSON");
         }
 
-        account.verifyCredentials(requestBody);
+        loginThrottle.acquire(userIdField, userId, request.getClientAddress());
+        account.verifyCredentials(request);
 
-        return this.ssoSuiteRepository.createSsoSuite(userIdField, userId, apiKeyNode.asText(), ssoSuiteNode.asText());
+        return this.ssoSuiteRepository.createSsoSuite(userIdField, userId, request.getApiKey(), request.getSsoSuiteName(),
+                request.getAccessTokenTtl());
     }
 }
@@ -3,31 +3,86 @@ package dev.blep.accounts.util;
 import io.jsonwebtoken.*;
 import org.apache.tomcat.util.codec.binary.Base64;
 
-import javax.crypto.spec.SecretKeySpec;
 import javax.naming.AuthenticationException;
-import java.security.Key;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class AccountValidator {
 
-    /** Sets how long JWTs remain valid*/
+    /** Sets how long JWTs remain valid when no duration is given */
     private static long jwtDuration = TimeUnit.MINUTES.toMillis(1);
 
-    /** Verifies email syntax and limits to a maximum length*/
+    private static final String ISSUED_AT_MILLIS_CLAIM = "iatMs";
+
+    /** Characters allowed in the dot-separated atoms before the @ of an email */
+    private static final boolean[] EMAIL_LOCAL_CHARS = charClass("_+-", true);
+
+    /** Characters allowed in the dot-separated labels of an email domain */
+    private static final boolean[] EMAIL_DOMAIN_CHARS = charClass("-", true);
+
+    /** Whitespace, as matched by the \s regex class */
+    private static final boolean[] WHITESPACE_CHARS = charClass(" \t\n\u000B\f\r", false);
+
+    private static final boolean[] PASSWORD_SYMBOL_CHARS = charClass("`~!@#$%^&*()_+-=.,/<>?;:'\"[]{}\\|", false);
+
+    /**
+     * Verifies email syntax and limits to a maximum length.
+     * Accepts dot-separated atoms of letters, digits, '_', '+' and '-', an '@', then at least two dot-separated
+     * domain labels of letters, digits and '-', the last being two or more letters.
+     * Runs in a single pass without backtracking, so its cost is linear in the input length.
+     */
     public static boolean isValidEmail(String email) {
-        if (Pattern.compile("^[_A-Za-z0-9-+]+(.[_A-Za-z0-9-]+)*" +
-                "(@[_A-Za-z0-9-]+@*)[A-Za-z0-9-]+(.[A-Za-z0-9]+)*(.[A-Za-z]{2,})")
-                .matcher(email).matches()
-                && email.length() < 254) {
-            return true;
+        int length = email.length();
+        if (length >= 254) {
+            return false;
+        }
+
+        // Local part
+        int i = 0;
+        boolean expectingAtom = true;
+        for (; i < length; i++) {
+            char c = email.charAt(i);
+            if (c == '@') {
+                break;
+            } else if (c == '.') {
+                if (expectingAtom) {
+                    return false;
+                }
+                expectingAtom = true;
+            } else if (inClass(EMAIL_LOCAL_CHARS, c)) {
+                expectingAtom = false;
+            } else {
+                return false;
+            }
         }
-        else {
+        // Missing '@', empty local part or trailing '.'
+        if (i == length || expectingAtom) {
             return false;
         }
+
+        // Domain
+        int separators = 0;
+        int labelLength = 0;
+        boolean labelIsAlphabetic = true;
+        for (i++; i < length; i++) {
+            char c = email.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) {
+                    return false;
+                }
+                separators++;
+                labelLength = 0;
+                labelIsAlphabetic = true;
+            } else if (inClass(EMAIL_DOMAIN_CHARS, c)) {
+                labelLength++;
+                labelIsAlphabetic &= (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+            } else {
+                return false;
+            }
+        }
+        // The final label is the top level domain
+        return separators > 0 && labelLength >= 2 && labelIsAlphabetic;
     }
 
     /**
@@ -40,58 +95,96 @@ public class AccountValidator {
             return false;
         }
 
-        // Ensure password doesn't contain spaces
-        else if (Pattern.compile("[\\s]+").matcher(password).find()) {
-            return false;
+        boolean hasCapital = false;
+        boolean hasNumber = false;
+        boolean hasSymbol = false;
+        for (int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            // Ensure password doesn't contain spaces
+            if (inClass(WHITESPACE_CHARS, c)) {
+                return false;
+            } else if (c >= 'A' && c <= 'Z') {
+                hasCapital = true;
+            } else if (c >= '0' && c <= '9') {
+                hasNumber = true;
+            } else if (inClass(PASSWORD_SYMBOL_CHARS, c)) {
+                hasSymbol = true;
+            }
         }
+        return hasCapital && hasNumber && hasSymbol;
+    }
 
-        // Ensure password contains capital letter
-        else if (! Pattern.compile("[A-Z]+").matcher(password).find()) {
-            return false;
+    /** Builds an ASCII lookup table of the given characters, optionally including letters and digits */
+    private static boolean[] charClass(String chars, boolean alphanumeric) {
+        boolean[] table = new boolean[128];
+        for (char c : chars.toCharArray()) {
+            table[c] = true;
         }
-
-        // Ensure password contains number
-        else if (! Pattern.compile("[\\d]+").matcher(password).find()) {
-            return false;
-        }
-
-        // Ensure password contains symbol
-        else if (! Pattern.compile(String.format("[%s]+",
-                Pattern.quote("`~!@#$%^&*()_+-=.,/<>?;:'\"[]{}\\|")))
-                .matcher(password).find()) {
-            return false;
+        if (alphanumeric) {
+            for (char c = 'a'; c <= 'z'; c++) {
+                table[c] = true;
+                table[Character.toUpperCase(c)] = true;
+            }
+            for (char c = '0'; c <= '9'; c++) {
+                table[c] = true;
+            }
         }
+        return table;
+    }
 
-        else {
-            return true;
-        }
+    private static boolean inClass(boolean[] table, char c) {
+        return c < table.length && table[c];
+    }
 
+    public static String generateJwt(JwtKey jwtKey, String userId, String ssoSuiteId) {
+        return generateJwt(jwtKey, userId, ssoSuiteId, jwtDuration);
     }
 
-    public static String generateJwt(String secretKey, String userId, String ssoSuiteId) {
-        Key signingKey = new SecretKeySpec(Base64.encodeBase64(secretKey.getBytes()),
-                SignatureAlgorithm.HS512.getJcaName());
-        Map<String, Object> claimsMap = new HashMap<>();
-        claimsMap.put("userId", userId);
-        claimsMap.put("ssoSuiteId", ssoSuiteId);
+    /**
+     * Generates a JWT that expires after the given number of milliseconds, e.g. its SSO suite's lifetime.
+     * Besides the standard iat in seconds, it carries its issue time in milliseconds, so a token issued just after
+     * a sign-out can be told apart from those it revoked.
+     */
+    public static String generateJwt(JwtKey jwtKey, String userId, String ssoSuiteId, long durationMillis) {
+        long now = System.currentTimeMillis();
         return Jwts.builder()
-                .setHeaderParam("type", "JWT")
-                .addClaims(claimsMap)
-                .setExpiration(new Date(System.currentTimeMillis() + jwtDuration))
-                .signWith(SignatureAlgorithm.HS512, signingKey)
+                .setHeaderParams(jwtKey.getHeader())
+                .claim("userId", userId)
+                .claim("ssoSuiteId", ssoSuiteId)
+                .claim(ISSUED_AT_MILLIS_CLAIM, now)
+                .setIssuedAt(new Date(now))
+                .setExpiration(new Date(now + durationMillis))
+                .signWith(jwtKey.getAlgorithm(), jwtKey.getSigningKey())
                 .compact();
     }
 
-    public static void jwtIsValid(String jwt, String secretKey) throws AuthenticationException {
+    public static void jwtIsValid(String jwt, JwtKey jwtKey) throws AuthenticationException {
+        getValidClaims(jwt, jwtKey);
+    }
+
+    /** Verifies the signature and expiry of a JWT and returns its claims */
+    public static Claims getValidClaims(String jwt, JwtKey jwtKey) throws AuthenticationException {
+        return getValidClaims(jwt, jwtKey.getParser());
+    }
+
+    /** As {@link #getValidClaims(String, JwtKey)}, with the parser of a {@link JwtKeyRing} */
+    public static Claims getValidClaims(String jwt, JwtParser parser) throws AuthenticationException {
         try {
-            Jwts.parser()
-                    .setSigningKey(Base64.encodeBase64(secretKey.getBytes()))
-                    .parseClaimsJws(jwt).getBody();
+            return parser.parseClaimsJws(jwt).getBody();
         } catch (SignatureException e) {
             throw new AuthenticationException("The JWT provided is invalid");
         }
     }
 
+    /** Returns when the token was issued in epoch milliseconds, or null for tokens issued before it was recorded */
+    public static Long getIssuedAtMillis(Claims claims) {
+        return claims.get(ISSUED_AT_MILLIS_CLAIM, Long.class);
+    }
+
+    public static long getJwtDuration() {
+        return jwtDuration;
+    }
+
     public static String getJwtPayload(String jwt) {
         return new String(Base64.decodeBase64(jwt.split(Pattern.quote("."))[1]));
     }
@@ -0,0 +1,93 @@
+package dev.blep.accounts.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings. {@link #mightContain} never returns false for a string that was added,
+ * and returns true for one that wasn't with about the configured probability, as long as no more than the
+ * expected number of strings have been added. Adds are lock-free.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final long capacity;
+
+    private final AtomicLong insertions = new AtomicLong();
+
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        this.capacity = Math.max(1, expectedInsertions);
+        double ln2 = Math.log(2);
+        long bits = Math.max(64, (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2)));
+        this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+        this.bitCount = words.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+    }
+
+    public void add(String value) {
+        long h1 = hash(value);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            if ((words.get(word) & mask) == 0) {
+                changed |= (words.getAndAccumulate(word, mask, (current, set) -> current | set) & mask) == 0;
+            }
+        }
+        if (changed) {
+            insertions.incrementAndGet();
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long h1 = hash(value);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Approximate number of distinct strings added. Adds that set no new bits aren't counted, so repeated strings,
+     * and the rare new string that is a false positive, don't count towards saturation.
+     */
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /** Whether more strings were added than the filter was sized for, so false positives exceed the configured rate */
+    public boolean isSaturated() {
+        return insertions.get() > capacity;
+    }
+
+    /** FNV-1a over the UTF-16 code units, finished with a 64 bit mix so every bit depends on the whole string */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /** The MurmurHash3 64 bit finalizer */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
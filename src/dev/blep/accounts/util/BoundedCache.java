@@ -0,0 +1,87 @@
+package dev.blep.accounts.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe map that holds about a fixed number of entries, evicting the least recently used.
+ * Reads are lock-free: each one only stamps its entry's access time. A put that takes the cache over its size
+ * evicts the least recently used tenth in one pass, so the cost of finding them is spread over the puts in
+ * between. Puts racing an eviction may leave the cache briefly over its size.
+ */
+public class BoundedCache<K, V> {
+
+    /** Share of the maximum size each eviction removes */
+    private static final double EVICTION_SHARE = 0.1;
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    /** Size an eviction shrinks the cache to */
+    private final int evictToSize;
+
+    /** Held by the one put evicting; others carry on rather than wait */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    public BoundedCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.evictToSize = maxSize - (int) (maxSize * EVICTION_SHARE);
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.accessedAt = System.nanoTime();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        entries.put(key, new Entry<>(value));
+        if (entries.size() > maxSize) {
+            evict();
+        }
+    }
+
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long[] accessTimes = entries.values().stream().mapToLong(entry -> entry.accessedAt).toArray();
+            int excess = accessTimes.length - evictToSize;
+            if (excess <= 0) {
+                return;
+            }
+            Arrays.sort(accessTimes);
+            // Entries read since the snapshot are newer than the cutoff, so they stay
+            long cutoff = accessTimes[excess - 1];
+            entries.values().removeIf(entry -> entry.accessedAt <= cutoff);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+
+        /** System.nanoTime() of the last read or the put; racing reads may store slightly out of order */
+        private volatile long accessedAt = System.nanoTime();
+
+        private Entry(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dev.blep.accounts.util;
+
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.apache.tomcat.util.codec.binary.Base64;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Key material used to sign and verify JWTs, derived once from the configured secret or key pair.
+ * Instances are immutable and shared by every signing and verifying thread.
+ */
+public final class JwtKey {
+
+    private static final Map<String, Object> HEADER = Collections.singletonMap("type", "JWT");
+
+    private static final Pattern PEM_BLOCK = Pattern.compile("-----BEGIN ([A-Z ]+)-----([^-]+)-----END \\1-----");
+
+    /** Field size of the P-256 curve, the only one ES256 allows */
+    private static final int P256_BITS = 256;
+
+    private final SignatureAlgorithm algorithm;
+
+    /** Identifies an asymmetric key in the kid header and the JWKS; null for the shared secret */
+    private final String keyId;
+
+    /** Null for a public key kept only to verify tokens it signed before it was retired */
+    private final Key signingKey;
+
+    private final Key verificationKey;
+
+    private final Map<String, Object> header;
+
+    /** Only configured here; parsing doesn't modify the parser, so it is reused across threads */
+    private final JwtParser parser;
+
+    private JwtKey(SignatureAlgorithm algorithm, String keyId, Key signingKey, Key verificationKey) {
+        this.algorithm = algorithm;
+        this.keyId = keyId;
+        this.signingKey = signingKey;
+        this.verificationKey = verificationKey;
+        if (keyId == null) {
+            this.header = HEADER;
+        } else {
+            Map<String, Object> header = new LinkedHashMap<>(HEADER);
+            header.put("kid", keyId);
+            this.header = Collections.unmodifiableMap(header);
+        }
+        this.parser = Jwts.parser().setSigningKey(verificationKey);
+    }
+
+    /** Derives an HS512 key from a shared secret */
+    public static JwtKey hmac(String secretKey) {
+        SignatureAlgorithm algorithm = SignatureAlgorithm.HS512;
+        Key key = new SecretKeySpec(Base64.encodeBase64(secretKey.getBytes()), algorithm.getJcaName());
+        return new JwtKey(algorithm, null, key, key);
+    }
+
+    /** An ES256 key; privateKey is null for a key that only verifies */
+    public static JwtKey ecdsa(String keyId, PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        if (!(publicKey instanceof ECPublicKey)
+                || ((ECPublicKey) publicKey).getParams().getCurve().getField().getFieldSize() != P256_BITS) {
+            throw new GeneralSecurityException(String.format("Key %s is not a P-256 elliptic curve key", keyId));
+        }
+        if (privateKey != null) {
+            // A mismatched pair would sign tokens that nobody can verify
+            byte[] probe = keyId.getBytes(StandardCharsets.UTF_8);
+            Signature signer = Signature.getInstance(SignatureAlgorithm.ES256.getJcaName());
+            signer.initSign(privateKey);
+            signer.update(probe);
+            byte[] signature = signer.sign();
+            Signature verifier = Signature.getInstance(SignatureAlgorithm.ES256.getJcaName());
+            verifier.initVerify(publicKey);
+            verifier.update(probe);
+            if (!verifier.verify(signature)) {
+                throw new GeneralSecurityException(String.format("The private and public keys of %s don't match", keyId));
+            }
+        }
+        return new JwtKey(SignatureAlgorithm.ES256, keyId, privateKey, publicKey);
+    }
+
+    /**
+     * Reads an ES256 key from PEM text holding a PKCS#8 "PRIVATE KEY" block and/or an X.509 "PUBLIC KEY" block,
+     * as written by openssl genpkey and openssl pkey -pubout. A public key alone only verifies.
+     */
+    public static JwtKey ecdsaFromPem(String keyId, String pem) throws GeneralSecurityException {
+        PrivateKey privateKey = null;
+        PublicKey publicKey = null;
+        KeyFactory keyFactory = KeyFactory.getInstance("EC");
+        Matcher block = PEM_BLOCK.matcher(pem);
+        while (block.find()) {
+            byte[] der = Base64.decodeBase64(block.group(2).replaceAll("\\s", ""));
+            if (block.group(1).equals("PRIVATE KEY")) {
+                privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(der));
+            } else if (block.group(1).equals("PUBLIC KEY")) {
+                publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(der));
+            }
+        }
+        if (publicKey == null) {
+            throw new GeneralSecurityException(String.format("Key %s has no PUBLIC KEY block; append one with " +
+                    "openssl pkey -in <file> -pubout >> <file>", keyId));
+        }
+        return ecdsa(keyId, privateKey, publicKey);
+    }
+
+    /** Generates an ES256 key that lives only as long as this process */
+    public static JwtKey ecdsaEphemeral() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        return ecdsa("ephemeral-" + UUID.randomUUID(), keyPair.getPrivate(), keyPair.getPublic());
+    }
+
+    public SignatureAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public Key getSigningKey() {
+        return signingKey;
+    }
+
+    public Key getVerificationKey() {
+        return verificationKey;
+    }
+
+    public boolean canSign() {
+        return signingKey != null;
+    }
+
+    public JwtParser getParser() {
+        return parser;
+    }
+
+    public Map<String, Object> getHeader() {
+        return header;
+    }
+
+    /** The public key as an RFC 7517 JSON Web Key, or null for the shared secret, which is never published */
+    public Map<String, Object> toJwk() {
+        if (!(verificationKey instanceof ECPublicKey)) {
+            return null;
+        }
+        ECPublicKey publicKey = (ECPublicKey) verificationKey;
+        Map<String, Object> jwk = new LinkedHashMap<>();
+        jwk.put("kty", "EC");
+        jwk.put("crv", "P-256");
+        jwk.put("x", coordinate(publicKey.getW().getAffineX()));
+        jwk.put("y", coordinate(publicKey.getW().getAffineY()));
+        jwk.put("use", "sig");
+        jwk.put("alg", algorithm.getValue());
+        jwk.put("kid", keyId);
+        return jwk;
+    }
+
+    /** Base64url of the coordinate as exactly 32 unsigned big-endian bytes */
+    private static String coordinate(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] fixed = new byte[P256_BITS / 8];
+        int length = Math.min(bytes.length, fixed.length);
+        System.arraycopy(bytes, bytes.length - length, fixed, fixed.length - length, length);
+        return java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(fixed);
+    }
+}
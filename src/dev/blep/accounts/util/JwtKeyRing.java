@@ -0,0 +1,94 @@
+package dev.blep.accounts.util;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The key JWTs are signed with, and every key accepted when verifying them, chosen by the token's kid header.
+ * Keeping retired keys lets tokens signed before a rotation verify until they expire. Instances are immutable;
+ * a rotation builds a new ring.
+ */
+public final class JwtKeyRing {
+
+    private final JwtKey signingKey;
+
+    /** Keyed by kid, with the shared secret, which has none, under "" */
+    private final Map<String, JwtKey> verificationKeys;
+
+    private final JwtParser parser;
+
+    private final Map<String, Object> jwks;
+
+    public JwtKeyRing(JwtKey signingKey, Collection<JwtKey> verificationKeys) {
+        if (!signingKey.canSign()) {
+            throw new IllegalArgumentException(String.format("Key %s has no private key", signingKey.getKeyId()));
+        }
+        this.signingKey = signingKey;
+        Map<String, JwtKey> keys = new HashMap<>();
+        keys.put(kid(signingKey), signingKey);
+        for (JwtKey key : verificationKeys) {
+            keys.put(kid(key), key);
+        }
+        this.verificationKeys = Collections.unmodifiableMap(keys);
+        this.parser = Jwts.parser().setSigningKeyResolver(new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                JwtKey key = JwtKeyRing.this.verificationKeys.get(header.getKeyId() == null ? "" : header.getKeyId());
+                // Checking the algorithm too stops a token choosing how its own signature is checked
+                if (key == null || !key.getAlgorithm().getValue().equals(header.getAlgorithm())) {
+                    throw new SignatureException("The JWT was not signed by a known key");
+                }
+                return key.getVerificationKey();
+            }
+        });
+
+        List<Map<String, Object>> jwkList = new ArrayList<>();
+        for (JwtKey key : keys.values()) {
+            Map<String, Object> jwk = key.toJwk();
+            if (jwk != null) {
+                jwkList.add(jwk);
+            }
+        }
+        jwkList.sort((a, b) -> ((String) a.get("kid")).compareTo((String) b.get("kid")));
+        this.jwks = Collections.singletonMap("keys", Collections.unmodifiableList(jwkList));
+    }
+
+    /** A ring of one key, e.g. the shared secret */
+    public static JwtKeyRing of(JwtKey key) {
+        return new JwtKeyRing(key, Collections.emptyList());
+    }
+
+    public JwtKey getSigningKey() {
+        return signingKey;
+    }
+
+    public Collection<JwtKey> getVerificationKeys() {
+        return verificationKeys.values();
+    }
+
+    /** Verifies against whichever key the token names; reused across threads like {@link JwtKey#getParser} */
+    public JwtParser getParser() {
+        return parser;
+    }
+
+    /** The public keys as an RFC 7517 JWK set; empty when signing with the shared secret */
+    public Map<String, Object> getJwks() {
+        return jwks;
+    }
+
+    private static String kid(JwtKey key) {
+        return key.getKeyId() == null ? "" : key.getKeyId();
+    }
+}
@@ -0,0 +1,213 @@
+package dev.blep.accounts.util;
+
+import dev.blep.accounts.exceptions.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limits on password checks, per account identity and per client address, so credential
+ * stuffing is turned away before it costs a BCrypt check or a query.
+ * Buckets are spread over lock stripes, each a map guarded by its own monitor, so requests for different keys
+ * rarely contend. Idle buckets that have refilled are indistinguishable from new ones and are dropped; each
+ * stripe also holds at most its share of app.throttle.maxBuckets, evicting the least recently used.
+ */
+@Component
+public class LoginThrottle {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private static final int STRIPES = 64;
+
+    /** Acquisitions on a stripe between sweeps for refilled buckets */
+    static final int SWEEP_INTERVAL = 256;
+
+    private Stripe[] stripes;
+
+    private boolean enabled;
+
+    private Limit identityLimit;
+
+    private Limit addressLimit;
+
+    private Counter identityRejections;
+
+    private Counter addressRejections;
+
+    @PostConstruct
+    public void init() {
+        this.enabled = env.getProperty("app.throttle.enabled", Boolean.class, true);
+        this.identityLimit = new Limit(
+                env.getProperty("app.throttle.identity.capacity", Integer.class, 10),
+                env.getProperty("app.throttle.identity.refillPerMinute", Integer.class, 10));
+        this.addressLimit = new Limit(
+                env.getProperty("app.throttle.address.capacity", Integer.class, 100),
+                env.getProperty("app.throttle.address.refillPerMinute", Integer.class, 300));
+        int maxBuckets = env.getProperty("app.throttle.maxBuckets", Integer.class, 100000);
+
+        // Identity and address buckets share stripes, so only forget buckets that are full under either limit
+        long idleNanos = Math.max(identityLimit.refillNanos, addressLimit.refillNanos);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxBuckets / STRIPES), idleNanos);
+        }
+
+        this.identityRejections = Counter.builder("throttle.rejections").tag("key", "identity")
+                .description("Password checks rejected by the per account limit").register(meterRegistry);
+        this.addressRejections = Counter.builder("throttle.rejections").tag("key", "address")
+                .description("Password checks rejected by the per client address limit").register(meterRegistry);
+        Gauge.builder("throttle.buckets", this, LoginThrottle::size)
+                .description("Token buckets held by the login throttle").register(meterRegistry);
+    }
+
+    /**
+     * Takes a token from the bucket of the account identity and of the client address.
+     * If either is empty neither is charged, and the request is rejected.
+     * @param userIdField username or email
+     * @param clientAddress address of the client, or null if unknown
+     */
+    public void acquire(String userIdField, String userId, String clientAddress) throws TooManyRequestsException {
+        if (!enabled) {
+            return;
+        }
+        String identityKey = userIdField + ':' + userId;
+        long waitNanos = stripe(identityKey).tryAcquire(identityKey, identityLimit, System.nanoTime());
+        if (waitNanos > 0) {
+            identityRejections.increment();
+            throw tooManyRequests(waitNanos);
+        }
+        if (clientAddress != null) {
+            String addressKey = "address:" + clientAddress;
+            waitNanos = stripe(addressKey).tryAcquire(addressKey, addressLimit, System.nanoTime());
+            if (waitNanos > 0) {
+                stripe(identityKey).refund(identityKey, identityLimit);
+                addressRejections.increment();
+                throw tooManyRequests(waitNanos);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe stripe(String key) {
+        // Spread the hash so keys differing only in high bits land on different stripes
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /** Retry-After is rounded up to whole seconds, and is at least one */
+    static TooManyRequestsException tooManyRequests(long waitNanos) {
+        return new TooManyRequestsException("Too many attempts. Retry the request later",
+                Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)));
+    }
+
+    /** Bucket capacity and refill rate */
+    static class Limit {
+
+        final double capacity;
+
+        final double tokensPerNano;
+
+        /** Time an empty bucket takes to refill; a bucket idle this long can be forgotten */
+        final long refillNanos;
+
+        Limit(int capacity, int refillPerMinute) {
+            this.capacity = capacity;
+            this.tokensPerNano = refillPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+            this.refillNanos = (long) Math.ceil(capacity / tokensPerNano);
+        }
+    }
+
+    private static class Bucket {
+
+        double tokens;
+
+        long updatedAt;
+    }
+
+    /** Buckets for one slice of the key space, guarded by the stripe's monitor */
+    static class Stripe {
+
+        private final Map<String, Bucket> buckets;
+
+        /** Time after which an untouched bucket has refilled */
+        private final long idleNanos;
+
+        private int acquisitions;
+
+        Stripe(int maxBuckets, long idleNanos) {
+            this.idleNanos = idleNanos;
+            this.buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                    return size() > maxBuckets;
+                }
+            };
+        }
+
+        /** Takes a token at System.nanoTime() now, returning 0, or returns the nanoseconds until one is available */
+        synchronized long tryAcquire(String key, Limit limit, long now) {
+            if (++acquisitions % SWEEP_INTERVAL == 0) {
+                sweep(now);
+            }
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket();
+                bucket.tokens = limit.capacity;
+                buckets.put(key, bucket);
+            } else {
+                bucket.tokens = Math.min(limit.capacity, bucket.tokens + (now - bucket.updatedAt) * limit.tokensPerNano);
+            }
+            bucket.updatedAt = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / limit.tokensPerNano);
+        }
+
+        synchronized void refund(String key, Limit limit) {
+            Bucket bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.tokens = Math.min(limit.capacity, bucket.tokens + 1);
+            }
+        }
+
+        synchronized int size() {
+            return buckets.size();
+        }
+
+        /**
+         * Drops buckets that have had time to refill completely. Access order puts the least recently used first,
+         * so the sweep stops at the first bucket still refilling.
+         */
+        private void sweep(long now) {
+            Iterator<Bucket> iterator = buckets.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().updatedAt < idleNanos) {
+                    break;
+                }
+                iterator.remove();
+            }
+        }
+    }
+}
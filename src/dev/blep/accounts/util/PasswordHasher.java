@@ -0,0 +1,273 @@
+package dev.blep.accounts.util;
+
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs BCrypt hashing and verification on a dedicated, bounded worker pool so that CPU heavy password work
+ * can't occupy every servlet thread. When the queue is full, callers are rejected immediately rather than queued.
+ */
+@Component
+@Profile("!transfer")
+@Log4j2
+public class PasswordHasher {
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    private Timer queueWaitTimer;
+
+    private Timer hashTimer;
+
+    private Timer verifyTimer;
+
+    private long retryAfterSeconds;
+
+    /**
+     * Bounds the rehashes queued or running at once, so raising the cost can't fill the queue with a second hash
+     * per login and turn real logins and sign-ups away.
+     */
+    private Semaphore rehashPermits;
+
+    /** BCrypt cost used for new hashes. Pinned by configuration or calibrated against this node's CPU at startup */
+    private int logRounds;
+
+    /* A minimum required by BCrypt*/
+    private static final int MIN_LOG_ROUNDS = 4;
+    private static final int MAX_LOG_ROUNDS = 31;
+
+    /** The fixed cost used before calibration, kept as the default floor */
+    private static final int DEFAULT_MIN_LOG_ROUNDS = 13;
+
+    @PostConstruct
+    public void init() {
+
+        int poolSize = env.getProperty("app.hashing.poolSize", Integer.class,
+                Runtime.getRuntime().availableProcessors());
+        int queueCapacity = env.getProperty("app.hashing.queueCapacity", Integer.class, poolSize * 4);
+        this.retryAfterSeconds = env.getProperty("app.hashing.retryAfterSeconds", Long.class, 1L);
+        this.rehashPermits = new Semaphore(Math.max(1, env.getProperty("app.hashing.maxRehashes", Integer.class,
+                Math.max(1, poolSize / 4))));
+
+        // A slow startup, e.g. a cold JIT or a busy host, must not calibrate below the floor
+        int minLogRounds = checkLogRounds("app.hashing.minLogRounds",
+                env.getProperty("app.hashing.minLogRounds", Integer.class, DEFAULT_MIN_LOG_ROUNDS));
+        Integer pinnedLogRounds = env.getProperty("app.hashing.logRounds", Integer.class);
+        if (pinnedLogRounds != null) {
+            this.logRounds = Math.max(minLogRounds, checkLogRounds("app.hashing.logRounds", pinnedLogRounds));
+            if (logRounds != pinnedLogRounds) {
+                log.warn(String.format("Pinned BCrypt cost of %d is below app.hashing.minLogRounds; using %d",
+                        pinnedLogRounds, logRounds));
+            }
+            log.info(String.format("Using pinned BCrypt cost of %d", logRounds));
+        } else {
+            long targetMillis = env.getProperty("app.hashing.targetMillis", Long.class, 241L);
+            this.logRounds = calibrateLogRounds(minLogRounds, targetMillis);
+            log.info(String.format("Calibrated BCrypt cost of %d for a target of %d ms", logRounds, targetMillis));
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bcrypt-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        Gauge.builder("hashing.queue.depth", executor, e -> e.getQueue().size())
+                .description("Password hashing tasks waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("hashing.pool.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Password hashing workers currently busy")
+                .register(meterRegistry);
+        this.queueWaitTimer = Timer.builder("hashing.queue.wait")
+                .description("Time password hashing tasks spend queued before a worker picks them up")
+                .register(meterRegistry);
+        this.hashTimer = Timer.builder("bcrypt.hash")
+                .description("Time to salt and hash a password, excluding time queued")
+                .register(meterRegistry);
+        this.verifyTimer = Timer.builder("bcrypt.verify")
+                .description("Time to check a password against its hash, excluding time queued")
+                .register(meterRegistry);
+
+        log.info(String.format("Password hashing pool started with %d workers and a queue of %d", poolSize, queueCapacity));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Salts and hashes a password */
+    public String hash(String password) throws ServiceUnavailableException {
+        return submit(() -> hashTimer.recordCallable(() -> BCrypt.hashpw(password, BCrypt.gensalt(logRounds, new SecureRandom()))));
+    }
+
+    /** Checks a plaintext password against a stored BCrypt hash */
+    public boolean matches(String password, String hashedPassword) throws ServiceUnavailableException {
+        return submit(() -> verifyTimer.recordCallable(() -> BCrypt.checkpw(password, hashedPassword)));
+    }
+
+    /** Salts and hashes a password without blocking the caller */
+    public CompletableFuture<String> hashAsync(String password) {
+        return submitAsync(() -> hashTimer.recordCallable(() -> BCrypt.hashpw(password, BCrypt.gensalt(logRounds, new SecureRandom()))));
+    }
+
+    /** Checks a plaintext password against a stored BCrypt hash without blocking the caller */
+    public CompletableFuture<Boolean> matchesAsync(String password, String hashedPassword) {
+        return submitAsync(() -> verifyTimer.recordCallable(() -> BCrypt.checkpw(password, hashedPassword)));
+    }
+
+    /**
+     * Whether a stored hash was produced with a lower cost than the one this node uses for new hashes.
+     * Stronger hashes are never rewritten down, so nodes calibrated to different costs don't undo each other.
+     */
+    public boolean needsRehash(String hashedPassword) {
+        return getLogRounds(hashedPassword) < logRounds;
+    }
+
+    /**
+     * Rehashes a verified password at the current cost without blocking the caller.
+     * If app.hashing.maxRehashes are already pending, or the pool is saturated, the rehash is skipped; it will be
+     * retried on a later login.
+     */
+    public void rehashInBackground(String password, Consumer<String> onRehashed) {
+        if (!rehashPermits.tryAcquire()) {
+            log.debug("Skipped password rehash; app.hashing.maxRehashes are already pending");
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    long startTime = System.nanoTime();
+                    String rehashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(logRounds, new SecureRandom()));
+                    hashTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    onRehashed.accept(rehashedPassword);
+                } finally {
+                    rehashPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rehashPermits.release();
+            log.debug("Skipped password rehash; hashing pool is saturated");
+        }
+    }
+
+    public int getLogRounds() {
+        return logRounds;
+    }
+
+    public int getPoolSize() {
+        return executor.getCorePoolSize();
+    }
+
+    /** Reads the cost from a hash of the form $2a$13$... */
+    private static int getLogRounds(String hashedPassword) {
+        try {
+            return Integer.parseInt(hashedPassword.substring(4, 6));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the lowest BCrypt cost, no lower than minLogRounds, whose hash time on this machine meets the target.
+     * The target defaults to 241 ms, calculated given f=200, p=30*24*60*60*1000, n=32 in equation at:
+     * https://security.stackexchange.com/questions/3959/recommended-of-iterations-when-using-pkbdf2-sha256/3993#3993
+     */
+    private static int calibrateLogRounds(int minLogRounds, long targetMillis) {
+        int rounds = minLogRounds;
+        while (rounds < MAX_LOG_ROUNDS && saltHashPasswordTime(rounds) < targetMillis) {
+            rounds += 1;
+        }
+        return rounds;
+    }
+
+    private static int checkLogRounds(String property, int rounds) {
+        if (rounds < MIN_LOG_ROUNDS || rounds > MAX_LOG_ROUNDS) {
+            throw new IllegalStateException(String.format("%s must be between %d and %d, not %d",
+                    property, MIN_LOG_ROUNDS, MAX_LOG_ROUNDS, rounds));
+        }
+        return rounds;
+    }
+
+    /** Returns the best of two runs, in ms, so JIT warm-up doesn't inflate the measurement */
+    private static long saltHashPasswordTime(int rounds) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            long startTime = System.nanoTime();
+            // password complexity doesn't impact hashing time
+            BCrypt.hashpw("password", BCrypt.gensalt(rounds, new SecureRandom()));
+            best = Math.min(best, (System.nanoTime() - startTime) / 1000000);
+        }
+        return best;
+    }
+
+    private <T> T submit(Callable<T> task) throws ServiceUnavailableException {
+        CompletableFuture<T> future = submitAsync(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Skips the task if it is still queued; a running hash isn't interruptible
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("The request was interrupted. Retry the request shortly", retryAfterSeconds);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceUnavailableException) {
+                throw (ServiceUnavailableException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Queues a task on the pool. If the queue is full the future fails with a {@link ServiceUnavailableException}.
+     * A task whose future is cancelled before a worker picks it up isn't run.
+     */
+    private <T> CompletableFuture<T> submitAsync(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                queueWaitTimer.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(
+                    new ServiceUnavailableException("The service is busy. Retry the request shortly", retryAfterSeconds));
+        }
+        return future;
+    }
+}
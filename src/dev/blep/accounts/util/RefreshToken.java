@@ -0,0 +1,82 @@
+package dev.blep.accounts.util;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+/**
+ * A long-lived token exchanged for new access JWTs, of the form accountId.ssoSuiteId.secret.
+ * The ids let the token be found with one keyed read. The secret is 256 random bits, and only its SHA-256 hash
+ * is stored, so the stored value can't be used as a token.
+ */
+public final class RefreshToken {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final int SECRET_BYTES = 32;
+
+    private static final Pattern SECRET = Pattern.compile("[A-Za-z0-9_-]{43}");
+
+    private final ObjectId accountId;
+
+    private final String ssoSuiteId;
+
+    private final String secret;
+
+    private RefreshToken(ObjectId accountId, String ssoSuiteId, String secret) {
+        this.accountId = accountId;
+        this.ssoSuiteId = ssoSuiteId;
+        this.secret = secret;
+    }
+
+    public static RefreshToken issue(ObjectId accountId, String ssoSuiteId) {
+        byte[] secret = new byte[SECRET_BYTES];
+        RANDOM.nextBytes(secret);
+        return new RefreshToken(accountId, ssoSuiteId, Base64.getUrlEncoder().withoutPadding().encodeToString(secret));
+    }
+
+    /** Returns null if the text isn't shaped like a refresh token */
+    public static RefreshToken parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 3 || !ObjectId.isValid(parts[0]) || !ObjectId.isValid(parts[1])
+                || !SECRET.matcher(parts[2]).matches()) {
+            return null;
+        }
+        return new RefreshToken(new ObjectId(parts[0]), parts[1], parts[2]);
+    }
+
+    public ObjectId getAccountId() {
+        return accountId;
+    }
+
+    public String getSsoSuiteId() {
+        return ssoSuiteId;
+    }
+
+    /** Hex SHA-256 of the secret, which is how the token is stored */
+    public String getHash() {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.US_ASCII));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JVM", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return accountId.toHexString() + '.' + ssoSuiteId + '.' + secret;
+    }
+}
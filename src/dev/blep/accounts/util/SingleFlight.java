@@ -0,0 +1,113 @@
+package dev.blep.accounts.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the call, and callers arriving before it
+ * finishes wait for and receive its result or exception instead of running their own. Nothing is cached; a call
+ * made after the previous one finished runs again.
+ */
+public class SingleFlight<T> {
+
+    private final ConcurrentMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Runs the call on this thread, or waits for the identical call already running */
+    public T execute(String key, Callable<T> call) throws Exception {
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+        try {
+            T result = call.call();
+            flight.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Starts the call, or joins the identical call already running. Each caller gets its own future, so one
+     * caller cancelling doesn't cancel the others.
+     */
+    public CompletableFuture<T> executeAsync(String key, Supplier<? extends CompletionStage<T>> call) {
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy();
+        }
+        try {
+            call.get().whenComplete((result, e) -> {
+                inFlight.remove(key, flight);
+                if (e != null) {
+                    flight.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                } else {
+                    flight.complete(result);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            // Thrown before a stage was returned, so nothing else will remove the entry
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight.copy();
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+    /** Number of calls that received another call's result instead of running */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Builds a key from a secret, such as a password, and the ids it applies to. Only the secret's SHA-256 digest
+     * is kept, and callers share a result only when they presented the same secret.
+     */
+    public static String key(String secret, String... parts) {
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            // Length prefixed, so no choice of parts can produce another's key
+            key.append(part.length()).append(':').append(part);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            return key.append(Base64.getEncoder().encodeToString(digest)).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JVM", e);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> flight) throws Exception {
+        try {
+            return flight.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
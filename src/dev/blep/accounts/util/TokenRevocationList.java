@@ -0,0 +1,78 @@
+package dev.blep.accounts.util;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory record of sign-outs, so that JWTs can be validated without reading the account.
+ * A sign-out revokes every token for that user and SSO suite issued at or before it, so a token from a later
+ * login, even within the same second, stays valid. Tokens that don't carry their issue time in milliseconds,
+ * issued before it was added, are instead revoked if they expire at or before a cutoff one token lifetime after
+ * the sign-out. Entries are dropped once that cutoff has passed, since any token they revoke has expired by then.
+ */
+@Component
+public class TokenRevocationList {
+
+    /** Number of revocations between sweeps for entries whose cutoff has passed */
+    private static final int PURGE_INTERVAL = 1024;
+
+    /** Maps user id and SSO suite id to its latest sign-out */
+    private final Map<String, Revocation> revocations = new ConcurrentHashMap<>();
+
+    private final AtomicInteger revocationCount = new AtomicInteger();
+
+    /**
+     * Revokes all tokens for the user and SSO suite issued at or before signedOutAtMillis, in epoch milliseconds.
+     * Tokens without an issue time are revoked if they expire at or before the given epoch second.
+     */
+    public void revoke(String userId, String ssoSuiteId, long signedOutAtMillis, long expiresAtOrBefore) {
+        revocations.merge(key(userId, ssoSuiteId), new Revocation(signedOutAtMillis, expiresAtOrBefore), Revocation::latest);
+        if (revocationCount.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purgeExpired();
+        }
+    }
+
+    /** @param issuedAtMillis the token's issue time in epoch milliseconds, or null if it doesn't carry one */
+    public boolean isRevoked(String userId, String ssoSuiteId, Long issuedAtMillis, long expiresAt) {
+        Revocation revocation = revocations.get(key(userId, ssoSuiteId));
+        if (revocation == null) {
+            return false;
+        }
+        return issuedAtMillis != null ? issuedAtMillis <= revocation.signedOutAtMillis
+                : expiresAt <= revocation.expiresAtOrBefore;
+    }
+
+    public int size() {
+        return revocations.size();
+    }
+
+    private void purgeExpired() {
+        long now = Instant.now().getEpochSecond();
+        revocations.values().removeIf(revocation -> revocation.expiresAtOrBefore < now);
+    }
+
+    private static String key(String userId, String ssoSuiteId) {
+        return ssoSuiteId + ':' + userId;
+    }
+
+    private static final class Revocation {
+
+        private final long signedOutAtMillis;
+
+        private final long expiresAtOrBefore;
+
+        private Revocation(long signedOutAtMillis, long expiresAtOrBefore) {
+            this.signedOutAtMillis = signedOutAtMillis;
+            this.expiresAtOrBefore = expiresAtOrBefore;
+        }
+
+        private static Revocation latest(Revocation a, Revocation b) {
+            return new Revocation(Math.max(a.signedOutAtMillis, b.signedOutAtMillis),
+                    Math.max(a.expiresAtOrBefore, b.expiresAtOrBefore));
+        }
+    }
+}
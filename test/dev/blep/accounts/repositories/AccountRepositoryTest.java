@@ -0,0 +1,224 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.entities.IntrospectionResult;
+import dev.blep.accounts.entities.SessionTokens;
+import dev.blep.accounts.util.RefreshToken;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.naming.AuthenticationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AccountRepositoryTest {
+
+    private static final String PASSWORD = "Passw0rd!";
+
+    /** Emails the email pattern accepted before the stricter grammar, and which it now rejects */
+    private static final List<String> LEGACY_EMAILS = Arrays.asList(
+            "john@my_company.com",
+            "jane@examplecom",
+            "first+last@mail_server.example.org",
+            "a@b@example.com");
+
+    private InMemoryRepositories repositories;
+
+    private AccountRepository accountRepository;
+
+    private String ssoSuiteId;
+
+    @Before
+    public void setUp() throws Exception {
+        repositories = new InMemoryRepositories();
+        accountRepository = repositories.accountRepository;
+        ssoSuiteId = repositories.createSsoSuite("suite");
+    }
+
+    @After
+    public void tearDown() {
+        repositories.shutdown();
+    }
+
+    @Test
+    public void legacyEmailsFallBackToEmailLookup() {
+        for (String email : LEGACY_EMAILS) {
+            assertEquals(email, "email", AccountRepository.getFallbackUserIdField("username", email));
+        }
+        assertNull(AccountRepository.getFallbackUserIdField("username", "john"));
+        assertNull(AccountRepository.getFallbackUserIdField("email", "john@example.com"));
+    }
+
+    @Test
+    public void tokensForLegacyEmailsVerify() throws Exception {
+        int i = 0;
+        for (String email : LEGACY_EMAILS) {
+            repositories.createAccount("user" + i++, email, PASSWORD);
+            String jwt = accountRepository.loginAndGetJwt("email", email, PASSWORD, ssoSuiteId).getJwt();
+
+            assertEquals(email, jwt, accountRepository.verifyJwtAndGetJwt(jwt, false));
+            IntrospectionResult result = accountRepository.introspect(Collections.singletonList(jwt)).get(0);
+            assertTrue(email, result.isActive());
+        }
+    }
+
+    @Test
+    public void signOutOfLegacyEmailClearsSession() throws Exception {
+        repositories.createAccount("john", "john@my_company.com", PASSWORD);
+        String jwt = accountRepository.loginAndGetJwt("email", "john@my_company.com", PASSWORD, ssoSuiteId).getJwt();
+
+        accountRepository.signOut(jwt);
+        try {
+            accountRepository.verifyJwtAndGetJwt(jwt, false);
+            fail("Expected the signed out token to be rejected");
+        } catch (AuthenticationException e) {
+            // Signed out
+        }
+        assertFalse(accountRepository.introspect(Collections.singletonList(jwt)).get(0).isActive());
+    }
+
+    @Test
+    public void usernamesContainingAtStillVerify() throws Exception {
+        repositories.createAccount("john@my_company.com", "john@example.com", PASSWORD);
+        String jwt = accountRepository.loginAndGetJwt("username", "john@my_company.com", PASSWORD, ssoSuiteId).getJwt();
+
+        assertEquals(jwt, accountRepository.verifyJwtAndGetJwt(jwt, false));
+    }
+
+    @Test
+    public void onlyDeveloperAccountsHaveApiKeys() throws Exception {
+        repositories.accountStore.insert(new Document("username", "dev").append("email", "dev@example.com")
+                .append("type", "developer"));
+        repositories.accountStore.insert(new Document("username", "user").append("email", "user@example.com")
+                .append("type", "user"));
+        String developerKey = repositories.accountStore.findByIdentity("username", "dev").getObjectId("_id").toString();
+        String userKey = repositories.accountStore.findByIdentity("username", "user").getObjectId("_id").toString();
+
+        assertTrue(accountRepository.isDeveloperApiKey(developerKey));
+        assertFalse(accountRepository.isDeveloperApiKey(userKey));
+        assertFalse(accountRepository.isDeveloperApiKey(new ObjectId().toString()));
+        assertFalse(accountRepository.isDeveloperApiKey("not-an-id"));
+        assertFalse(accountRepository.isDeveloperApiKey(null));
+    }
+
+    @Test
+    public void refreshTokensAreSingleUse() throws Exception {
+        repositories.createAccount("john", "john@example.com", PASSWORD);
+        SessionTokens login = accountRepository.loginAndGetJwt("username", "john", PASSWORD, ssoSuiteId);
+
+        SessionTokens refreshed = accountRepository.refresh(login.getRefreshToken());
+        assertNotEquals(login.getRefreshToken(), refreshed.getRefreshToken());
+        assertEquals(refreshed.getJwt(), accountRepository.verifyJwtAndGetJwt(refreshed.getJwt(), false));
+        try {
+            accountRepository.refresh(login.getRefreshToken());
+            fail("Expected the used refresh token to be rejected");
+        } catch (AuthenticationException e) {
+            // Already redeemed
+        }
+        // The rotated token is still good
+        accountRepository.refresh(refreshed.getRefreshToken());
+    }
+
+    @Test
+    public void sharedLoginsGetTheirOwnRefreshTokens() throws Exception {
+        repositories.createAccount("john", "john@example.com", PASSWORD);
+        // Coalesced logins share one Login, then each caller issues its own tokens
+        AccountRepository.Login login = accountRepository.login("username", "john", PASSWORD, ssoSuiteId);
+        SessionTokens first = accountRepository.issueSessionTokens(login);
+        SessionTokens second = accountRepository.issueSessionTokens(login);
+
+        assertEquals(first.getJwt(), second.getJwt());
+        assertEquals(first.getJwt(), accountRepository.verifyJwtAndGetJwt(first.getJwt(), false));
+        assertNotEquals(first.getRefreshToken(), second.getRefreshToken());
+        // Rotating one caller's token leaves the other's valid
+        accountRepository.refresh(first.getRefreshToken());
+        accountRepository.refresh(second.getRefreshToken());
+    }
+
+    @Test
+    public void rotationKeepsTheExpiry() throws Exception {
+        repositories.createAccount("john", "john@example.com", PASSWORD);
+        String refreshToken = accountRepository.loginAndGetJwt("username", "john", PASSWORD, ssoSuiteId).getRefreshToken();
+        Date expiry = refreshTokenExpiry(refreshToken);
+
+        Thread.sleep(5);
+        String rotated = accountRepository.refresh(refreshToken).getRefreshToken();
+        assertNotNull(expiry);
+        assertEquals(expiry, refreshTokenExpiry(rotated));
+        assertNull(refreshTokenExpiry(refreshToken));
+    }
+
+    @Test
+    public void loginsKeepOnlyRefreshTokensPerSuite() throws Exception {
+        repositories.shutdown();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.security.refreshTokensPerSuite", 2);
+        repositories = new InMemoryRepositories(properties);
+        accountRepository = repositories.accountRepository;
+        ssoSuiteId = repositories.createSsoSuite("suite");
+        repositories.createAccount("john", "john@example.com", PASSWORD);
+
+        List<String> refreshTokens = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            refreshTokens.add(accountRepository.loginAndGetJwt("username", "john", PASSWORD, ssoSuiteId).getRefreshToken());
+            // Tokens are pruned oldest first by expiry, so give each a distinct one
+            Thread.sleep(5);
+        }
+
+        assertNull(refreshTokenExpiry(refreshTokens.get(0)));
+        assertNotNull(refreshTokenExpiry(refreshTokens.get(1)));
+        assertNotNull(refreshTokenExpiry(refreshTokens.get(2)));
+    }
+
+    @Test
+    public void signOutDropsTheSuitesRefreshTokens() throws Exception {
+        repositories.createAccount("john", "john@example.com", PASSWORD);
+        String otherSsoSuiteId = repositories.createSsoSuite("other");
+        SessionTokens login = accountRepository.loginAndGetJwt("username", "john", PASSWORD, ssoSuiteId);
+        SessionTokens otherLogin = accountRepository.loginAndGetJwt("username", "john", PASSWORD, otherSsoSuiteId);
+
+        accountRepository.signOut(login.getJwt());
+        try {
+            accountRepository.refresh(login.getRefreshToken());
+            fail("Expected the signed out suite's refresh token to be rejected");
+        } catch (AuthenticationException e) {
+            // Signed out
+        }
+        // Other suites stay signed in
+        accountRepository.refresh(otherLogin.getRefreshToken());
+    }
+
+    @Test(expected = AuthenticationException.class)
+    public void malformedRefreshTokensAreRejected() throws Exception {
+        accountRepository.refresh("not.a.token");
+    }
+
+    @Test(expected = AuthenticationException.class)
+    public void tokenForMissingAccountIsUnauthorized() throws Exception {
+        String jwt = accountRepository.signJwt("ghost@my_company.com", ssoSuiteId, 60);
+        accountRepository.verifyJwtAndGetJwt(jwt, false);
+    }
+
+    /** The stored expiry of a refresh token, or null once it has been used, pruned or signed out */
+    private Date refreshTokenExpiry(String refreshToken) {
+        RefreshToken token = RefreshToken.parse(refreshToken);
+        Document accountDoc = repositories.accountStore.findById(token.getAccountId(), AccountRepository.refreshTokenField(token));
+        Document entry = AccountRepository.getLiveRefreshToken(accountDoc, token);
+        return entry == null ? null : entry.getDate("exp");
+    }
+}
@@ -0,0 +1,147 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.client.model.ReplaceOneModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.DefaultApplicationArguments;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CollectionTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void importRestoresExportedDocuments() throws Exception {
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            documents.add(new Document("_id", new ObjectId())
+                    .append("username", "user" + i)
+                    .append("createdAt", new Date(1600000000000L + i))
+                    .append("logins", (long) i)
+                    .append("sessions", new Document("suite", new Document("jwt", "token" + i))));
+        }
+        Path file = folder.getRoot().toPath().resolve("accounts.ndjson.gz");
+        Path checkpoint = folder.getRoot().toPath().resolve("accounts.checkpoint");
+
+        assertEquals(25, CollectionTransfer.exportDocuments("accounts", documents, file));
+        Map<Object, Document> collection = new LinkedHashMap<>();
+        CollectionTransfer.ImportResult result = CollectionTransfer.importDocuments("accounts", file, 10, 3,
+                checkpoint, models -> upsert(collection, models));
+
+        assertEquals(25, result.getWritten());
+        assertEquals(0, result.getRejected());
+        assertEquals(25, collection.size());
+        for (Document doc : documents) {
+            // Extended JSON keeps the ObjectId, date and long types
+            assertEquals(doc, collection.get(doc.getObjectId("_id")));
+        }
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void interruptedImportResumesAfterTheCheckpoint() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("accounts.ndjson");
+        Path checkpoint = folder.getRoot().toPath().resolve("accounts.checkpoint");
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            documents.add(new Document("_id", i).append("username", "user" + i));
+        }
+        CollectionTransfer.exportDocuments("accounts", documents, file);
+
+        Map<Object, Document> collection = new LinkedHashMap<>();
+        AtomicInteger batches = new AtomicInteger();
+        try {
+            CollectionTransfer.importDocuments("accounts", file, 2, 1, checkpoint, models -> {
+                if (batches.incrementAndGet() == 3) {
+                    throw new IllegalStateException("connection lost");
+                }
+                return upsert(collection, models);
+            });
+            fail("Expected the failed batch to stop the import");
+        } catch (IllegalStateException expected) {
+        }
+        // The batches after the failed one may have been written, but the checkpoint stops before it
+        assertEquals("4", new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+
+        List<Object> rewritten = new ArrayList<>();
+        CollectionTransfer.ImportResult result = CollectionTransfer.importDocuments("accounts", file, 2, 1, checkpoint,
+                models -> {
+                    models.forEach(model -> rewritten.add(model.getReplacement().get("_id")));
+                    return upsert(collection, models);
+                });
+
+        assertEquals(6, result.getWritten());
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9), rewritten);
+        // Batches written twice are upserted, so nothing is duplicated
+        assertEquals(10, collection.size());
+        assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void documentsWithoutAnIdAreRejected() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("accounts.ndjson");
+        Path checkpoint = folder.getRoot().toPath().resolve("accounts.checkpoint");
+        Files.write(file, ("{\"_id\": 1, \"username\": \"a\"}\n" +
+                "{\"username\": \"no id\"}\n" +
+                "\n" +
+                "{\"_id\": 2, \"username\": \"taken\"}\n" +
+                "{\"_id\": 3, \"username\": \"c\"}\n").getBytes(StandardCharsets.UTF_8));
+
+        Map<Object, Document> collection = new LinkedHashMap<>();
+        CollectionTransfer.ImportResult result = CollectionTransfer.importDocuments("accounts", file, 10, 1, checkpoint,
+                models -> {
+                    // Stands in for a duplicate key error on one document of the batch
+                    List<ReplaceOneModel<Document>> accepted = new ArrayList<>();
+                    for (ReplaceOneModel<Document> model : models) {
+                        if (!"taken".equals(model.getReplacement().getString("username"))) {
+                            accepted.add(model);
+                        }
+                    }
+                    upsert(collection, accepted);
+                    return models.size() - accepted.size();
+                });
+
+        assertEquals(2, result.getWritten());
+        assertEquals(2, result.getRejected());
+        assertTrue(collection.containsKey(1));
+        assertTrue(collection.containsKey(3));
+        assertEquals(2, collection.size());
+    }
+
+    @Test
+    public void invalidOptionsExitWithUsage() {
+        CollectionTransfer transfer = new CollectionTransfer();
+        assertEquals(2, transfer.run(new DefaultApplicationArguments("import", "accounts")));
+        assertEquals(2, transfer.run(new DefaultApplicationArguments("import", "sessions", "--file=accounts.ndjson")));
+        assertEquals(2, transfer.run(new DefaultApplicationArguments("import", "accounts", "--file=accounts.ndjson",
+                "--batchSize=0")));
+    }
+
+    private static int upsert(Map<Object, Document> collection, List<ReplaceOneModel<Document>> models) {
+        synchronized (collection) {
+            for (ReplaceOneModel<Document> model : models) {
+                collection.put(model.getReplacement().get("_id"), model.getReplacement());
+            }
+        }
+        return 0;
+    }
+}
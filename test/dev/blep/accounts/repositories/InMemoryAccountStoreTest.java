@@ -0,0 +1,183 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.client.model.Updates;
+import dev.blep.accounts.exceptions.BadRequestException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryAccountStoreTest {
+
+    private InMemoryAccountStore accountStore;
+
+    @Before
+    public void setUp() {
+        accountStore = new InMemoryAccountStore();
+        InMemoryRepositories.inject(accountStore, "env", new StandardEnvironment());
+        accountStore.init();
+    }
+
+    @Test
+    public void duplicateUsernameIsRejected() throws Exception {
+        insert("john", "john@example.com");
+        try {
+            insert("john", "other@example.com");
+            fail("Expected a duplicate username to be rejected");
+        } catch (BadRequestException expected) {
+        }
+        // The rejected account's email wasn't claimed
+        assertNull(accountStore.findByIdentity("email", "other@example.com"));
+        insert("other", "other@example.com");
+    }
+
+    @Test
+    public void duplicateEmailIsRejected() throws Exception {
+        insert("john", "john@example.com");
+        try {
+            insert("other", "john@example.com");
+            fail("Expected a duplicate email to be rejected");
+        } catch (BadRequestException expected) {
+        }
+        // The rejected account's username was released
+        assertNull(accountStore.findByIdentity("username", "other"));
+        insert("other", "other@example.com");
+    }
+
+    @Test
+    public void insertAllReportsDuplicatesByIndex() {
+        List<Document> accounts = Arrays.asList(
+                account("a", "a@example.com"),
+                account("a", "b@example.com"),
+                account("c", "a@example.com"),
+                account("d", "d@example.com"));
+        Map<Integer, Exception> errors = accountStore.insertAll(accounts);
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(1) instanceof BadRequestException);
+        assertTrue(errors.get(2) instanceof BadRequestException);
+        assertNotNull(accountStore.findByIdentity("username", "d"));
+    }
+
+    @Test
+    public void setCreatesMissingParents() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        assertTrue(accountStore.update(id, Updates.set("sessions.suite.jwt", "token")));
+        Document account = accountStore.findById(id);
+        assertEquals("token", account.get("sessions", Document.class).get("suite", Document.class).getString("jwt"));
+    }
+
+    @Test
+    public void setReplacesNonDocumentParents() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.set("sessions", "scalar"));
+        accountStore.update(id, Updates.set("sessions.suite", 1));
+        assertEquals(1, accountStore.findById(id).get("sessions", Document.class).get("suite"));
+    }
+
+    @Test
+    public void unsetRemovesOnlyTheDottedField() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.combine(
+                Updates.set("sessions.suite.jwt", "token"),
+                Updates.set("sessions.suite.refresh", "refresh")));
+        accountStore.update(id, Updates.unset("sessions.suite.jwt"));
+        Document suite = accountStore.findById(id).get("sessions", Document.class).get("suite", Document.class);
+        assertFalse(suite.containsKey("jwt"));
+        assertEquals("refresh", suite.getString("refresh"));
+        // Unsetting a path whose parent is missing does nothing
+        accountStore.update(id, Updates.unset("missing.field"));
+        assertFalse(accountStore.findById(id).containsKey("missing"));
+    }
+
+    @Test
+    public void projectionCopiesNestedFields() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.combine(
+                Updates.set("sessions.a.jwt", "a"),
+                Updates.set("sessions.b.jwt", "b")));
+        Document projected = accountStore.findById(id, "sessions.a.jwt", "missing.field");
+        assertEquals(id, projected.getObjectId("_id"));
+        assertFalse(projected.containsKey("username"));
+        assertFalse(projected.containsKey("missing"));
+        Document sessions = projected.get("sessions", Document.class);
+        assertEquals(Collections.singleton("a"), sessions.keySet());
+        assertEquals("a", sessions.get("a", Document.class).getString("jwt"));
+    }
+
+    @Test
+    public void readsAreCopies() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.set("sessions.a.jwt", "a"));
+        Document account = accountStore.findById(id);
+        account.get("sessions", Document.class).get("a", Document.class).put("jwt", "changed");
+        assertEquals("a", accountStore.findById(id, "sessions.a.jwt")
+                .get("sessions", Document.class).get("a", Document.class).getString("jwt"));
+    }
+
+    @Test
+    public void updateIfEqualsMatchesTheExpectedValue() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.set("sessions.a.jwt", "old"));
+        assertFalse(accountStore.updateIfEquals(id, "sessions.a.jwt", "other", Updates.set("sessions.a.jwt", "new")));
+        assertEquals("old", getJwt(id));
+        assertTrue(accountStore.updateIfEquals(id, "sessions.a.jwt", "old", Updates.set("sessions.a.jwt", "new")));
+        assertEquals("new", getJwt(id));
+        // A missing field equals null, as with a MongoDB filter
+        assertTrue(accountStore.updateIfEquals(id, "sessions.b.jwt", null, Updates.set("sessions.b.jwt", "b")));
+    }
+
+    @Test
+    public void updateIfExistsRequiresTheField() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        assertFalse(accountStore.updateIfExists(id, "sessions.a.jwt", Updates.unset("sessions.a.jwt")));
+        accountStore.update(id, Updates.set("sessions.a.jwt", null));
+        assertTrue(accountStore.updateIfExists(id, "sessions.a.jwt", Updates.unset("sessions.a.jwt")));
+        assertFalse(accountStore.findById(id).get("sessions", Document.class).get("a", Document.class).containsKey("jwt"));
+    }
+
+    @Test
+    public void updatesOfMissingAccountsMatchNothing() {
+        assertFalse(accountStore.update(new ObjectId(), Updates.set("a", 1)));
+        assertFalse(accountStore.updateByIdentity("username", "nobody", Updates.set("a", 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void identityFieldsCantBeUpdated() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.set("email", "other@example.com"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOperatorsAreRejected() throws Exception {
+        ObjectId id = insert("john", "john@example.com");
+        accountStore.update(id, Updates.inc("count", 1));
+    }
+
+    private ObjectId insert(String username, String email) throws BadRequestException {
+        Document account = account(username, email);
+        accountStore.insert(account);
+        return account.getObjectId("_id");
+    }
+
+    private static Document account(String username, String email) {
+        return new Document("username", username).append("email", email);
+    }
+
+    private String getJwt(ObjectId id) {
+        return accountStore.findById(id, "sessions.a.jwt")
+                .get("sessions", Document.class).get("a", Document.class).getString("jwt");
+    }
+}
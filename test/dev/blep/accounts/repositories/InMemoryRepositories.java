@@ -0,0 +1,115 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.util.JwtKey;
+import dev.blep.accounts.util.JwtKeyRing;
+import dev.blep.accounts.util.PasswordHasher;
+import dev.blep.accounts.util.TokenRevocationList;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wires the servlet repositories to the in-memory stores, as the memory profile does, without starting Spring.
+ * Passwords are hashed at the lowest BCrypt cost so tests stay fast.
+ */
+final class InMemoryRepositories {
+
+    final StandardEnvironment env = new StandardEnvironment();
+
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    final InMemoryAccountStore accountStore = new InMemoryAccountStore();
+
+    final InMemorySsoSuiteStore ssoSuiteStore = new InMemorySsoSuiteStore();
+
+    final TokenRevocationList revocationList = new TokenRevocationList();
+
+    final PasswordHasher passwordHasher = new PasswordHasher();
+
+    final AccountIdentityFilter identityFilter = new AccountIdentityFilter();
+
+    final SsoSuiteCache ssoSuiteCache = new SsoSuiteCache();
+
+    final SsoSuiteRepository ssoSuiteRepository = new SsoSuiteRepository();
+
+    final JwtKeyStore jwtKeyStore = new JwtKeyStore();
+
+    final AccountRepository accountRepository = new AccountRepository();
+
+    InMemoryRepositories() {
+        this(new HashMap<>());
+    }
+
+    /** @param properties overrides for the defaults of each repository */
+    InMemoryRepositories(Map<String, Object> properties) {
+        Map<String, Object> merged = new HashMap<>();
+        merged.put("app.hashing.minLogRounds", 4);
+        merged.put("app.hashing.logRounds", 4);
+        merged.put("app.hashing.poolSize", 2);
+        merged.putAll(properties);
+        env.getPropertySources().addFirst(new MapPropertySource("test", merged));
+
+        inject(accountStore, "env", env);
+        accountStore.init();
+
+        inject(passwordHasher, "env", env);
+        inject(passwordHasher, "meterRegistry", meterRegistry);
+        passwordHasher.init();
+
+        inject(identityFilter, "env", env);
+        inject(identityFilter, "meterRegistry", meterRegistry);
+        identityFilter.init();
+
+        inject(ssoSuiteCache, "env", env);
+        inject(ssoSuiteCache, "meterRegistry", meterRegistry);
+        ssoSuiteCache.init();
+
+        inject(jwtKeyStore, "keyRing", JwtKeyRing.of(JwtKey.hmac("test-secret")));
+
+        inject(ssoSuiteRepository, "accountRepository", accountRepository);
+        inject(ssoSuiteRepository, "ssoSuiteStore", ssoSuiteStore);
+        inject(ssoSuiteRepository, "ssoSuiteCache", ssoSuiteCache);
+        ssoSuiteRepository.init();
+
+        inject(accountRepository, "env", env);
+        inject(accountRepository, "ssoSuiteRepository", ssoSuiteRepository);
+        inject(accountRepository, "passwordHasher", passwordHasher);
+        inject(accountRepository, "revocationList", revocationList);
+        inject(accountRepository, "accountStore", accountStore);
+        inject(accountRepository, "meterRegistry", meterRegistry);
+        inject(accountRepository, "identityFilter", identityFilter);
+        inject(accountRepository, "jwtKeyStore", jwtKeyStore);
+        inject(accountRepository, "ssoSuiteCache", ssoSuiteCache);
+        accountRepository.init();
+    }
+
+    /** Registers a suite with the default access token lifetime and returns its id */
+    String createSsoSuite(String name) throws Exception {
+        return ssoSuiteStore.insert(new Document(SsoSuiteRepository.NAME_FIELD, name));
+    }
+
+    void createAccount(String username, String email, String password) throws Exception {
+        accountRepository.createAccount(username, email, passwordHasher.hash(password), "user");
+    }
+
+    void shutdown() {
+        passwordHasher.shutdown();
+        identityFilter.shutdown();
+    }
+
+    /** Sets a field that Spring would autowire */
+    static void inject(Object target, String fieldName, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package dev.blep.accounts.repositories;
+
+import dev.blep.accounts.controllers.JwksController;
+import dev.blep.accounts.util.AccountValidator;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.http.ResponseEntity;
+
+import javax.naming.AuthenticationException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class JwtKeyStoreTest {
+
+    private static final long JWKS_MAX_AGE_SECONDS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JwtKeyStore jwtKeyStore;
+
+    @After
+    public void tearDown() {
+        if (jwtKeyStore != null) {
+            jwtKeyStore.shutdown();
+        }
+    }
+
+    @Test
+    public void newKeySignsOnlyOnceThePublishDelayHasPassed() throws Exception {
+        writeKey("2020-01", true, TimeUnit.HOURS.toMillis(1));
+        Path next = writeKey("2020-02", true, 0);
+        jwtKeyStore = start();
+
+        // Published at once, but signing waits until relying apps' cached JWKS has expired
+        assertEquals("2020-01", jwtKeyStore.getKeyRing().getSigningKey().getKeyId());
+        assertEquals(Arrays.asList("2020-01", "2020-02"), getJwksKeyIds());
+
+        setAge(next, TimeUnit.SECONDS.toMillis(JWKS_MAX_AGE_SECONDS + 1));
+        jwtKeyStore.reload();
+        assertEquals("2020-02", jwtKeyStore.getKeyRing().getSigningKey().getKeyId());
+    }
+
+    @Test
+    public void retiredKeyVerifiesUntilItsFileIsRemoved() throws Exception {
+        Path retired = writeKey("2020-01", true, TimeUnit.HOURS.toMillis(2));
+        jwtKeyStore = start();
+        String jwt = AccountValidator.generateJwt(jwtKeyStore.getKeyRing().getSigningKey(), "user", "suite", 60000);
+
+        writeKey("2020-02", true, TimeUnit.HOURS.toMillis(1));
+        jwtKeyStore.reload();
+        assertEquals("2020-02", jwtKeyStore.getKeyRing().getSigningKey().getKeyId());
+        assertEquals("user", AccountValidator.getValidClaims(jwt, jwtKeyStore.getKeyRing().getParser()).get("userId"));
+
+        Files.delete(retired);
+        jwtKeyStore.reload();
+        assertEquals(Arrays.asList("2020-02"), getJwksKeyIds());
+        try {
+            AccountValidator.getValidClaims(jwt, jwtKeyStore.getKeyRing().getParser());
+            fail("Expected a token from a removed key to be rejected");
+        } catch (AuthenticationException expected) {
+        }
+    }
+
+    @Test
+    public void newestKeySignsOnFirstDeployment() throws Exception {
+        writeKey("2020-01", true, 0);
+        writeKey("2020-02", true, 0);
+        // A public key alone is published for verification but never signs
+        writeKey("2020-03", false, TimeUnit.HOURS.toMillis(1));
+        jwtKeyStore = start();
+        assertEquals("2020-02", jwtKeyStore.getKeyRing().getSigningKey().getKeyId());
+        assertEquals(Arrays.asList("2020-01", "2020-02", "2020-03"), getJwksKeyIds());
+    }
+
+    @Test
+    public void failedReloadKeepsTheCurrentKeys() throws Exception {
+        writeKey("2020-01", true, TimeUnit.HOURS.toMillis(1));
+        jwtKeyStore = start();
+        Files.write(folder.getRoot().toPath().resolve("2020-02.pem"), "not a key".getBytes(StandardCharsets.UTF_8));
+        jwtKeyStore.reload();
+        assertEquals("2020-01", jwtKeyStore.getKeyRing().getSigningKey().getKeyId());
+    }
+
+    @Test
+    public void jwksResponseIsCachedForTheConfiguredLifetime() throws Exception {
+        writeKey("2020-01", true, TimeUnit.HOURS.toMillis(1));
+        jwtKeyStore = start();
+        JwksController controller = new JwksController();
+        InMemoryRepositories.inject(controller, "jwtKeyStore", jwtKeyStore);
+
+        ResponseEntity<Map<String, Object>> response = controller.getJwks();
+        assertEquals("max-age=" + JWKS_MAX_AGE_SECONDS + ", public", response.getHeaders().getCacheControl());
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> keys = (List<Map<String, Object>>) response.getBody().get("keys");
+        assertEquals(1, keys.size());
+        assertFalse(keys.get(0).containsKey("d"));
+    }
+
+    private JwtKeyStore start() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.security.jwtAlgorithm", "ES256");
+        properties.put("app.security.jwtKeyDir", folder.getRoot().getPath());
+        properties.put("app.security.jwksMaxAgeSeconds", JWKS_MAX_AGE_SECONDS);
+        // Reloads are driven by the tests
+        properties.put("app.security.jwtKeyReloadMs", TimeUnit.HOURS.toMillis(1));
+        StandardEnvironment env = new StandardEnvironment();
+        env.getPropertySources().addFirst(new MapPropertySource("test", properties));
+        JwtKeyStore jwtKeyStore = new JwtKeyStore();
+        InMemoryRepositories.inject(jwtKeyStore, "env", env);
+        jwtKeyStore.init();
+        return jwtKeyStore;
+    }
+
+    /** Writes a key file as openssl would, last modified ageMillis ago */
+    private Path writeKey(String keyId, boolean withPrivateKey, long ageMillis) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        StringBuilder pem = new StringBuilder();
+        if (withPrivateKey) {
+            pem.append(pemBlock("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+        }
+        pem.append(pemBlock("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+        Path file = folder.getRoot().toPath().resolve(keyId + ".pem");
+        Files.write(file, pem.toString().getBytes(StandardCharsets.UTF_8));
+        setAge(file, ageMillis);
+        return file;
+    }
+
+    private static String pemBlock(String type, byte[] der) {
+        return "-----BEGIN " + type + "-----\n" + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der) +
+                "\n-----END " + type + "-----\n";
+    }
+
+    private static void setAge(Path file, long ageMillis) throws Exception {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+    }
+
+    private List<String> getJwksKeyIds() {
+        List<String> keyIds = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> keys = (List<Map<String, Object>>) jwtKeyStore.getKeyRing().getJwks().get("keys");
+        for (Map<String, Object> jwk : keys) {
+            keyIds.add((String) jwk.get("kid"));
+        }
+        return keyIds;
+    }
+}
@@ -0,0 +1,123 @@
+package dev.blep.accounts.repositories;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import dev.blep.accounts.util.AccountValidator;
+import dev.blep.accounts.util.JwtKey;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionSweeperTest {
+
+    private static final JwtKey JWT_KEY = JwtKey.hmac("secret");
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ObjectId accountId = new ObjectId();
+
+    private final Date now = new Date();
+
+    @Test
+    public void removesExpiredEmptyAndUnreadableSessions() {
+        String live = jwt(HOUR_MILLIS);
+        String expired = jwt(-HOUR_MILLIS);
+        Document account = new Document("_id", accountId).append("ssoSuiteJwt", new Document("live", live)
+                .append("expired", expired)
+                .append("signedOut", "")
+                .append("unreadable", "not.a.jwt"));
+
+        SessionSweeper.Sweep sweep = new SessionSweeper.Sweep();
+        SessionSweeper.collectRemovals(account, now, sweep);
+
+        Map<String, BsonDocument> removals = getRemovals(sweep);
+        assertEquals(3, removals.size());
+        assertFalse(removals.containsKey("ssoSuiteJwt.live"));
+        // Each removal only matches while the session still holds the JWT that was read, so a sign-in racing the
+        // sweep keeps its new session
+        assertEquals(new BsonString(expired), removals.get("ssoSuiteJwt.expired").get("ssoSuiteJwt.expired"));
+        assertEquals(new BsonString(""), removals.get("ssoSuiteJwt.signedOut").get("ssoSuiteJwt.signedOut"));
+        assertEquals(new BsonString("not.a.jwt"), removals.get("ssoSuiteJwt.unreadable").get("ssoSuiteJwt.unreadable"));
+        for (BsonDocument filter : removals.values()) {
+            assertEquals(accountId, filter.getObjectId("_id").getValue());
+        }
+        assertEquals(2, sweep.expired);
+        assertEquals(1, sweep.empty);
+        assertEquals(0, sweep.refresh);
+        assertTrue(sweep.bytes > expired.length());
+    }
+
+    @Test
+    public void removesExpiredRefreshTokens() {
+        Document fullyExpired = new Document("a", new Document("exp", new Date(now.getTime() - HOUR_MILLIS)))
+                .append("b", new Document());
+        Document account = new Document("_id", accountId).append(AccountRepository.REFRESH_FIELD, new Document()
+                .append("mixed", new Document("c", new Document("exp", new Date(now.getTime() - HOUR_MILLIS)))
+                        .append("d", new Document("exp", new Date(now.getTime() + HOUR_MILLIS))))
+                .append("expired", fullyExpired)
+                .append("live", new Document("e", new Document("exp", new Date(now.getTime() + HOUR_MILLIS)))));
+
+        SessionSweeper.Sweep sweep = new SessionSweeper.Sweep();
+        SessionSweeper.collectRemovals(account, now, sweep);
+
+        Map<String, BsonDocument> removals = getRemovals(sweep);
+        assertEquals(2, removals.size());
+        // A suite that keeps a live token loses only its expired ones
+        assertEquals(new BsonDocument("_id", new BsonObjectId(accountId)), removals.get("refreshTokens.mixed.c"));
+        // A suite with only expired tokens is dropped, unless a sign-in added a token since it was read
+        BsonDocument expiredFilter = removals.get("refreshTokens.expired");
+        assertEquals(render(new Document("refreshTokens.expired", fullyExpired)).get("refreshTokens.expired"),
+                expiredFilter.get("refreshTokens.expired"));
+        assertEquals(3, sweep.refresh);
+        assertEquals(0, sweep.expired);
+        assertEquals(0, sweep.empty);
+    }
+
+    @Test
+    public void liveAccountsAreLeftAlone() {
+        Document account = new Document("_id", accountId)
+                .append("ssoSuiteJwt", new Document("live", jwt(HOUR_MILLIS)))
+                .append(AccountRepository.REFRESH_FIELD, new Document("live",
+                        new Document("a", new Document("exp", new Date(now.getTime() + HOUR_MILLIS)))));
+
+        SessionSweeper.Sweep sweep = new SessionSweeper.Sweep();
+        SessionSweeper.collectRemovals(account, now, sweep);
+
+        assertTrue(sweep.batch.isEmpty());
+        assertEquals(0, sweep.bytes);
+    }
+
+    private static String jwt(long durationMillis) {
+        return AccountValidator.generateJwt(JWT_KEY, new ObjectId().toHexString(), "suite", durationMillis);
+    }
+
+    /** The filter of each update, keyed by the one field it unsets */
+    private static Map<String, BsonDocument> getRemovals(SessionSweeper.Sweep sweep) {
+        Map<String, BsonDocument> removals = new HashMap<>();
+        for (WriteModel<Document> model : sweep.batch) {
+            UpdateOneModel<Document> update = (UpdateOneModel<Document>) model;
+            BsonDocument unset = render(update.getUpdate()).getDocument("$unset");
+            assertEquals(1, unset.size());
+            removals.put(unset.getFirstKey(), render(update.getFilter()));
+        }
+        return removals;
+    }
+
+    private static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,21 @@
+package dev.blep.accounts.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AccountTest {
+
+    @Test
+    public void bulkHashPermitsLeaveWorkersForLogins() {
+        assertEquals(4, Account.bulkHashPermits(8, 0.5));
+        assertEquals(7, Account.bulkHashPermits(8, 1.0));
+        assertEquals(1, Account.bulkHashPermits(2, 0.9));
+    }
+
+    @Test
+    public void bulkHashPermitsAreAtLeastOne() {
+        assertEquals(1, Account.bulkHashPermits(1, 0.5));
+        assertEquals(1, Account.bulkHashPermits(8, 0.0));
+    }
+}
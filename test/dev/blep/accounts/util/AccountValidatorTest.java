@@ -0,0 +1,93 @@
+package dev.blep.accounts.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccountValidatorTest {
+
+    /** Inputs that take exponential time with a backtracking pattern finish well within this */
+    private static final long LINEAR_TIMEOUT_MILLIS = 2000;
+
+    @Test
+    public void acceptsCommonEmails() {
+        assertTrue(AccountValidator.isValidEmail("user1@email.com"));
+        assertTrue(AccountValidator.isValidEmail("first.last+tag@mail.example.co.uk"));
+        assertTrue(AccountValidator.isValidEmail("a_b-c@my-domain.io"));
+        assertTrue(AccountValidator.isValidEmail("UPPER@EXAMPLE.COM"));
+        assertTrue(AccountValidator.isValidEmail("1@2.ab"));
+    }
+
+    @Test
+    public void rejectsMalformedEmails() {
+        assertFalse(AccountValidator.isValidEmail(""));
+        assertFalse(AccountValidator.isValidEmail("user"));
+        assertFalse(AccountValidator.isValidEmail("@example.com"));
+        assertFalse(AccountValidator.isValidEmail("user@"));
+        assertFalse(AccountValidator.isValidEmail(".user@example.com"));
+        assertFalse(AccountValidator.isValidEmail("user.@example.com"));
+        assertFalse(AccountValidator.isValidEmail("us..er@example.com"));
+        assertFalse(AccountValidator.isValidEmail("user@example"));
+        assertFalse(AccountValidator.isValidEmail("user@.example.com"));
+        assertFalse(AccountValidator.isValidEmail("user@example..com"));
+        assertFalse(AccountValidator.isValidEmail("user@example.com."));
+        assertFalse(AccountValidator.isValidEmail("user@example.c"));
+        assertFalse(AccountValidator.isValidEmail("user@example.c0m"));
+        assertFalse(AccountValidator.isValidEmail("us er@example.com"));
+        assertFalse(AccountValidator.isValidEmail("user@example.com\n"));
+        assertFalse(AccountValidator.isValidEmail("us\u00e9r@example.com"));
+        assertFalse(AccountValidator.isValidEmail("user@ex\u00e4mple.com"));
+    }
+
+    @Test
+    public void rejectsEmailsOnlyTheLegacyPatternAccepted() {
+        // Documented in the README; accounts already holding such emails still sign in
+        assertFalse(AccountValidator.isValidEmail("john@my_company.com"));
+        assertFalse(AccountValidator.isValidEmail("a@b@example.com"));
+        assertFalse(AccountValidator.isValidEmail("a!b@example.com"));
+    }
+
+    @Test
+    public void limitsEmailLength() {
+        String domain = "@example.com";
+        assertTrue(AccountValidator.isValidEmail("a".repeat(253 - domain.length()) + domain));
+        assertFalse(AccountValidator.isValidEmail("a".repeat(254 - domain.length()) + domain));
+    }
+
+    @Test(timeout = LINEAR_TIMEOUT_MILLIS)
+    public void adversarialEmailsAreRejectedInLinearTime() {
+        // Each defeated a nested quantifier of the earlier pattern at its last character
+        String[] prefixes = {"a", "a.", "a-", "a@a.", "a@a-", "a@" + "a.".repeat(10)};
+        for (String prefix : prefixes) {
+            String email = prefix.repeat(252 / prefix.length()) + "!";
+            assertFalse(AccountValidator.isValidEmail(email));
+        }
+        assertFalse(AccountValidator.isValidEmail("a".repeat(10_000_000) + "@example.com"));
+    }
+
+    @Test
+    public void acceptsStrongPasswords() {
+        assertTrue(AccountValidator.isValidPassword("A)1ansmfdlasdf"));
+        assertTrue(AccountValidator.isValidPassword("Passw0rd!"));
+        assertTrue(AccountValidator.isValidPassword("{Z9aaaaa"));
+    }
+
+    @Test
+    public void rejectsWeakPasswords() {
+        assertFalse(AccountValidator.isValidPassword("A)1ansm"));
+        assertFalse(AccountValidator.isValidPassword("a)1ansmfdlasdf"));
+        assertFalse(AccountValidator.isValidPassword("A)bansmfdlasdf"));
+        assertFalse(AccountValidator.isValidPassword("A11ansmfdlasdf"));
+        assertFalse(AccountValidator.isValidPassword("A) 1ansmfdlasdf"));
+        assertFalse(AccountValidator.isValidPassword("A)1ansmfd\tlasdf"));
+        // Only ASCII symbols count
+        assertFalse(AccountValidator.isValidPassword("A\u00a71ansmfdlasdf"));
+    }
+
+    @Test(timeout = LINEAR_TIMEOUT_MILLIS)
+    public void longPasswordsAreCheckedInLinearTime() {
+        assertFalse(AccountValidator.isValidPassword("a".repeat(10_000_000)));
+        assertTrue(AccountValidator.isValidPassword("a".repeat(10_000_000) + "A1!"));
+    }
+}
@@ -0,0 +1,71 @@
+package dev.blep.accounts.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    private static final int CAPACITY = 100000;
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    @Test
+    public void hasNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add("username:user" + i);
+        }
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue("user" + i, filter.mightContain("username:user" + i));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateStaysInBoundsAtCapacity() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add("email:user" + i + "@example.com");
+        }
+        int falsePositives = 0;
+        int probes = 200000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("email:other" + i + "@example.com")) {
+                falsePositives++;
+            }
+        }
+        // Within 1.5x of the configured rate leaves room for sampling noise but not for a skewed hash
+        double rate = (double) falsePositives / probes;
+        assertTrue(String.format("False positive rate %.4f", rate), rate < FALSE_POSITIVE_RATE * 1.5);
+    }
+
+    @Test
+    public void countsDistinctInsertions() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        filter.add("username:john");
+        filter.add("username:john");
+        filter.add("email:john@example.com");
+        assertEquals(2, filter.getInsertions());
+    }
+
+    @Test
+    public void isSaturatedOnlyBeyondCapacity() {
+        BloomFilter filter = new BloomFilter(100, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < 100; i++) {
+            filter.add("username:user" + i);
+        }
+        assertFalse(filter.isSaturated());
+        for (int i = 100; i < 200; i++) {
+            filter.add("username:user" + i);
+        }
+        assertTrue(filter.isSaturated());
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        assertFalse(filter.mightContain("username:john"));
+    }
+}
@@ -0,0 +1,87 @@
+package dev.blep.accounts.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void getsWhatWasPut() {
+        BoundedCache<String, Long> cache = new BoundedCache<>(10);
+        cache.put("a", 1L);
+        assertEquals(Long.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        cache.remove("a");
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void staysWithinMaxSize() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+        // The newest entry is never the one evicted
+        assertNotNull(cache.get(999));
+    }
+
+    @Test
+    public void evictsLeastRecentlyRead() throws InterruptedException {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+        }
+        Thread.sleep(1);
+        cache.get(0);
+        Thread.sleep(1);
+        cache.put(10, 10);
+
+        // Shrunk by a tenth of its size below the maximum, evicting the two least recently used
+        assertEquals(9, cache.size());
+        assertNotNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(10));
+    }
+
+    @Test
+    public void concurrentReadsAndPutsStayBounded() throws Exception {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int offset = t * 10000;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        cache.put(offset + i, i);
+                        Integer value = cache.get(offset + i / 2);
+                        if (value != null) {
+                            assertEquals(i / 2, value.intValue());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // Puts racing an eviction may overshoot by up to one per thread, until the next put evicts
+        cache.put(-1, -1);
+        assertTrue(cache.size() <= 1000);
+    }
+}
@@ -0,0 +1,127 @@
+package dev.blep.accounts.util;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.junit.Test;
+
+import javax.naming.AuthenticationException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JwtKeyRingTest {
+
+    private static final long DURATION_MILLIS = 60000;
+
+    @Test
+    public void es256TokensVerify() throws Exception {
+        JwtKey key = JwtKey.ecdsaEphemeral();
+        String jwt = AccountValidator.generateJwt(key, "user", "suite", DURATION_MILLIS);
+
+        assertEquals(key.getKeyId(), Jwts.parser().setSigningKey(key.getVerificationKey()).parseClaimsJws(jwt)
+                .getHeader().getKeyId());
+        Claims claims = AccountValidator.getValidClaims(jwt, JwtKeyRing.of(key).getParser());
+        assertEquals("user", claims.get("userId"));
+        assertEquals("suite", claims.get("ssoSuiteId"));
+        // A ring holding only the public key still verifies
+        JwtKey publicOnly = JwtKey.ecdsa(key.getKeyId(), null, (PublicKey) key.getVerificationKey());
+        JwtKeyRing ring = new JwtKeyRing(JwtKey.ecdsaEphemeral(), Collections.singletonList(publicOnly));
+        assertEquals("user", AccountValidator.getValidClaims(jwt, ring.getParser()).get("userId"));
+    }
+
+    @Test
+    public void tokensFromOtherKeysAreRejected() throws Exception {
+        String jwt = AccountValidator.generateJwt(JwtKey.ecdsaEphemeral(), "user", "suite", DURATION_MILLIS);
+        assertRejected(jwt, JwtKeyRing.of(JwtKey.ecdsaEphemeral()));
+        assertRejected(jwt, JwtKeyRing.of(JwtKey.hmac("secret")));
+    }
+
+    @Test
+    public void algorithmMustMatchTheNamedKey() throws Exception {
+        JwtKey key = JwtKey.ecdsaEphemeral();
+        JwtKeyRing ring = new JwtKeyRing(key, Collections.singletonList(JwtKey.hmac("secret")));
+
+        // The public key is published, so an HMAC over it must not pass as a token from the ES256 key
+        String forged = Jwts.builder()
+                .setHeaderParams(key.getHeader())
+                .claim("userId", "admin")
+                .setExpiration(new Date(System.currentTimeMillis() + DURATION_MILLIS))
+                .signWith(SignatureAlgorithm.HS512, key.getVerificationKey().getEncoded())
+                .compact();
+        assertRejected(forged, ring);
+
+        // Nor may an ES256 token claim the shared secret's empty kid
+        String unnamed = Jwts.builder()
+                .claim("userId", "admin")
+                .setExpiration(new Date(System.currentTimeMillis() + DURATION_MILLIS))
+                .signWith(SignatureAlgorithm.ES256, key.getSigningKey())
+                .compact();
+        assertRejected(unnamed, ring);
+    }
+
+    @Test
+    public void jwksPublishesOnlyPublicParameters() throws Exception {
+        JwtKey signing = JwtKey.ecdsaEphemeral();
+        JwtKey retired = JwtKey.ecdsaEphemeral();
+        JwtKeyRing ring = new JwtKeyRing(signing, Arrays.asList(retired, JwtKey.hmac("secret")));
+
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> keys = (List<Map<String, Object>>) ring.getJwks().get("keys");
+        // The shared secret is never published
+        assertEquals(2, keys.size());
+        for (Map<String, Object> jwk : keys) {
+            assertEquals(Arrays.asList("kty", "crv", "x", "y", "use", "alg", "kid"), Arrays.asList(jwk.keySet().toArray()));
+            assertFalse(jwk.containsKey("d"));
+            assertEquals("ES256", jwk.get("alg"));
+            // 32 bytes as unpadded base64url
+            assertEquals(43, ((String) jwk.get("x")).length());
+            assertEquals(43, ((String) jwk.get("y")).length());
+        }
+        assertEquals(Collections.emptyList(), JwtKeyRing.of(JwtKey.hmac("secret")).getJwks().get("keys"));
+        assertNull(JwtKey.hmac("secret").toJwk());
+    }
+
+    @Test
+    public void mismatchedKeyPairIsRejected() throws Exception {
+        KeyPair first = generateKeyPair();
+        KeyPair second = generateKeyPair();
+        try {
+            JwtKey.ecdsa("mismatched", first.getPrivate(), second.getPublic());
+            fail("Expected a mismatched key pair to be rejected");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void signingKeyNeedsAPrivateKey() throws Exception {
+        KeyPair keyPair = generateKeyPair();
+        JwtKeyRing.of(JwtKey.ecdsa("public", null, keyPair.getPublic()));
+    }
+
+    private static void assertRejected(String jwt, JwtKeyRing ring) {
+        try {
+            AccountValidator.getValidClaims(jwt, ring.getParser());
+            fail("Expected the JWT to be rejected");
+        } catch (AuthenticationException expected) {
+        }
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+}
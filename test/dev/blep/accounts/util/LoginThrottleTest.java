@@ -0,0 +1,152 @@
+package dev.blep.accounts.util;
+
+import dev.blep.accounts.exceptions.TooManyRequestsException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoginThrottleTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /** Idle buckets are never swept */
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @Test
+    public void refillsAtTheConfiguredRate() {
+        // One token a second
+        LoginThrottle.Limit limit = new LoginThrottle.Limit(2, 60);
+        LoginThrottle.Stripe stripe = new LoginThrottle.Stripe(100, NEVER);
+
+        assertEquals(0, stripe.tryAcquire("key", limit, 0));
+        assertEquals(0, stripe.tryAcquire("key", limit, 0));
+        assertEquals(SECOND, stripe.tryAcquire("key", limit, 0), 1);
+
+        // Half refilled, so half a second to go
+        assertEquals(SECOND / 2, stripe.tryAcquire("key", limit, SECOND / 2), 1);
+        assertEquals(0, stripe.tryAcquire("key", limit, SECOND + SECOND / 100));
+    }
+
+    @Test
+    public void refillStopsAtCapacity() {
+        LoginThrottle.Limit limit = new LoginThrottle.Limit(2, 60);
+        LoginThrottle.Stripe stripe = new LoginThrottle.Stripe(100, NEVER);
+        stripe.tryAcquire("key", limit, 0);
+
+        long later = 100 * SECOND;
+        assertEquals(0, stripe.tryAcquire("key", limit, later));
+        assertEquals(0, stripe.tryAcquire("key", limit, later));
+        assertTrue(stripe.tryAcquire("key", limit, later) > 0);
+    }
+
+    @Test
+    public void retryAfterRoundsUpToWholeSeconds() {
+        assertEquals(1, LoginThrottle.tooManyRequests(1).getRetryAfterSeconds());
+        assertEquals(1, LoginThrottle.tooManyRequests(SECOND / 2).getRetryAfterSeconds());
+        assertEquals(1, LoginThrottle.tooManyRequests(SECOND).getRetryAfterSeconds());
+        assertEquals(2, LoginThrottle.tooManyRequests(SECOND + 1).getRetryAfterSeconds());
+        assertEquals(60, LoginThrottle.tooManyRequests(59 * SECOND + SECOND / 5).getRetryAfterSeconds());
+    }
+
+    @Test
+    public void sweepsBucketsIdleLongEnoughToRefill() {
+        LoginThrottle.Limit limit = new LoginThrottle.Limit(1, 60);
+        LoginThrottle.Stripe stripe = new LoginThrottle.Stripe(1000, limit.refillNanos);
+        stripe.tryAcquire("idle", limit, 0);
+        stripe.tryAcquire("busy", limit, 0);
+
+        // The sweep runs on every SWEEP_INTERVAL-th acquisition, before it takes its token
+        long now = limit.refillNanos;
+        for (int i = 2; i < LoginThrottle.SWEEP_INTERVAL - 1; i++) {
+            stripe.tryAcquire("busy", limit, now);
+        }
+        assertEquals(2, stripe.size());
+        stripe.tryAcquire("busy", limit, now);
+        assertEquals(1, stripe.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBucketBeyondItsShare() {
+        LoginThrottle.Limit limit = new LoginThrottle.Limit(1, 1);
+        LoginThrottle.Stripe stripe = new LoginThrottle.Stripe(2, NEVER);
+        stripe.tryAcquire("a", limit, 0);
+        stripe.tryAcquire("b", limit, 0);
+        // Touching a makes b the least recently used
+        assertTrue(stripe.tryAcquire("a", limit, 0) > 0);
+        stripe.tryAcquire("c", limit, 0);
+
+        assertEquals(2, stripe.size());
+        // a is still held and empty, while b was forgotten, so it starts again with a full bucket
+        assertTrue(stripe.tryAcquire("a", limit, 0) > 0);
+        assertEquals(0, stripe.tryAcquire("b", limit, 0));
+    }
+
+    @Test
+    public void refundsIdentityWhenAddressIsRejected() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.throttle.identity.capacity", 1);
+        properties.put("app.throttle.identity.refillPerMinute", 1);
+        properties.put("app.throttle.address.capacity", 1);
+        properties.put("app.throttle.address.refillPerMinute", 1);
+        LoginThrottle throttle = throttle(properties);
+
+        throttle.acquire("username", "john", "10.0.0.1");
+        try {
+            throttle.acquire("username", "jane", "10.0.0.1");
+            fail("Expected the address limit to reject the request");
+        } catch (TooManyRequestsException e) {
+            assertTrue(e.getRetryAfterSeconds() >= 1);
+        }
+        // Had jane's token not been refunded, her bucket would be empty for another minute
+        throttle.acquire("username", "jane", "10.0.0.2");
+    }
+
+    @Test(expected = TooManyRequestsException.class)
+    public void rejectsOnceIdentityIsExhausted() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.throttle.identity.capacity", 2);
+        properties.put("app.throttle.identity.refillPerMinute", 1);
+        LoginThrottle throttle = throttle(properties);
+
+        throttle.acquire("email", "john@example.com", "10.0.0.1");
+        throttle.acquire("email", "john@example.com", "10.0.0.2");
+        throttle.acquire("email", "john@example.com", null);
+    }
+
+    @Test
+    public void disabledThrottleNeverRejects() throws Exception {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.throttle.enabled", false);
+        properties.put("app.throttle.identity.capacity", 1);
+        LoginThrottle throttle = throttle(properties);
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire("username", "john", "10.0.0.1");
+        }
+    }
+
+    private static LoginThrottle throttle(Map<String, Object> properties) throws ReflectiveOperationException {
+        StandardEnvironment env = new StandardEnvironment();
+        env.getPropertySources().addFirst(new MapPropertySource("test", properties));
+        LoginThrottle throttle = new LoginThrottle();
+        inject(throttle, "env", env);
+        inject(throttle, "meterRegistry", new SimpleMeterRegistry());
+        throttle.init();
+        return throttle;
+    }
+
+    private static void inject(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,183 @@
+package dev.blep.accounts.util;
+
+import dev.blep.accounts.exceptions.ServiceUnavailableException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PasswordHasherTest {
+
+    private PasswordHasher passwordHasher;
+
+    @After
+    public void tearDown() {
+        if (passwordHasher != null) {
+            passwordHasher.shutdown();
+        }
+    }
+
+    @Test
+    public void pinnedCostIsRaisedToTheFloor() {
+        passwordHasher = start(properties(4, 5));
+        assertEquals(5, passwordHasher.getLogRounds());
+    }
+
+    @Test
+    public void calibrationStartsAtTheFloor() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.hashing.minLogRounds", 5);
+        // Every cost meets a target of 0 ms, so calibration stops at the floor
+        properties.put("app.hashing.targetMillis", 0);
+        passwordHasher = start(properties);
+        assertEquals(5, passwordHasher.getLogRounds());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void floorBelowBCryptsMinimumIsRejected() {
+        start(properties(4, 3));
+    }
+
+    @Test
+    public void onlyWeakerHashesNeedRehashing() {
+        passwordHasher = start(properties(5, 4));
+        assertTrue(passwordHasher.needsRehash(BCrypt.hashpw("password", BCrypt.gensalt(4))));
+        assertFalse(passwordHasher.needsRehash(BCrypt.hashpw("password", BCrypt.gensalt(5))));
+        // Hashes from a node calibrated higher are never rewritten down
+        assertFalse(passwordHasher.needsRehash(BCrypt.hashpw("password", BCrypt.gensalt(6))));
+    }
+
+    @Test
+    public void hashesMatch() throws Exception {
+        passwordHasher = start(properties(4, 4));
+        String hash = passwordHasher.hash("Passw0rd!");
+        assertTrue(passwordHasher.matches("Passw0rd!", hash));
+        assertFalse(passwordHasher.matches("passw0rd!", hash));
+        assertTrue(passwordHasher.matchesAsync("Passw0rd!", hash).get());
+    }
+
+    @Test
+    public void fullQueueIsRejectedWithServiceUnavailable() throws Exception {
+        Map<String, Object> properties = properties(4, 4);
+        properties.put("app.hashing.poolSize", 1);
+        properties.put("app.hashing.queueCapacity", 1);
+        passwordHasher = start(properties);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            // The rehash callback runs on the only worker, so holding it keeps the worker busy
+            passwordHasher.rehashInBackground("password", hash -> {
+                started.countDown();
+                awaitQuietly(release);
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<String> queued = passwordHasher.hashAsync("queued");
+
+            CompletableFuture<String> rejected = passwordHasher.hashAsync("rejected");
+            try {
+                rejected.get();
+                fail("Expected the full queue to reject the hash");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ServiceUnavailableException);
+                assertEquals(1, ((ServiceUnavailableException) e.getCause()).getRetryAfterSeconds());
+            }
+            try {
+                passwordHasher.hash("rejected");
+                fail("Expected the full queue to reject the hash");
+            } catch (ServiceUnavailableException expected) {
+            }
+
+            release.countDown();
+            assertTrue(BCrypt.checkpw("queued", queued.get(10, TimeUnit.SECONDS)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void pendingRehashesAreBounded() throws Exception {
+        Map<String, Object> properties = properties(4, 4);
+        properties.put("app.hashing.poolSize", 2);
+        properties.put("app.hashing.maxRehashes", 1);
+        passwordHasher = start(properties);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger rehashed = new AtomicInteger();
+        try {
+            passwordHasher.rehashInBackground("first", hash -> {
+                started.countDown();
+                awaitQuietly(release);
+                rehashed.incrementAndGet();
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // Skipped rather than queued while the first is pending
+            passwordHasher.rehashInBackground("second", hash -> rehashed.incrementAndGet());
+            // Logins still get the free worker
+            assertTrue(passwordHasher.matches("login", passwordHasher.hash("login")));
+        } finally {
+            release.countDown();
+        }
+
+        // Once the first finishes, which releases its permit just after the callback, rehashes are accepted again
+        CountDownLatch done = new CountDownLatch(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        do {
+            passwordHasher.rehashInBackground("third", hash -> done.countDown());
+        } while (!done.await(10, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline);
+        assertEquals(0, done.getCount());
+        assertEquals(1, rehashed.get());
+    }
+
+    private static Map<String, Object> properties(int logRounds, int minLogRounds) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.hashing.logRounds", logRounds);
+        properties.put("app.hashing.minLogRounds", minLogRounds);
+        return properties;
+    }
+
+    private static PasswordHasher start(Map<String, Object> properties) {
+        StandardEnvironment env = new StandardEnvironment();
+        env.getPropertySources().addFirst(new MapPropertySource("test", properties));
+        PasswordHasher passwordHasher = new PasswordHasher();
+        inject(passwordHasher, "env", env);
+        inject(passwordHasher, "meterRegistry", new SimpleMeterRegistry());
+        passwordHasher.init();
+        return passwordHasher;
+    }
+
+    private static void inject(Object target, String fieldName, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dev.blep.accounts.util;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RefreshTokenTest {
+
+    private static final String ACCOUNT_ID = new ObjectId().toHexString();
+
+    private static final String SSO_SUITE_ID = new ObjectId().toHexString();
+
+    private static final String SECRET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJ01234_-";
+
+    @Test
+    public void parsesIssuedTokens() {
+        RefreshToken issued = RefreshToken.issue(new ObjectId(ACCOUNT_ID), SSO_SUITE_ID);
+        RefreshToken parsed = RefreshToken.parse(issued.toString());
+
+        assertNotNull(parsed);
+        assertEquals(issued.getAccountId(), parsed.getAccountId());
+        assertEquals(SSO_SUITE_ID, parsed.getSsoSuiteId());
+        assertEquals(issued.getHash(), parsed.getHash());
+        assertEquals(issued.toString(), parsed.toString());
+    }
+
+    @Test
+    public void issuedTokensAreUnique() {
+        ObjectId accountId = new ObjectId(ACCOUNT_ID);
+        assertNotEquals(RefreshToken.issue(accountId, SSO_SUITE_ID).getHash(),
+                RefreshToken.issue(accountId, SSO_SUITE_ID).getHash());
+    }
+
+    @Test
+    public void hashIsHexSha256OfTheSecret() {
+        String hash = RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET).getHash();
+        assertEquals(64, hash.length());
+        assertEquals(hash, hash.replaceAll("[^0-9a-f]", ""));
+    }
+
+    @Test
+    public void rejectsMalformedTokens() {
+        assertNotNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET));
+
+        assertNull(RefreshToken.parse(null));
+        assertNull(RefreshToken.parse(""));
+        assertNull(RefreshToken.parse(".."));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET + '.'));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET + ".extra"));
+        // Ids that aren't ObjectIds
+        assertNull(RefreshToken.parse("john." + SSO_SUITE_ID + '.' + SECRET));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + ".suite." + SECRET));
+        // Secrets of the wrong length or alphabet
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET.substring(1)));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET + 'a'));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET.replace('_', '+')));
+        assertNull(RefreshToken.parse(ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET.replace('-', '=')));
+        assertNull(RefreshToken.parse(' ' + ACCOUNT_ID + '.' + SSO_SUITE_ID + '.' + SECRET));
+    }
+}
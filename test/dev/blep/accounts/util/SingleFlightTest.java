@@ -0,0 +1,196 @@
+package dev.blep.accounts.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private static final int FOLLOWERS = 4;
+
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void followersReceiveTheLeadersResult() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        List<Future<String>> results = startFlights("key", FOLLOWERS + 1, () -> {
+            calls.incrementAndGet();
+            release.await();
+            return "jwt";
+        });
+        awaitCoalesced(FOLLOWERS);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            assertEquals("jwt", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void followersReceiveTheLeadersException() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("Database unavailable");
+        List<Future<String>> results = startFlights("key", FOLLOWERS + 1, () -> {
+            release.await();
+            throw failure;
+        });
+        awaitCoalesced(FOLLOWERS);
+        release.countDown();
+
+        for (Future<String> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the leader's exception");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void callsAfterCompletionRunAgain() throws Exception {
+        assertEquals("first", singleFlight.execute("key", () -> "first"));
+        assertEquals("second", singleFlight.execute("key", () -> "second"));
+        try {
+            singleFlight.execute("key", () -> {
+                throw new IllegalArgumentException();
+            });
+            fail("Expected the call's exception");
+        } catch (IllegalArgumentException e) {
+            // Thrown to the caller that ran it
+        }
+        assertEquals(0, singleFlight.size());
+        assertEquals(0, singleFlight.getCoalesced());
+    }
+
+    @Test
+    public void differentSecretsNeverShareAResult() throws Exception {
+        String key = SingleFlight.key("Passw0rd!", "username", "john", "suite");
+        String otherKey = SingleFlight.key("wrong", "username", "john", "suite");
+        assertNotEquals(key, otherKey);
+        assertEquals(key, SingleFlight.key("Passw0rd!", "username", "john", "suite"));
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> leader = startFlights(key, 1, () -> {
+            release.await();
+            return "jwt";
+        });
+        while (singleFlight.size() == 0) {
+            Thread.sleep(1);
+        }
+        // Runs its own call while the first is still in flight
+        try {
+            singleFlight.execute(otherKey, () -> {
+                throw new IllegalArgumentException("The password provided is incorrect");
+            });
+            fail("Expected the wrong password to be checked on its own");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, singleFlight.getCoalesced());
+        }
+        release.countDown();
+        assertEquals("jwt", leader.get(0).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keysDontCollideAcrossParts() {
+        assertNotEquals(SingleFlight.key("secret", "ab", "c"), SingleFlight.key("secret", "a", "bc"));
+        assertFalse(SingleFlight.key("secret", "john").contains("secret"));
+    }
+
+    @Test
+    public void asyncFollowersShareTheLeadersFuture() throws Exception {
+        CompletableFuture<String> leaderCall = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> leader = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return leaderCall;
+        });
+        CompletableFuture<String> follower = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        CompletableFuture<String> cancelled = singleFlight.executeAsync("key", CompletableFuture::new);
+        cancelled.cancel(false);
+
+        leaderCall.complete("jwt");
+        assertEquals("jwt", leader.get(5, TimeUnit.SECONDS));
+        assertEquals("jwt", follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(2, singleFlight.getCoalesced());
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void asyncExceptionsAreUnwrapped() throws Exception {
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Database unavailable"));
+        try {
+            singleFlight.executeAsync("key", () -> failed.thenApply(jwt -> jwt)).get(5, TimeUnit.SECONDS);
+            fail("Expected the call's exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, singleFlight.size());
+    }
+
+    @Test
+    public void asyncEntryIsRemovedWhenTheCallThrows() throws Exception {
+        CompletableFuture<String> result = singleFlight.executeAsync("key", () -> {
+            throw new IllegalStateException("Hashing pool is full");
+        });
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(0, singleFlight.size());
+
+        // The next call isn't coalesced onto the failed one
+        assertEquals("jwt", singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("jwt"))
+                .get(5, TimeUnit.SECONDS));
+        assertEquals(0, singleFlight.getCoalesced());
+    }
+
+    private List<Future<String>> startFlights(String key, int count, Callable<String> call) {
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            results.add(executor.submit(() -> singleFlight.execute(key, call)));
+        }
+        return results;
+    }
+
+    private void awaitCoalesced(int followers) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (singleFlight.getCoalesced() < followers) {
+            if (System.nanoTime() > deadline) {
+                fail("Followers didn't join the flight");
+            }
+            Thread.sleep(1);
+        }
+    }
+}
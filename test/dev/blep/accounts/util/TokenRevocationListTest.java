@@ -0,0 +1,97 @@
+package dev.blep.accounts.util;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TokenRevocationListTest {
+
+    private static final JwtKey KEY = JwtKey.hmac("test-secret");
+
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final TokenRevocationList revocationList = new TokenRevocationList();
+
+    @Test
+    public void generatedTokensCarryMillisecondIssueTime() throws Exception {
+        long before = System.currentTimeMillis();
+        Claims claims = claims(AccountValidator.generateJwt(KEY, "john", "suite", TTL_MILLIS));
+        long issuedAt = AccountValidator.getIssuedAtMillis(claims);
+        assertTrue(issuedAt >= before && issuedAt <= System.currentTimeMillis());
+        assertEquals(issuedAt / 1000, claims.getIssuedAt().getTime() / 1000);
+    }
+
+    @Test
+    public void revokesTokensIssuedAtOrBeforeSignOut() {
+        long signedOutAt = 1_700_000_000_500L;
+        revocationList.revoke("john", "suite", signedOutAt, expiry(signedOutAt));
+        assertTrue(revocationList.isRevoked("john", "suite", signedOutAt - 400, expiry(signedOutAt - 400)));
+        assertTrue(revocationList.isRevoked("john", "suite", signedOutAt, expiry(signedOutAt)));
+    }
+
+    @Test
+    public void reLoginInTheSameSecondIsNotRevoked() throws Exception {
+        Claims old = claims(AccountValidator.generateJwt(KEY, "john", "suite", TTL_MILLIS));
+        long signedOutAt = AccountValidator.getIssuedAtMillis(old);
+        revocationList.revoke("john", "suite", signedOutAt, expiry(signedOutAt));
+
+        // Issued one millisecond later, in the same second as the sign-out and with the same exp
+        long reLogin = signedOutAt + 1;
+        assertTrue(revocationList.isRevoked("john", "suite", AccountValidator.getIssuedAtMillis(old), expiry(signedOutAt)));
+        assertFalse(revocationList.isRevoked("john", "suite", reLogin, expiry(signedOutAt)));
+
+        // A token actually issued after the sign-out
+        Thread.sleep(2);
+        Claims fresh = claims(AccountValidator.generateJwt(KEY, "john", "suite", TTL_MILLIS));
+        assertFalse(revocationList.isRevoked("john", "suite", AccountValidator.getIssuedAtMillis(fresh),
+                fresh.getExpiration().getTime() / 1000));
+    }
+
+    @Test
+    public void tokensWithoutIssueTimeFallBackToExpiryCutoff() {
+        long signedOutAt = 1_700_000_000_500L;
+        long cutoff = expiry(signedOutAt);
+        revocationList.revoke("john", "suite", signedOutAt, cutoff);
+        assertTrue(revocationList.isRevoked("john", "suite", null, cutoff));
+        assertFalse(revocationList.isRevoked("john", "suite", null, cutoff + 1));
+    }
+
+    @Test
+    public void onlyRevokesTheSignedOutUserAndSuite() {
+        long signedOutAt = 1_700_000_000_500L;
+        revocationList.revoke("john", "suite", signedOutAt, expiry(signedOutAt));
+        assertFalse(revocationList.isRevoked("jane", "suite", signedOutAt - 1, expiry(signedOutAt)));
+        assertFalse(revocationList.isRevoked("john", "other", signedOutAt - 1, expiry(signedOutAt)));
+    }
+
+    @Test
+    public void keepsTheLatestSignOut() {
+        long signedOutAt = 1_700_000_000_500L;
+        revocationList.revoke("john", "suite", signedOutAt, expiry(signedOutAt));
+        revocationList.revoke("john", "suite", signedOutAt - 1000, expiry(signedOutAt - 1000));
+        assertTrue(revocationList.isRevoked("john", "suite", signedOutAt - 1, expiry(signedOutAt)));
+        assertEquals(1, revocationList.size());
+    }
+
+    @Test
+    public void legacyTokensHaveNoIssueTime() {
+        Claims claims = Jwts.claims();
+        claims.put("userId", "john");
+        assertNull(AccountValidator.getIssuedAtMillis(claims));
+    }
+
+    private static Claims claims(String jwt) throws Exception {
+        return AccountValidator.getValidClaims(jwt, KEY);
+    }
+
+    private static long expiry(long issuedAtMillis) {
+        return (issuedAtMillis + TTL_MILLIS) / 1000;
+    }
+}